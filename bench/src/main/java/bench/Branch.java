@@ -0,0 +1,29 @@
+package bench;
+
+import common.Message;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import server.RequestDispatcher;
+
+// One benchmark thread acting as a branch: its own connection and order ids
+@State(Scope.Thread)
+public class Branch {
+    private MemoryConnection connection = new MemoryConnection(false);
+    private long nextId;
+    private SplittableRandom random = new SplittableRandom(42);
+
+    // Sends the message as this branch and waits for the answer to it
+    public Message call(RequestDispatcher dispatcher, Message msg) {
+        msg.correlationId = ++nextId;
+        CompletableFuture<Message> answer = connection.expect(msg.correlationId);
+        dispatcher.dispatch(connection, msg);
+        return answer.join();
+    }
+
+    // One of the first count seeded items
+    public String item(int count) {
+        return Catalogue.item(random.nextInt(count));
+    }
+}
@@ -0,0 +1,55 @@
+package bench;
+
+import common.Message;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import server.Inventory;
+import server.RequestDispatcher;
+
+// One UPDATE broadcast to N branches, each queueing it and framing it with
+// the binary codec into its own in-memory stream, as the writer of a real
+// connection would. Time per broadcast, so per-branch cost is this over N.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class BroadcastBenchmark {
+    @Param({ "1", "16", "256" })
+    public int branches;
+
+    private RequestDispatcher dispatcher;
+    private Message update;
+
+    @Setup
+    public void setUp() {
+        dispatcher = new RequestDispatcher(new Inventory(Catalogue.seeded(16)));
+        for (int i = 0; i < branches; i++) {
+            new MemoryConnection(true).register(dispatcher);
+        }
+        Map<String, Integer> changed = new LinkedHashMap<>();
+        for (int i = 0; i < 4; i++) {
+            changed.put(Catalogue.item(i), 1000 + i);
+        }
+        update = new Message(Message.Type.UPDATE, "Server", null, changed, 1792000000000L << 16);
+    }
+
+    @Benchmark
+    public void broadcast() {
+        update.version++;
+        dispatcher.broadcast(update);
+    }
+}
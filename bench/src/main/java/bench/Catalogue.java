@@ -0,0 +1,35 @@
+package bench;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Seeded items named like the server's --seed-items, with stock that lasts
+// any benchmark run
+final class Catalogue {
+    static final int STOCK = Integer.MAX_VALUE / 2;
+    static final int MAX_ITEMS = 100000;
+
+    // Built once so picking an item in a benchmark does not format a string
+    private static final String[] NAMES = new String[MAX_ITEMS];
+
+    static {
+        for (int i = 0; i < MAX_ITEMS; i++) {
+            NAMES[i] = String.format("Item%06d", i);
+        }
+    }
+
+    private Catalogue() {
+    }
+
+    static String item(int i) {
+        return NAMES[i];
+    }
+
+    static Map<String, Integer> seeded(int count) {
+        Map<String, Integer> stock = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            stock.put(item(i), STOCK);
+        }
+        return stock;
+    }
+}
@@ -0,0 +1,100 @@
+package bench;
+
+import common.Message;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import server.Inventory;
+import server.RequestDispatcher;
+
+// Latency of one stock update reaching 1000 branches, each framing it with
+// the binary codec, while the branches are quiet and while they chat. The
+// update is published as a committed cluster change, so no order has to go
+// through mutual exclusion with every branch. Branches are spread over
+// CHANNELS chat channels. In the chatty group three threads each post a line
+// from a random branch to its channel every CHAT_PAUSE_NS, about 3000 lines
+// a second between them, delivered in batches on the chat lane. Compare the
+// updateWhileQuiet and updateWhileChatty percentiles; the chat method's own
+// times are mostly its pause. On fewer cores than threads the chat fan-out
+// takes CPU time from the update, so run this on at least four.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ChatLoadBenchmark {
+    private static final long CHAT_PAUSE_NS = 1_000_000;
+    private static final int CHANNELS = 50;
+
+    @Param({ "1000" })
+    public int branches;
+
+    private RequestDispatcher dispatcher;
+    private List<MemoryConnection> connected = new ArrayList<>();
+    private Map<String, Integer> delta = Map.of(Catalogue.item(0), 1);
+
+    // One chatting thread, posting as a random branch each time
+    @State(Scope.Thread)
+    public static class Chatter {
+        private SplittableRandom random = new SplittableRandom(7);
+        private long lines;
+    }
+
+    @Setup
+    public void setUp() {
+        dispatcher = new RequestDispatcher(new Inventory(Catalogue.seeded(16)));
+        for (int i = 0; i < branches; i++) {
+            MemoryConnection connection = new MemoryConnection(true);
+            connection.register(dispatcher);
+            dispatcher.dispatch(connection, new Message(Message.Type.SUBSCRIBE, "Branch" + i,
+                    "chat:" + channel(i), null, 0));
+            connected.add(connection);
+        }
+    }
+
+    private static String channel(int branch) {
+        return "channel" + branch % CHANNELS;
+    }
+
+    @Benchmark
+    @Group("quiet")
+    @GroupThreads(1)
+    public void updateWhileQuiet() {
+        dispatcher.applyCommitted(delta);
+    }
+
+    @Benchmark
+    @Group("chatty")
+    @GroupThreads(1)
+    public void updateWhileChatty() {
+        dispatcher.applyCommitted(delta);
+    }
+
+    @Benchmark
+    @Group("chatty")
+    @GroupThreads(3)
+    public void chat(Chatter chatter) {
+        int branch = chatter.random.nextInt(connected.size());
+        Message line = new Message(Message.Type.CHAT, "Branch" + branch, "line " + ++chatter.lines, null, 0);
+        line.item = channel(branch);
+        dispatcher.dispatch(connected.get(branch), line);
+        LockSupport.parkNanos(CHAT_PAUSE_NS);
+    }
+}
@@ -0,0 +1,331 @@
+package bench;
+
+import client.BranchClient;
+import client.ServerLink;
+import common.Message;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// Takes a replicated cluster through a leader failover under load, all on
+// this machine. The nodes are started as separate JVMs, each on its own data
+// directory, and branches connected to all of them keep WINDOW orders
+// outstanding each. A third of the way in the leader is killed outright, and
+// two thirds of the way in it is started again on its data directory.
+//
+// Afterwards every node has to report the same stock, and the stock taken
+// has to be at least what acknowledged orders were granted. An order whose
+// connection was lost may or may not have gone through, so it only counts
+// towards the most that may have been taken.
+//
+// Not a JMH benchmark, since it runs server JVMs of its own. Run it from the
+// benchmarks jar:
+//
+//   java -cp target/benchmarks.jar bench.ClusterFailoverTest [nodes] [branches] [seconds] [server option...]
+public class ClusterFailoverTest {
+    private static final int BASE_PORT = 7300;
+    private static final int BASE_RAFT_PORT = 7400;
+    private static final int WINDOW = 8;
+    private static final int SEED_ITEMS = 100;
+    private static final long CONVERGE_MS = 15000;
+
+    private int nodeCount;
+    private List<String> serverOptions;
+    private String spec;
+    private Path dataDir;
+    private Process[] nodes;
+    // Newest leader announced in the nodes' output, and its term; guarded by this
+    private int leader = -1;
+    private long leaderTerm = -1;
+
+    private List<BranchClient> branches = new ArrayList<>();
+    private AtomicLong sent = new AtomicLong();
+    private AtomicLong acknowledged = new AtomicLong();
+    private AtomicLong unknown = new AtomicLong();
+    private AtomicLong denied = new AtomicLong();
+
+    public ClusterFailoverTest(int nodeCount, List<String> serverOptions) throws IOException {
+        this.nodeCount = nodeCount;
+        this.serverOptions = serverOptions;
+        this.nodes = new Process[nodeCount];
+        StringBuilder members = new StringBuilder();
+        for (int i = 0; i < nodeCount; i++) {
+            members.append(i == 0 ? "" : ",").append("n").append(i).append("@localhost:").append(BASE_PORT + i)
+                    .append(':').append(BASE_RAFT_PORT + i);
+        }
+        spec = members.toString();
+        dataDir = Files.createTempDirectory("cluster");
+    }
+
+    private void startNode(int i) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> command = new ArrayList<>(List.of(java, "-cp", System.getProperty("java.class.path"),
+                "server.ServerMain", "--cluster=" + spec, "--node-id=n" + i,
+                "--data-dir=" + dataDir.resolve("n" + i), "--seed-items=" + SEED_ITEMS));
+        command.addAll(serverOptions);
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        Process node = builder.start();
+        nodes[i] = node;
+        Thread reader = new Thread(() -> watchOutput(node), "n" + i + "-output");
+        reader.setDaemon(true);
+        reader.start();
+        waitForPort(BASE_PORT + i);
+    }
+
+    // Keeps the node's output drained and notes "Raft node nX is leader for term T"
+    private void watchOutput(Process node) {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(node.getInputStream()))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int at = line.indexOf(" is leader for term ");
+                if (line.startsWith("Raft node n") && at > 0) {
+                    int id = Integer.parseInt(line.substring("Raft node n".length(), at));
+                    long term = Long.parseLong(line.substring(at + " is leader for term ".length()).trim());
+                    synchronized (this) {
+                        if (term > leaderTerm) {
+                            leader = id;
+                            leaderTerm = term;
+                            notifyAll();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // The node is gone
+        }
+    }
+
+    // Waits for a leader elected after the given term and returns it
+    private synchronized int waitForLeader(long afterTerm, long timeoutMs) throws Exception {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (leaderTerm <= afterTerm) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                throw new IOException("No leader elected after term " + afterTerm);
+            }
+            wait(left);
+        }
+        return leader;
+    }
+
+    private synchronized int getLeader() {
+        return leader;
+    }
+
+    private synchronized long getLeaderTerm() {
+        return leaderTerm;
+    }
+
+    private static void waitForPort(int port) throws Exception {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("Node on port " + port + " did not start");
+    }
+
+    private void connectBranches(int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            BranchClient branch = new BranchClient("Branch" + i);
+            branch.connect("localhost", BASE_PORT + i % nodeCount);
+            for (int n = 0; n < nodeCount; n++) {
+                branch.addServer("localhost:" + (BASE_PORT + n));
+            }
+            branch.listen();
+            branches.add(branch);
+        }
+    }
+
+    // Keeps every branch ordering until the end time
+    private List<Thread> startOrders(long end) {
+        List<Thread> senders = new ArrayList<>();
+        for (int i = 0; i < branches.size(); i++) {
+            BranchClient branch = branches.get(i);
+            Semaphore window = new Semaphore(WINDOW);
+            Random random = new Random(i);
+            Thread sender = new Thread(() -> {
+                try {
+                    while (System.nanoTime() < end) {
+                        if (!window.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                            continue;
+                        }
+                        sent.incrementAndGet();
+                        String item = String.format("Item%06d", random.nextInt(SEED_ITEMS));
+                        branch.replenish(item, 1).whenComplete((result, e) -> {
+                            if (e != null) {
+                                unknown.incrementAndGet();
+                            } else if (result.isApproved()) {
+                                result.getGranted().values().forEach(acknowledged::addAndGet);
+                            } else {
+                                denied.incrementAndGet();
+                            }
+                            window.release();
+                        });
+                    }
+                    // Every answer in, or failed with its connection
+                    window.tryAcquire(WINDOW, 10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            sender.start();
+            senders.add(sender);
+        }
+        return senders;
+    }
+
+    // The node's stock as it would send it to a new branch; null if it cannot be reached
+    private static Map<String, Integer> stockOf(int port) {
+        try (ServerLink link = ServerLink.open("localhost", port, new byte[] { 2 })) {
+            link.send(new Message(Message.Type.SYNC, "failover-test", null, null, 0));
+            while (true) {
+                Message msg = link.read();
+                if (msg.type == Message.Type.SNAPSHOT) {
+                    return msg.inventory;
+                }
+                if (msg.type == Message.Type.REQUEST) {
+                    link.send(new Message(Message.Type.REPLY, "failover-test", msg.item, 0, 0));
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Stock every node agrees on, or null if they still differ after CONVERGE_MS
+    private Map<String, Integer> convergedStock() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + CONVERGE_MS;
+        while (true) {
+            Map<String, Integer> first = stockOf(BASE_PORT);
+            boolean same = first != null;
+            for (int i = 1; same && i < nodeCount; i++) {
+                same = first.equals(stockOf(BASE_PORT + i));
+            }
+            if (same) {
+                return first;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                for (int i = 0; i < nodeCount; i++) {
+                    System.out.println("n" + i + ": " + total(stockOf(BASE_PORT + i)) + " units");
+                }
+                return null;
+            }
+            Thread.sleep(250);
+        }
+    }
+
+    private static long total(Map<String, Integer> stock) {
+        long total = 0;
+        if (stock != null) {
+            for (int quantity : stock.values()) {
+                total += quantity;
+            }
+        }
+        return total;
+    }
+
+    private boolean run(int branchCount, int seconds) throws Exception {
+        for (int i = 0; i < nodeCount; i++) {
+            startNode(i);
+        }
+        int first = waitForLeader(-1, 10000);
+        System.out.println("Leader is n" + first);
+        // The leader's no-op entry has to be applied before the stock is read
+        Thread.sleep(500);
+        long before = total(stockOf(BASE_PORT + first));
+        connectBranches(branchCount);
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        List<Thread> senders = startOrders(end);
+
+        Thread.sleep(seconds * 1000L / 3);
+        long term = getLeaderTerm();
+        int killed = getLeader();
+        long killedAt = System.nanoTime();
+        nodes[killed].destroyForcibly().waitFor();
+        System.out.println("Killed leader n" + killed + " after " + sent.get() + " orders");
+        int next = waitForLeader(term, 10000);
+        System.out.printf("n%d took over in %.0f ms%n", next, (System.nanoTime() - killedAt) / 1e6);
+
+        long restartAt = start + TimeUnit.SECONDS.toNanos(seconds) * 2 / 3;
+        Thread.sleep(Math.max(0, TimeUnit.NANOSECONDS.toMillis(restartAt - System.nanoTime())));
+        startNode(killed);
+        System.out.println("Restarted n" + killed);
+
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        Map<String, Integer> after = convergedStock();
+        long taken = before - total(after);
+        System.out.printf("orders=%d acknowledged=%d denied=%d unknown=%d taken=%d%n", sent.get(),
+                acknowledged.get(), denied.get(), unknown.get(), taken);
+        if (after == null) {
+            System.out.println("FAIL: nodes ended with different stock");
+            return false;
+        }
+        if (taken < acknowledged.get()) {
+            System.out.println("FAIL: " + (acknowledged.get() - taken) + " acknowledged units are not taken");
+            return false;
+        }
+        if (taken > acknowledged.get() + unknown.get()) {
+            System.out.println("FAIL: " + (taken - acknowledged.get() - unknown.get())
+                    + " units taken by no order");
+            return false;
+        }
+        System.out.println("OK: " + nodeCount + " nodes agree, no acknowledged order lost");
+        return true;
+    }
+
+    private void stop() throws Exception {
+        for (BranchClient branch : branches) {
+            branch.close();
+        }
+        for (Process node : nodes) {
+            if (node != null) {
+                node.destroy();
+                node.waitFor();
+            }
+        }
+        try (Stream<Path> files = Files.walk(dataDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int branchCount = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 9;
+        List<String> serverOptions = new ArrayList<>();
+        for (int i = 3; i < args.length; i++) {
+            serverOptions.add(args[i]);
+        }
+
+        ClusterFailoverTest test = new ClusterFailoverTest(nodeCount, serverOptions);
+        boolean ok;
+        try {
+            ok = test.run(branchCount, seconds);
+        } finally {
+            test.stop();
+        }
+        System.exit(ok ? 0 : 1);
+    }
+}
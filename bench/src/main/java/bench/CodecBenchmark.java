@@ -0,0 +1,82 @@
+package bench;
+
+import common.Message;
+import common.MessageCodec;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Encoding a message and decoding it again, with separate codec instances
+// for the two ends as on a real connection, so the binary codec's string
+// interning is warm after the first round.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CodecBenchmark {
+    @Param({ "BINARY", "JAVA" })
+    public String codec;
+
+    // An order, an UPDATE of four items and a batch order of eight lines
+    @Param({ "REPLENISH", "UPDATE", "BATCH_REPLENISH" })
+    public String type;
+
+    private MessageCodec sender;
+    private MessageCodec receiver;
+    private Message msg;
+
+    @Setup
+    public void setUp() {
+        byte id = "BINARY".equals(codec) ? MessageCodec.BINARY : MessageCodec.JAVA;
+        sender = MessageCodec.create(id);
+        receiver = MessageCodec.create(id);
+        switch (type) {
+            case "UPDATE":
+                msg = new Message(Message.Type.UPDATE, "Server", null, items(4), 1792000000000L << 16);
+                msg.version = 123456;
+                break;
+            case "BATCH_REPLENISH":
+                msg = new Message(Message.Type.BATCH_REPLENISH, "Branch1", null, null, 1792000000000L << 16);
+                msg.lines = items(8);
+                msg.correlationId = 42;
+                break;
+            default:
+                msg = new Message(Message.Type.REPLENISH, "Branch1", "Item000042", 5, 1792000000000L << 16);
+                msg.correlationId = 42;
+                break;
+        }
+    }
+
+    private static Map<String, Integer> items(int count) {
+        Map<String, Integer> items = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            items.put(String.format("Item%06d", i * 37), 100 + i);
+        }
+        return items;
+    }
+
+    @Benchmark
+    public Message roundTrip() throws IOException {
+        byte[] payload = sender.encode(msg);
+        return receiver.decode(payload, 0, payload.length);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return sender.encode(msg);
+    }
+}
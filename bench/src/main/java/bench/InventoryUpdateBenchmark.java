@@ -0,0 +1,94 @@
+package bench;
+
+import client.StockMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Applying an incoming UPDATE to a branch's copy of the stock. stockMap is
+// what BranchClient does now: the changed items written in place into a
+// StockMap. hashMapRebuild is what it used to do: clear a HashMap and fill it
+// again from the full inventory. hashMapDelta applies the same delta to a
+// HashMap, to tell the map apart from the delta protocol.
+//
+// Run with -prof gc to compare allocation per update.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class InventoryUpdateBenchmark {
+    private static final int DELTAS = 64;
+
+    @Param({ "16", "1024" })
+    public int catalogue;
+
+    private StockMap stockMap;
+    private BiConsumer<String, Integer> putEntry;
+    private Map<String, Integer> hashMap = new HashMap<>();
+    private Map<String, Integer> full;
+    // Decoded UPDATEs of four items each, boxed as the codec hands them over
+    private Map<String, Integer>[] deltas;
+    private int next;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        full = new HashMap<>();
+        for (int i = 0; i < catalogue; i++) {
+            full.put(Catalogue.item(i), 1000);
+        }
+        stockMap = new StockMap(catalogue);
+        putEntry = stockMap::put;
+        full.forEach(putEntry);
+        hashMap.putAll(full);
+        SplittableRandom random = new SplittableRandom(42);
+        deltas = new Map[DELTAS];
+        for (int d = 0; d < DELTAS; d++) {
+            deltas[d] = new LinkedHashMap<>();
+            for (int i = 0; i < 4; i++) {
+                deltas[d].put(Catalogue.item(random.nextInt(catalogue)), random.nextInt(1000));
+            }
+        }
+    }
+
+    private Map<String, Integer> nextDelta() {
+        next = (next + 1) & (DELTAS - 1);
+        return deltas[next];
+    }
+
+    @Benchmark
+    public StockMap stockMap() {
+        nextDelta().forEach(putEntry);
+        return stockMap;
+    }
+
+    @Benchmark
+    public Map<String, Integer> hashMapDelta() {
+        hashMap.putAll(nextDelta());
+        return hashMap;
+    }
+
+    @Benchmark
+    public Map<String, Integer> hashMapRebuild() {
+        full.putAll(nextDelta());
+        hashMap.clear();
+        hashMap.putAll(full);
+        return hashMap;
+    }
+}
@@ -0,0 +1,109 @@
+package bench;
+
+import common.BinaryCodec;
+import common.FrameCodec;
+import common.Message;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import server.Connection;
+import server.OutboundQueue;
+import server.RequestDispatcher;
+
+// A branch connection that stays in memory. Everything sent to it goes
+// through a real OutboundQueue; with encode set it is then framed with the
+// binary codec into a byte buffer, the way ClientHandler's writer would.
+// Answers to orders sent with expect() complete their futures, and when
+// registered with a dispatcher it answers mutual exclusion REQUESTs the way
+// a branch does, from another thread.
+class MemoryConnection implements Connection {
+    // Not the common pool, which starts a thread per task on a one-CPU machine
+    private static final ExecutorService REPLIES = Executors.newVirtualThreadPerTaskExecutor();
+
+    private String clientId;
+    private OutboundQueue outbound = new OutboundQueue(4096, OutboundQueue.Policy.DROP_OLDEST);
+    private boolean encode;
+    private BinaryCodec codec = new BinaryCodec();
+    private ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+    private DataOutputStream out = new DataOutputStream(bytes);
+    private List<Message> batch = new ArrayList<>();
+    private Map<Long, CompletableFuture<Message>> waiting = new ConcurrentHashMap<>();
+    private RequestDispatcher dispatcher;
+
+    MemoryConnection(boolean encode) {
+        this.encode = encode;
+    }
+
+    void register(RequestDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+        dispatcher.register(this);
+    }
+
+    CompletableFuture<Message> expect(long correlationId) {
+        CompletableFuture<Message> answer = new CompletableFuture<>();
+        waiting.put(correlationId, answer);
+        return answer;
+    }
+
+    @Override
+    public void send(Message msg) {
+        if (msg.correlationId != 0) {
+            CompletableFuture<Message> answer = waiting.remove(msg.correlationId);
+            if (answer != null) {
+                answer.complete(msg);
+                return;
+            }
+        }
+        if (msg.type == Message.Type.REQUEST && dispatcher != null) {
+            Message reply = new Message(Message.Type.REPLY, clientId, msg.item, 0, msg.lamportTimestamp);
+            REPLIES.execute(() -> dispatcher.dispatch(this, reply));
+            return;
+        }
+        outbound.offer(msg);
+        // One writer at a time, like the connection's writer thread
+        synchronized (this) {
+            batch.clear();
+            outbound.drainTo(batch, Integer.MAX_VALUE);
+            if (!encode) {
+                return;
+            }
+            try {
+                for (Message queued : batch) {
+                    FrameCodec.appendFrame(out, codec.encode(queued));
+                }
+                out.flush();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            if (bytes.size() > 1 << 20) {
+                bytes.reset();
+            }
+        }
+    }
+
+    @Override
+    public String getClientId() {
+        return clientId;
+    }
+
+    @Override
+    public void setClientId(String clientId) {
+        this.clientId = clientId;
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
+    @Override
+    public void close() {
+    }
+}
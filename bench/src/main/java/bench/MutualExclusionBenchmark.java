@@ -0,0 +1,132 @@
+package bench;
+
+import common.Message;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.Connection;
+import server.Maekawa;
+import server.MutualExclusion;
+import server.OutboundQueue;
+import server.RicartAgrawala;
+import server.SuzukiKasami;
+
+// Entering and leaving the critical section on one node while the other
+// nodes only take part, as the server uses it. Nodes are in this JVM and
+// every node handles its messages on its own thread, in order per sender,
+// so what is measured is the algorithms' own work and message count rather
+// than a network.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MutualExclusionBenchmark {
+    private static final String RESOURCE = "Apples";
+
+    @Param({ "RICART_AGRAWALA", "MAEKAWA", "SUZUKI_KASAMI" })
+    public MutualExclusion.Algorithm algorithm;
+
+    @Param({ "2", "8", "32" })
+    public int nodes;
+
+    private List<MutualExclusion> members = new ArrayList<>();
+    private List<ExecutorService> inboxes = new ArrayList<>();
+
+    // Hands a message to the target node's thread
+    private static class Link implements Connection {
+        private MutualExclusion target;
+        private ExecutorService inbox;
+        private String clientId;
+
+        Link(MutualExclusion target, ExecutorService inbox) {
+            this.target = target;
+            this.inbox = inbox;
+            this.clientId = target.getNodeId();
+        }
+
+        @Override
+        public void send(Message msg) {
+            inbox.execute(() -> target.handleMessage(msg.sender, msg));
+        }
+
+        @Override
+        public String getClientId() {
+            return clientId;
+        }
+
+        @Override
+        public void setClientId(String clientId) {
+            this.clientId = clientId;
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < nodes; i++) {
+            String id = String.format("N%05d", i);
+            switch (algorithm) {
+                case MAEKAWA:
+                    members.add(new Maekawa(id));
+                    break;
+                case SUZUKI_KASAMI:
+                    members.add(new SuzukiKasami(id, i == 0));
+                    break;
+                default:
+                    members.add(new RicartAgrawala(id));
+                    break;
+            }
+            inboxes.add(Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "node-" + id);
+                t.setDaemon(true);
+                return t;
+            }));
+        }
+        for (MutualExclusion member : members) {
+            for (int j = 0; j < nodes; j++) {
+                MutualExclusion other = members.get(j);
+                if (other != member) {
+                    member.addNode(other.getNodeId(), new Link(other, inboxes.get(j)));
+                }
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (ExecutorService inbox : inboxes) {
+            inbox.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    public void enterAndLeave() {
+        MutualExclusion node = members.get(0);
+        node.requestCS(RESOURCE).join();
+        node.releaseCS(RESOURCE);
+    }
+}
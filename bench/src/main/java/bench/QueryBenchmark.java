@@ -0,0 +1,70 @@
+package bench;
+
+import common.Message;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import server.Inventory;
+import server.RequestDispatcher;
+
+// QUERY throughput while orders keep changing the stock. Readers are served
+// from the published snapshot and should scale with cores independently of
+// the writer; vary the reader count with -tg, e.g. -tg 1,1 -tg 2,1 -tg 4,1
+// (readers first, then the one ordering thread).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class QueryBenchmark {
+    @Param({ "10000" })
+    public int items;
+
+    private RequestDispatcher dispatcher;
+
+    @Setup
+    public void setUp() {
+        dispatcher = new RequestDispatcher(new Inventory(Catalogue.seeded(items)));
+    }
+
+    @Benchmark
+    @Group("readWhileOrdering")
+    @GroupThreads(4)
+    public Message query(Branch branch) {
+        return branch.call(dispatcher, new Message(Message.Type.QUERY, "Bench", branch.item(items), 0, 0));
+    }
+
+    @Benchmark
+    @Group("readWhileOrdering")
+    @GroupThreads(1)
+    public Message replenish(Branch branch) {
+        return branch.call(dispatcher, new Message(Message.Type.REPLENISH, "Bench", branch.item(items), 1, 0));
+    }
+
+    // The prefix range Item0001.. covers 1000 items of the default catalogue
+    @Benchmark
+    @Group("rangeWhileOrdering")
+    @GroupThreads(4)
+    public Message range(Branch branch) {
+        return branch.call(dispatcher, new Message(Message.Type.QUERY, "Bench", "Item0001", null, 0));
+    }
+
+    @Benchmark
+    @Group("rangeWhileOrdering")
+    @GroupThreads(1)
+    public Message rangeOrders(Branch branch) {
+        return branch.call(dispatcher, new Message(Message.Type.REPLENISH, "Bench", branch.item(items), 1, 0));
+    }
+}
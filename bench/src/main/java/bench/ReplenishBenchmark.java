@@ -0,0 +1,59 @@
+package bench;
+
+import common.Message;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import server.Inventory;
+import server.RequestDispatcher;
+
+// REPLENISH orders through the dispatcher the way ClientHandler hands them
+// over, from several threads at once: mutual exclusion on the item, the
+// compare-and-set on its stock, the UPDATE to every branch and the answer.
+// With one item every order contends for the same critical section; with
+// more they mostly go ahead side by side. Connected branches answer the
+// server's Ricart-Agrawala REQUESTs from other threads.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@Threads(4)
+public class ReplenishBenchmark {
+    @Param({ "1", "1000" })
+    public int items;
+
+    @Param({ "0", "8" })
+    public int branches;
+
+    private RequestDispatcher dispatcher;
+    private List<MemoryConnection> connected = new ArrayList<>();
+
+    @Setup
+    public void setUp() {
+        dispatcher = new RequestDispatcher(new Inventory(Catalogue.seeded(items)));
+        for (int i = 0; i < branches; i++) {
+            MemoryConnection connection = new MemoryConnection(false);
+            connection.register(dispatcher);
+            connected.add(connection);
+        }
+    }
+
+    @Benchmark
+    public Message replenish(Branch branch) {
+        return branch.call(dispatcher, new Message(Message.Type.REPLENISH, "Bench", branch.item(items), 1, 0));
+    }
+}
@@ -0,0 +1,193 @@
+package bench;
+
+import client.BranchClient;
+import client.StockMap;
+import common.Message;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Measures order throughput against a sharded warehouse as it grows from 1 to
+// maxShards shards, all on this machine. For every size the shards are started
+// as separate JVMs with a seeded catalogue, each branch keeps WINDOW batch
+// orders outstanding, and completed orders per second are counted, first for
+// orders of one item and then for orders of two items, which mostly span
+// shards and so take the PREPARE/COMMIT path.
+//
+// Not a JMH benchmark, since every size needs its own set of server JVMs. Run
+// it from the benchmarks jar:
+//
+//   java -cp target/benchmarks.jar bench.ShardLoadTest [maxShards] [branches] [seconds] [server option...]
+public class ShardLoadTest {
+    private static final int BASE_PORT = 7100;
+    private static final int WINDOW = 32;
+    private static final int SEED_ITEMS = 10000;
+
+    private List<Process> shards = new ArrayList<>();
+    private List<BranchClient> branches = new ArrayList<>();
+    private List<Semaphore> windows = new ArrayList<>();
+    private AtomicLong completed = new AtomicLong();
+    private AtomicLong denied = new AtomicLong();
+
+    private void startShards(int count, List<String> serverOptions) throws Exception {
+        StringBuilder spec = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            spec.append(i == 0 ? "" : ",").append("s").append(i).append("@localhost:").append(BASE_PORT + i);
+        }
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        for (int i = 0; i < count; i++) {
+            List<String> command = new ArrayList<>(List.of(java, "-cp", System.getProperty("java.class.path"),
+                    "server.ServerMain", "--shards=" + spec, "--shard-id=s" + i, "--seed-items=" + SEED_ITEMS));
+            command.addAll(serverOptions);
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            shards.add(builder.start());
+        }
+        for (int i = 0; i < count; i++) {
+            waitForPort(BASE_PORT + i);
+        }
+    }
+
+    private static void waitForPort(int port) throws Exception {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("Shard on port " + port + " did not start");
+    }
+
+    private void connectBranches(int count, int shardCount) throws Exception {
+        for (int i = 0; i < count; i++) {
+            BranchClient branch = new BranchClient("Branch" + i);
+            Semaphore window = new Semaphore(WINDOW);
+            branch.connect("localhost", BASE_PORT + i % shardCount);
+            branch.setMessageCallback(new BranchClient.MessageCallback() {
+                @Override
+                public void onInventoryUpdate(StockMap inventory, Collection<String> changed) {
+                }
+
+                @Override
+                public void onChatMessage(String sender, String message) {
+                }
+
+                @Override
+                public void onRequestDenied(String reason) {
+                    denied.incrementAndGet();
+                    window.release();
+                }
+
+                @Override
+                public void onConnectionStateChanged(boolean online, String status) {
+                }
+
+                @Override
+                public void onBatchResult(String summary, Map<String, Integer> granted) {
+                    completed.incrementAndGet();
+                    window.release();
+                }
+            });
+            branch.listen();
+            branches.add(branch);
+            windows.add(window);
+        }
+        // Let every branch hear the ring and open its shard links
+        Thread.sleep(500);
+    }
+
+    // Orders per second over the given time, with lines items per order
+    private double measure(int seconds, int lines) throws Exception {
+        List<Thread> senders = new ArrayList<>();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        completed.set(0);
+        long start = System.nanoTime();
+        for (int i = 0; i < branches.size(); i++) {
+            BranchClient branch = branches.get(i);
+            Semaphore window = windows.get(i);
+            Random random = new Random(i);
+            Thread sender = new Thread(() -> {
+                try {
+                    while (System.nanoTime() < end) {
+                        if (!window.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                            continue;
+                        }
+                        Map<String, Integer> order = new LinkedHashMap<>();
+                        while (order.size() < lines) {
+                            order.put(String.format("Item%06d", random.nextInt(SEED_ITEMS)), 1);
+                        }
+                        branch.requestReplenishment(order, Message.FillMode.ALL_OR_NOTHING);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            sender.start();
+            senders.add(sender);
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        double rate = completed.get() / elapsed;
+        // Drain what is still outstanding before the next measurement
+        for (Semaphore window : windows) {
+            window.tryAcquire(WINDOW, 10, TimeUnit.SECONDS);
+            window.release(WINDOW);
+        }
+        return rate;
+    }
+
+    private void stop() throws InterruptedException {
+        for (BranchClient branch : branches) {
+            branch.close();
+        }
+        for (Process shard : shards) {
+            shard.destroy();
+        }
+        for (Process shard : shards) {
+            shard.waitFor();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxShards = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int branchCount = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        List<String> serverOptions = new ArrayList<>();
+        for (int i = 3; i < args.length; i++) {
+            serverOptions.add(args[i]);
+        }
+
+        System.out.printf("%6s %8s %14s %14s %8s%n", "shards", "branches", "1-item ord/s", "2-item ord/s",
+                "denied");
+        for (int shardCount = 1; shardCount <= maxShards; shardCount++) {
+            ShardLoadTest test = new ShardLoadTest();
+            try {
+                test.startShards(shardCount, serverOptions);
+                test.connectBranches(branchCount, shardCount);
+                // Warm up, then measure
+                test.measure(1, 1);
+                double single = test.measure(seconds, 1);
+                double cross = test.measure(seconds, 2);
+                System.out.printf("%6d %8d %14.0f %14.0f %8d%n", shardCount, branchCount, single, cross,
+                        test.denied.get());
+            } finally {
+                test.stop();
+            }
+        }
+        System.exit(0);
+    }
+}
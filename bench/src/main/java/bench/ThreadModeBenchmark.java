@@ -0,0 +1,108 @@
+package bench;
+
+import client.BranchClient;
+import client.OrderResult;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import server.ServerConfig;
+import server.WarehouseServer;
+
+// Replenish latency over loopback TCP against a server running its
+// connections on platform threads (BLOCKING), virtual threads (VIRTUAL) or
+// the NIO reactor, with a number of branches connected. Every order makes the
+// server ask each connected branch for the item, so more branches means more
+// work per order as well as more connections to carry.
+//
+// The server cannot be stopped, so every parameter combination gets its own JVM.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ThreadModeBenchmark {
+    private static final int ITEMS = 1000;
+
+    @Param({ "BLOCKING", "VIRTUAL", "NIO" })
+    public String mode;
+
+    @Param({ "16", "256" })
+    public int branches;
+
+    private List<BranchClient> clients = new ArrayList<>();
+    private AtomicInteger nextClient = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Orderer {
+        private BranchClient client;
+        private int next;
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        ServerConfig config = ServerConfig.fromArgs(new String[] { "--port=" + port, "--mode=" + mode,
+                "--seed-items=" + ITEMS, "--seed-quantity=" + Catalogue.STOCK });
+        Thread server = new Thread(new WarehouseServer(config)::start, "warehouse-server");
+        server.setDaemon(true);
+        server.start();
+        waitForPort(port);
+        for (int i = 0; i < branches; i++) {
+            BranchClient client = new BranchClient("Branch" + i);
+            client.connect("localhost", port);
+            client.listen();
+            clients.add(client);
+        }
+        System.out.println("\n" + Thread.activeCount() + " live platform threads with " + branches
+                + " branches connected");
+    }
+
+    private static void waitForPort(int port) throws Exception {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket socket = new Socket("localhost", port)) {
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("Server on port " + port + " did not start");
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (BranchClient client : clients) {
+            client.close();
+        }
+    }
+
+    @Benchmark
+    public OrderResult replenish(Orderer orderer) {
+        if (orderer.client == null) {
+            orderer.client = clients.get(nextClient.getAndIncrement() % clients.size());
+        }
+        orderer.next = (orderer.next + 7) % ITEMS;
+        return orderer.client.replenish(Catalogue.item(orderer.next), 1).join();
+    }
+}
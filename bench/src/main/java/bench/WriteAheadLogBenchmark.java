@@ -0,0 +1,64 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import server.SnapshotStore;
+import server.WriteAheadLog;
+
+// Durable appends from many order threads at once: GROUP syncs once for
+// everything queued while the previous sync ran, EACH syncs every record.
+// Numbers depend on the disk; run it on the one the server will use,
+// -Djava.io.tmpdir pointing there.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(32)
+public class WriteAheadLogBenchmark {
+    @Param({ "GROUP", "EACH" })
+    public WriteAheadLog.SyncMode sync;
+
+    private Path dir;
+    private WriteAheadLog wal;
+    private Map<String, Integer> delta = Map.of("Apples", -1);
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("wal-bench");
+        SnapshotStore store = SnapshotStore.open(dir, Map.of("Apples", Catalogue.STOCK));
+        wal = WriteAheadLog.open(dir, sync, 10000, store);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        wal.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public long append() throws IOException {
+        return wal.append(delta);
+    }
+}
@@ -1,20 +1,166 @@
 package client;
 
+import common.HybridClock;
 import common.Message;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import common.MessageCodec;
+import common.ShardRing;
+import common.Topics;
+import common.VectorClock;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
+// A branch's connection to the warehouse. Against a replicated cluster the
+// branch reads (UPDATE/SNAPSHOT) from whichever node it connected to and sends
+// orders there too; a follower answers an order with REDIRECT and the branch
+// opens a second link to the leader for its orders from then on. If the node
+// it reads from goes away it moves to another known node and resyncs.
+//
+// Against a sharded warehouse the server sends its ring (ROUTES) on connect.
+// The branch then keeps a link to every shard, reads each shard's items from
+// it and sends every order straight to the shard owning its items.
+//
+// Every order carries a correlation id that the server echoes on its answer,
+// so any number of orders can be in flight at once; replenish() returns a
+// future per order and requestReplenishment() reports to the callback.
+// query() and queryPrefix() read stock levels on demand without ordering.
+//
+// With an OrderQueue every order is written to disk before it is sent and
+// carries an idempotency key. If the connection drops the branch goes
+// offline: orders are checked against its last view of stock and queued,
+// and it reconnects with exponential backoff. Back on the same server it
+// resumes its session and is sent only the updates and chat it missed, then
+// resends every order still unanswered; the server answers any it had
+// already taken as it did the first time.
+//
+// subscribe() narrows the stock updates and chat the server sends to some
+// items, categories and chat channels; by default a branch gets everything.
 public class BranchClient {
+    // Held chat beyond this means a message it waits for was lost, e.g. in a failover
+    private static final int MAX_HELD_CHATS = 64;
+    // Events held during a resume beyond this are dropped for a snapshot
+    private static final int MAX_HELD_EVENTS = 4096;
+    private static final long RECONNECT_MIN_MS = 250;
+    private static final long RECONNECT_MAX_MS = 30000;
+
+    // A batch order whose lines live on several shards. PARTIAL batches go to
+    // each shard as their own BATCH_REPLENISH and the results are merged.
+    // ALL_OR_NOTHING ones are reserved on every shard with PREPARE and only
+    // committed once every shard has voted yes. Guarded by its own monitor.
+    private static class SplitBatch {
+        private long id;
+        private CompletableFuture<OrderResult> result = new CompletableFuture<>();
+        // Every shard link a part went out on
+        private List<ServerLink> links = new ArrayList<>();
+        private Map<String, Integer> lines;
+        private Message.FillMode fillMode;
+        private boolean committing;
+        // Shards yet to answer the current phase
+        private int waiting;
+        private boolean refused;
+        private List<ServerLink> prepared = new ArrayList<>();
+        private Map<String, Integer> granted = new HashMap<>();
+        private String failure;
+        // Idempotency key of a queued batch; each PARTIAL part is sent with it
+        // and its shard. PREPAREs carry none, since a resent one reserves anew.
+        private String orderKey;
+
+        SplitBatch(long id, Map<String, Integer> lines, Message.FillMode fillMode) {
+            this.id = id;
+            this.lines = lines;
+            this.fillMode = fillMode;
+        }
+    }
+
+    // An order waiting for its answer, and the link it went out on
+    private static class PendingOrder {
+        private CompletableFuture<OrderResult> result = new CompletableFuture<>();
+        private volatile ServerLink link;
+
+        PendingOrder(ServerLink link) {
+            this.link = link;
+        }
+    }
+
+    // A QUERY sent to one or more shards, answered once all have replied
+    private static class PendingQuery {
+        private CompletableFuture<Map<String, Integer>> result = new CompletableFuture<>();
+        private Map<String, Integer> found = new TreeMap<>();
+        private Set<ServerLink> links = new HashSet<>();
+        private int waiting;
+    }
+
+    // A HISTORY request, answered by the server the branch reads from
+    private static class PendingHistory {
+        private CompletableFuture<List<Message>> result = new CompletableFuture<>();
+        private ServerLink link;
+
+        PendingHistory(ServerLink link) {
+            this.link = link;
+        }
+    }
+
     private String branchName;
-    private HashMap<String, Integer> localInventory = new HashMap<>();
-    private Socket socket;
-    ObjectOutputStream out;
-    private ObjectInputStream in;
+    // Written by the listener thread, read by the GUI; guarded by its own monitor
+    private StockMap localInventory = new StockMap();
+    // Created once so applying a delta does not allocate a lambda or iterator
+    private BiConsumer<String, Integer> putEntry = localInventory::put;
+    // Where inventory comes from, and orders unless a leader link is open
+    private volatile ServerLink link;
+    // Cluster leader orders go to after a REDIRECT; null otherwise
+    private volatile ServerLink leaderLink;
+    // Server addresses to fail over to, as host:port; guarded by its own monitor
+    private Set<String> servers = new LinkedHashSet<>();
+    // Sharded warehouse: the newest ring heard of and a link per shard
+    private volatile ShardRing ring;
+    private Map<String, ServerLink> shardLinks = new ConcurrentHashMap<>();
+    private Map<Long, SplitBatch> splitBatches = new ConcurrentHashMap<>();
+    private AtomicLong nextTransactionId = new AtomicLong();
+    private Map<Long, PendingOrder> pendingOrders = new ConcurrentHashMap<>();
+    private Map<Long, PendingQuery> pendingQueries = new ConcurrentHashMap<>();
+    private Map<Long, PendingHistory> pendingHistory = new ConcurrentHashMap<>();
+    private AtomicLong nextCorrelationId = new AtomicLong();
+    // Codecs offered to the server on connect, most preferred first
+    private byte[] offeredCodecs = { MessageCodec.BINARY, MessageCodec.JAVA };
     private MessageCallback callback;
-    private LamportClock lamportClock = new LamportClock();
+    private HybridClock clock = new HybridClock();
+    // Delivered chat per channel when chat is kept in causal order, else null
+    private volatile Map<String, VectorClock> chatClocks;
+    // Chat that arrived before something it depends on; guarded by itself
+    private List<Message> heldChats = new ArrayList<>();
+    private volatile boolean closed;
+    // What the branch subscribed to; null for everything
+    private volatile Topics topics;
+    // Unanswered orders on disk; null unless setOrderQueue() was called
+    private OrderQueue orderQueue;
+    // Futures of queued orders by sequence number; none for orders queued before a restart
+    private Map<Long, CompletableFuture<OrderResult>> queuedResults = new ConcurrentHashMap<>();
+    // Queued orders sent on a link that has not failed yet
+    private Set<Long> inFlight = ConcurrentHashMap.newKeySet();
+    private AtomicBoolean retryScheduled = new AtomicBoolean();
+    private AtomicInteger retries = new AtomicInteger();
+    // Set while the link the branch reads from is down; both guarded by queuedResults
+    private volatile boolean offline;
+    // Stock as last seen before going offline, less the orders queued since
+    private volatile Inventory offlineStock;
 
     public BranchClient(String branchName) {
         this.branchName = branchName;
@@ -24,53 +170,1112 @@ public class BranchClient {
     }
 
     public void connect(String host, int port) throws Exception {
-        socket = new Socket(host, port);
-        out = new ObjectOutputStream(socket.getOutputStream());
-        in = new ObjectInputStream(socket.getInputStream());
+        link = ServerLink.open(host, port, offeredCodecs);
+        addServer(link.getAddress());
+    }
+
+    // Another cluster node, host:port, to read from if the current one fails
+    public void addServer(String address) {
+        synchronized (servers) {
+            servers.add(address);
+        }
+    }
+
+    public void send(Message msg) throws IOException {
+        link.send(msg);
+    }
+
+    public void sendChat(String text) throws IOException {
+        sendChat(null, text);
+    }
+
+    // channel null for the general channel
+    public void sendChat(String channel, String text) throws IOException {
+        Message msg = new Message(Message.Type.CHAT, branchName, text, null, clock.tick());
+        msg.item = channel;
+        VectorClock chat = chatClock(channel);
+        if (chat != null) {
+            msg.vectorClock = chat.tick(branchName);
+        }
+        link.send(msg);
+    }
+
+    // Stamps chat with a vector clock per channel and holds back chat that
+    // arrives before one it answers; branches without it are shown as they arrive
+    public void setCausalChat(boolean causalChat) {
+        chatClocks = causalChat ? new ConcurrentHashMap<>() : null;
+    }
+
+    private VectorClock chatClock(String channel) {
+        Map<String, VectorClock> clocks = chatClocks;
+        if (clocks == null) {
+            return null;
+        }
+        return clocks.computeIfAbsent(channel == null ? Topics.GENERAL : channel, k -> new VectorClock());
+    }
+
+    // Only UPDATEs changing one of these items, or an item in one of these
+    // categories, and chat on these channels are sent from now on; empty
+    // collections mean all of them. Replaces any earlier subscription, and
+    // asks for a snapshot of the stock it now covers.
+    public void subscribe(Collection<String> items, Collection<String> categories, Collection<String> channels)
+            throws IOException {
+        topics = new Topics(items, categories, channels);
+        Set<ServerLink> readers = new HashSet<>(shardLinks.values());
+        readers.add(link);
+        for (ServerLink reader : readers) {
+            reader.send(subscription());
+            reader.setSyncRequested(true);
+            reader.send(new Message(Message.Type.SYNC, branchName, null, null, clock.tick()));
+        }
+    }
+
+    // SUBSCRIBE for what the branch subscribed to; null if it never did
+    private Message subscription() {
+        Topics current = topics;
+        return current == null ? null
+                : new Message(Message.Type.SUBSCRIBE, branchName, current.toSpec(), null, clock.tick());
+    }
+
+    public HybridClock getClock() {
+        return clock;
     }
 
+    // Keeps orders in file until they are answered. Orders left open by an
+    // earlier run are resent once listen() is called.
+    public void setOrderQueue(Path file) throws IOException {
+        orderQueue = OrderQueue.open(file);
+    }
+
+    public boolean isOffline() {
+        return offline;
+    }
+
+    public void setOfferedCodecs(byte... offeredCodecs) {
+        this.offeredCodecs = offeredCodecs;
+    }
+
+    // Reports the outcome to the callback: denials of single orders through
+    // onRequestDenied, every batch through onBatchResult
     public void requestReplenishment(String item, int quantity) throws Exception {
-        lamportClock.tick();
-        Message msg = new Message(Message.Type.REPLENISH, branchName, item + ":" + quantity, null,
-                lamportClock.getTime());
-        out.writeObject(msg);
+        replenish(item, quantity).whenComplete((result, e) -> {
+            if (callback == null) {
+                return;
+            }
+            if (e != null) {
+                callback.onRequestDenied(failureReason(e));
+            } else if (result.getStatus() == OrderResult.Status.DENIED) {
+                callback.onRequestDenied(result.getSummary());
+            }
+        });
+    }
+
+    // Orders several items in one message; the server answers with a single BATCH_RESULT
+    public void requestReplenishment(Map<String, Integer> lines, Message.FillMode fillMode) throws Exception {
+        replenish(lines, fillMode).whenComplete((result, e) -> {
+            if (callback == null) {
+                return;
+            }
+            if (e != null) {
+                callback.onRequestDenied(failureReason(e));
+            } else {
+                callback.onBatchResult(result.getSummary(), result.getGranted());
+            }
+        });
+    }
+
+    private static String failureReason(Throwable e) {
+        Throwable cause = e.getCause() != null ? e.getCause() : e;
+        return cause.getMessage();
+    }
+
+    // Completes when the warehouse answers; fails if the connection the order
+    // went out on is lost first, in which case it may or may not have been filled
+    public CompletableFuture<OrderResult> replenish(String item, int quantity) {
+        if (orderQueue != null) {
+            return enqueue(Collections.singletonMap(item, quantity), null);
+        }
+        return sendReplenish(item, quantity, null);
+    }
+
+    private CompletableFuture<OrderResult> sendReplenish(String item, int quantity, String orderKey) {
+        Message msg = new Message(Message.Type.REPLENISH, branchName, item, quantity, clock.tick());
+        msg.orderKey = orderKey;
+        ShardRing current = ring;
+        try {
+            return submit(current != null && item != null ? shardLink(current.ownerOf(item)) : orderLink(), msg);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // A batch whose lines live on several shards is split and its parts answered as one
+    public CompletableFuture<OrderResult> replenish(Map<String, Integer> lines, Message.FillMode fillMode) {
+        if (orderQueue != null) {
+            return enqueue(lines, fillMode);
+        }
+        return sendBatch(lines, fillMode, null);
+    }
+
+    private CompletableFuture<OrderResult> sendBatch(Map<String, Integer> lines, Message.FillMode fillMode,
+            String orderKey) {
+        ShardRing current = ring;
+        Map<String, Map<String, Integer>> parts = current == null ? null : current.partition(lines);
+        if (parts != null && parts.size() > 1) {
+            SplitBatch batch = new SplitBatch(nextTransactionId.incrementAndGet(), new LinkedHashMap<>(lines),
+                    fillMode);
+            batch.orderKey = orderKey;
+            splitBatch(batch, parts);
+            return batch.result;
+        }
+        Message msg = new Message(Message.Type.BATCH_REPLENISH, branchName, null, null, clock.tick());
+        msg.lines = new LinkedHashMap<>(lines);
+        msg.fillMode = fillMode;
+        msg.orderKey = orderKey;
+        try {
+            return submit(parts != null && parts.size() == 1 ? shardLink(parts.keySet().iterator().next())
+                    : orderLink(), msg);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // Writes the order to the queue, then sends it unless the branch is
+    // offline. Offline, an order the last known stock cannot fill is refused
+    // here rather than queued.
+    private CompletableFuture<OrderResult> enqueue(Map<String, Integer> lines, Message.FillMode fillMode) {
+        CompletableFuture<OrderResult> result = new CompletableFuture<>();
+        OrderQueue.Entry entry;
+        synchronized (queuedResults) {
+            if (offline && !reserveOffline(lines, fillMode)) {
+                return CompletableFuture.completedFuture(new OrderResult(OrderResult.Status.DENIED,
+                        "Denied: Not enough stock (offline)", Map.of()));
+            }
+            try {
+                entry = orderQueue.append(lines, fillMode);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            queuedResults.put(entry.getSeq(), result);
+            if (offline) {
+                System.out.println(branchName + " is offline, order queued: " + lines);
+                return result;
+            }
+        }
+        sendQueued(entry);
+        return result;
+    }
+
+    // Takes the order's lines off the offline stock: all of them, or for a
+    // PARTIAL batch those that fit, in which case at least one has to
+    private boolean reserveOffline(Map<String, Integer> lines, Message.FillMode fillMode) {
+        Inventory stock = offlineStock;
+        synchronized (stock) {
+            if (fillMode != Message.FillMode.PARTIAL) {
+                for (Map.Entry<String, Integer> line : lines.entrySet()) {
+                    if (stock.getStock().get(line.getKey()) < line.getValue()) {
+                        return false;
+                    }
+                }
+            }
+            boolean any = false;
+            for (Map.Entry<String, Integer> line : lines.entrySet()) {
+                any |= stock.removeStock(line.getKey(), line.getValue());
+            }
+            return any;
+        }
+    }
+
+    // Sends a queued order unless it is on its way already. It leaves the
+    // queue when answered; if its link fails first it stays and is resent.
+    private void sendQueued(OrderQueue.Entry entry) {
+        if (!inFlight.add(entry.getSeq())) {
+            return;
+        }
+        CompletableFuture<OrderResult> sent;
+        if (entry.getFillMode() == null) {
+            Map.Entry<String, Integer> line = entry.getLines().entrySet().iterator().next();
+            sent = sendReplenish(line.getKey(), line.getValue(), entry.getKey());
+        } else {
+            sent = sendBatch(entry.getLines(), entry.getFillMode(), entry.getKey());
+        }
+        sent.whenComplete((result, e) -> {
+            inFlight.remove(entry.getSeq());
+            if (e != null) {
+                retryLater();
+                return;
+            }
+            retries.set(0);
+            try {
+                orderQueue.markDone(entry.getSeq());
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+            CompletableFuture<OrderResult> waiting = queuedResults.remove(entry.getSeq());
+            if (waiting != null) {
+                waiting.complete(result);
+            }
+        });
+    }
+
+    private void resendQueued() {
+        if (orderQueue == null) {
+            return;
+        }
+        for (OrderQueue.Entry entry : orderQueue.getPending()) {
+            sendQueued(entry);
+        }
+    }
+
+    // A queued order failed while the branch is still connected, e.g. its
+    // shard or the leader went away; try everything open again after a while.
+    // Offline, the reconnect resends them instead.
+    private void retryLater() {
+        if (offline || closed || !retryScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        Thread retry = new Thread(() -> {
+            try {
+                Thread.sleep(backoff(retries.getAndIncrement()));
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                retryScheduled.set(false);
+            }
+            if (!offline && !closed) {
+                resendQueued();
+            }
+        });
+        retry.setDaemon(true);
+        retry.start();
+    }
+
+    // Doubles with every attempt up to RECONNECT_MAX_MS, at a random point in
+    // the upper half so branches cut off together do not all come back at once
+    private static long backoff(int attempt) {
+        long delay = Math.min(RECONNECT_MAX_MS, RECONNECT_MIN_MS << Math.min(attempt, 16));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    // Orders go to the leader once one is known
+    private ServerLink orderLink() {
+        ServerLink leader = leaderLink;
+        return leader != null ? leader : link;
+    }
+
+    private CompletableFuture<OrderResult> submit(ServerLink target, Message msg) {
+        PendingOrder order = new PendingOrder(target);
+        msg.correlationId = nextCorrelationId.incrementAndGet();
+        pendingOrders.put(msg.correlationId, order);
+        try {
+            target.send(msg);
+        } catch (IOException e) {
+            pendingOrders.remove(msg.correlationId);
+            order.result.completeExceptionally(e);
+        }
+        return order.result;
+    }
+
+    private void complete(long correlationId, OrderResult result) {
+        PendingOrder order = pendingOrders.remove(correlationId);
+        if (order != null) {
+            order.result.complete(result);
+        }
+    }
+
+    // Fails every order still waiting on a link that went away
+    private void failPending(ServerLink failed, String reason) {
+        for (Map.Entry<Long, PendingOrder> entry : pendingOrders.entrySet()) {
+            if (entry.getValue().link == failed && pendingOrders.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().result.completeExceptionally(new IOException(reason));
+            }
+        }
+        for (SplitBatch batch : splitBatches.values()) {
+            synchronized (batch) {
+                if (batch.links.contains(failed) && splitBatches.remove(batch.id, batch)) {
+                    batch.result.completeExceptionally(new IOException(reason));
+                }
+            }
+        }
+        for (Map.Entry<Long, PendingQuery> entry : pendingQueries.entrySet()) {
+            if (entry.getValue().links.contains(failed) && pendingQueries.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().result.completeExceptionally(new IOException(reason));
+            }
+        }
+        for (Map.Entry<Long, PendingHistory> entry : pendingHistory.entrySet()) {
+            if (entry.getValue().link == failed && pendingHistory.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().result.completeExceptionally(new IOException(reason));
+            }
+        }
+    }
+
+    // Stock as the server last published it, without waiting for orders in
+    // progress. A cluster follower answers from its own copy, which may trail
+    // the leader by a moment. Items not in the catalogue are left out.
+    public CompletableFuture<Map<String, Integer>> query(String item) {
+        Message msg = new Message(Message.Type.QUERY, branchName, item, 0, 0);
+        ShardRing current = ring;
+        return sendQuery(Collections.singletonMap(current == null ? null : current.ownerOf(item), msg));
+    }
+
+    public CompletableFuture<Map<String, Integer>> query(Collection<String> items) {
+        Map<String, Integer> lines = new LinkedHashMap<>();
+        for (String item : items) {
+            lines.put(item, 0);
+        }
+        ShardRing current = ring;
+        Map<String, Map<String, Integer>> byShard = current == null ? Collections.singletonMap(null, lines)
+                : current.partition(lines);
+        Map<String, Message> parts = new LinkedHashMap<>();
+        byShard.forEach((shard, shardLines) -> {
+            Message msg = new Message(Message.Type.QUERY, branchName, null, null, 0);
+            msg.lines = shardLines;
+            parts.put(shard, msg);
+        });
+        return sendQuery(parts);
+    }
+
+    // Up to limit chat lines of the channel (null for the general one) from
+    // before the line numbered before, or the newest ones if before is 0;
+    // oldest first. Each line's sequence is its number, to page further back.
+    public CompletableFuture<List<Message>> history(String channel, long before, int limit) {
+        ServerLink target = link;
+        PendingHistory history = new PendingHistory(target);
+        Message msg = new Message(Message.Type.HISTORY, branchName, channel, limit, clock.tick());
+        msg.sequence = before;
+        msg.correlationId = nextCorrelationId.incrementAndGet();
+        pendingHistory.put(msg.correlationId, history);
+        try {
+            target.send(msg);
+        } catch (IOException e) {
+            pendingHistory.remove(msg.correlationId);
+            history.result.completeExceptionally(e);
+        }
+        return history.result;
+    }
+
+    // Every item whose name starts with prefix; sharded, every shard is asked
+    public CompletableFuture<Map<String, Integer>> queryPrefix(String prefix) {
+        ShardRing current = ring;
+        Map<String, Message> parts = new LinkedHashMap<>();
+        for (String shard : current == null ? Collections.singletonList((String) null) : current.getShardIds()) {
+            parts.put(shard, new Message(Message.Type.QUERY, branchName, prefix, null, 0));
+        }
+        return sendQuery(parts);
+    }
+
+    // Sends each part to its shard, or to the server read from when there are
+    // no shards (key null), and completes with the answers merged in name order
+    private CompletableFuture<Map<String, Integer>> sendQuery(Map<String, Message> parts) {
+        PendingQuery query = new PendingQuery();
+        if (parts.isEmpty()) {
+            query.result.complete(query.found);
+            return query.result;
+        }
+        long id = nextCorrelationId.incrementAndGet();
+        pendingQueries.put(id, query);
+        synchronized (query) {
+            query.waiting = parts.size();
+            try {
+                for (Map.Entry<String, Message> part : parts.entrySet()) {
+                    ServerLink target = part.getKey() == null ? link : shardLink(part.getKey());
+                    query.links.add(target);
+                    Message msg = part.getValue();
+                    msg.correlationId = id;
+                    msg.lamportTimestamp = clock.tick();
+                    target.send(msg);
+                }
+            } catch (IOException e) {
+                pendingQueries.remove(id);
+                query.result.completeExceptionally(e);
+            }
+        }
+        return query.result;
+    }
+
+    private void onQueryResult(ServerLink from, Message msg) {
+        PendingQuery query = pendingQueries.get(msg.correlationId);
+        if (query == null) {
+            return;
+        }
+        synchronized (query) {
+            if (msg.inventory != null) {
+                msg.inventory.forEach((item, quantity) -> {
+                    if (reportsOn(from, item)) {
+                        query.found.put(item, quantity);
+                    }
+                });
+            }
+            if (--query.waiting == 0 && pendingQueries.remove(msg.correlationId, query)) {
+                query.result.complete(query.found);
+            }
+        }
     }
 
     public void listen() {
+        resendQueued();
+        new Thread(() -> {
+            while (true) {
+                ServerLink current = link;
+                try {
+                    while (true) {
+                        handle(current, current.read());
+                    }
+                } catch (IOException e) {
+                    current.close();
+                    if (!closed) {
+                        goOffline();
+                    }
+                    failPending(current, "Lost connection to " + current.getAddress()
+                            + ", the order may or may not have gone through");
+                    if (closed || !reconnect(current)) {
+                        return;
+                    }
+                    goOnline();
+                }
+            }
+        }).start();
+    }
+
+    // Orders from now on are checked against the stock last seen, less what
+    // is queued and may not have been taken yet
+    private void goOffline() {
+        Inventory stock = new Inventory(getLocalInventory());
+        if (orderQueue != null) {
+            for (OrderQueue.Entry entry : orderQueue.getPending()) {
+                entry.getLines().forEach((item, quantity) -> stock.removeStock(item, quantity));
+            }
+        }
+        synchronized (queuedResults) {
+            offlineStock = stock;
+            offline = true;
+        }
+        if (callback != null) {
+            callback.onConnectionStateChanged(false, "Connection to the warehouse lost, working offline");
+        }
+    }
+
+    private void goOnline() {
+        synchronized (queuedResults) {
+            offline = false;
+            offlineStock = null;
+        }
+        retries.set(0);
+        resendQueued();
+        if (callback != null) {
+            callback.onConnectionStateChanged(true, "Back online, " + (orderQueue == null ? 0 : orderQueue.size())
+                    + " queued orders resent");
+        }
+    }
+
+    // Reads from a leader or shard link until it fails
+    private void listenTo(ServerLink other, Runnable onFailure) {
         new Thread(() -> {
             try {
                 while (true) {
-                    Message msg = (Message) in.readObject();
-                    switch (msg.type) {
-                        case UPDATE:
-                            if (msg.inventory != null && callback != null) {
-                                localInventory.clear();
-                                localInventory.putAll(msg.inventory);
-                                callback.onInventoryUpdate(localInventory);
-                            }
-                            break;
-                        case DENY:
-                            if (callback != null) {
-                                callback.onRequestDenied(msg.content);
-                            }
-                            break;
-                        case CHAT:
-                            if (callback != null) {
-                                callback.onChatMessage(msg.sender, msg.content);
-                            }
-                            break;
-                        default:
+                    handle(other, other.read());
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    onFailure.run();
+                }
+            }
+        }).start();
+    }
+
+    // Closes every link; the listener threads end without failing over
+    public void close() {
+        closed = true;
+        link.close();
+        if (orderQueue != null) {
+            try {
+                orderQueue.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        ServerLink leader = leaderLink;
+        if (leader != null) {
+            leader.close();
+        }
+        for (ServerLink shardLink : shardLinks.values()) {
+            shardLink.close();
+        }
+    }
+
+    private void handle(ServerLink from, Message msg) throws IOException {
+        clock.update(msg.lamportTimestamp);
+        // Inventory and chat come from the links we read from; the leader link is for orders
+        boolean reader = from != leaderLink;
+        switch (msg.type) {
+            case UPDATE:
+                if (reader && !hold(from, msg) && freshEvent(from, msg)) {
+                    applyDelta(from, msg, false);
+                }
+                break;
+            case SNAPSHOT:
+                if (reader) {
+                    List<Message> held = from.getHeldEvents();
+                    from.setHeldEvents(null);
+                    applySnapshot(from, msg);
+                    release(from, held);
+                }
+                break;
+            case CATCH_UP:
+                if (reader) {
+                    List<Message> held = from.getHeldEvents();
+                    from.setHeldEvents(null);
+                    release(from, held);
+                    applyCatchUp(from, msg);
+                }
+                break;
+            case SYNC:
+                // The server dropped an UPDATE for us
+                if (reader && !from.isSyncRequested()) {
+                    from.setSyncRequested(true);
+                    from.send(new Message(Message.Type.SYNC, branchName, null, null, clock.tick()));
+                }
+                break;
+            case REQUEST:
+                // Branches never enter the server's critical section
+                // themselves, so every request is answered at once
+                from.send(new Message(Message.Type.REPLY, branchName, msg.item, 0, clock.tick()));
+                break;
+            case REDIRECT:
+                redirect(msg);
+                break;
+            case QUERY_RESULT:
+                onQueryResult(from, msg);
+                break;
+            case APPROVE:
+                complete(msg.correlationId, new OrderResult(OrderResult.Status.APPROVED, msg.content,
+                        Map.of(msg.item, msg.quantity)));
+                break;
+            case ROUTES:
+                updateRoutes(from, msg);
+                break;
+            case PREPARED:
+                onPrepared(from, msg);
+                break;
+            case BATCH_RESULT:
+                SplitBatch batch = msg.version == 0 ? null : splitBatches.get(msg.version);
+                if (batch != null) {
+                    onPartResult(batch, msg);
+                } else if (msg.correlationId != 0) {
+                    complete(msg.correlationId, OrderResult.fromSummary(msg.content, msg.lines));
+                } else if (callback != null) {
+                    callback.onBatchResult(msg.content, msg.lines);
+                }
+                break;
+            case DENY:
+                if (msg.correlationId != 0) {
+                    complete(msg.correlationId, new OrderResult(OrderResult.Status.DENIED, msg.content, Map.of()));
+                } else if (callback != null) {
+                    callback.onRequestDenied(msg.content);
+                }
+                break;
+            case CHAT_BATCH:
+                if (msg.correlationId != 0) {
+                    PendingHistory history = pendingHistory.remove(msg.correlationId);
+                    if (history != null) {
+                        history.result.complete(msg.chat);
+                    }
+                } else if (from == link) {
+                    for (Message line : msg.chat) {
+                        from.setLastChatId(Math.max(from.getLastChatId(), line.sequence));
+                        receiveChat(line);
+                    }
+                }
+                break;
+            case SESSION:
+                from.setSession(msg.content);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // UPDATEs are numbered by the server; ones the branch has had are skipped.
+    // A subscribed branch only sees some numbers, so gaps are normal.
+    private boolean freshEvent(ServerLink from, Message msg) {
+        long last = from.getLastSequence();
+        if (msg.sequence == 0 || last < 0) {
+            return true;
+        }
+        if (msg.sequence <= last) {
+            return false;
+        }
+        from.setLastSequence(msg.sequence);
+        return true;
+    }
+
+    // While a RESUME is answered, live UPDATEs may come before the missed
+    // ones they follow, so all of them wait for the CATCH_UP or SNAPSHOT
+    // that ends it. Too many, and the branch gives up and asks for a snapshot.
+    private boolean hold(ServerLink from, Message msg) throws IOException {
+        List<Message> held = from.getHeldEvents();
+        if (held == null) {
+            return false;
+        }
+        held.add(msg);
+        if (held.size() > MAX_HELD_EVENTS) {
+            from.setHeldEvents(null);
+            from.send(new Message(Message.Type.SYNC, branchName, null, null, clock.tick()));
+        }
+        return true;
+    }
+
+    // Applies held UPDATEs in the order the server numbered them, skipping
+    // repeats and any a snapshot just covered
+    private void release(ServerLink from, List<Message> held) throws IOException {
+        if (held == null) {
+            return;
+        }
+        held.sort(Comparator.comparingLong(event -> event.sequence));
+        for (Message event : held) {
+            if (freshEvent(from, event)) {
+                applyDelta(from, event, true);
+            }
+        }
+    }
+
+    private void receiveChat(Message msg) {
+        VectorClock chat = chatClock(msg.item);
+        List<Message> ready = new ArrayList<>();
+        if (chat == null || msg.vectorClock == null) {
+            ready.add(msg);
+        } else {
+            synchronized (heldChats) {
+                heldChats.add(msg);
+                while (true) {
+                    Message next = null;
+                    for (Message held : heldChats) {
+                        if (chatClock(held.item).canDeliver(held.sender, held.vectorClock)) {
+                            next = held;
                             break;
+                        }
+                    }
+                    if (next == null && heldChats.size() > MAX_HELD_CHATS) {
+                        next = heldChats.get(0);
                     }
+                    if (next == null) {
+                        break;
+                    }
+                    heldChats.remove(next);
+                    chatClock(next.item).merge(next.vectorClock);
+                    ready.add(next);
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
             }
-        }).start();
+        }
+        if (callback != null) {
+            for (Message chatMsg : ready) {
+                String text = chatMsg.item == null ? chatMsg.content : "#" + chatMsg.item + " " + chatMsg.content;
+                callback.onChatMessage(chatMsg.sender, text);
+            }
+        }
+    }
+
+    // Opens a link to the leader named in the REDIRECT and resends the order there
+    private void redirect(Message msg) throws IOException {
+        String leaderAddress = msg.content;
+        addServer(leaderAddress);
+        ServerLink leader = leaderLink;
+        if (leader == null || !leader.getAddress().equals(leaderAddress)) {
+            if (leader != null) {
+                closeLeaderLink(leader);
+            }
+            try {
+                leader = ServerLink.open(leaderAddress, offeredCodecs);
+            } catch (IOException e) {
+                complete(msg.correlationId, new OrderResult(OrderResult.Status.DENIED,
+                        "Denied: Leader " + leaderAddress + " unreachable", Map.of()));
+                return;
+            }
+            if (leader.getAddress().equals(link.getAddress())) {
+                // We already read from the leader; orders can go the same way
+                leader.close();
+                leader = link;
+            } else {
+                leaderLink = leader;
+                ServerLink opened = leader;
+                listenTo(opened, () -> {
+                    closeLeaderLink(opened);
+                    failPending(opened, "Lost connection to leader " + opened.getAddress()
+                            + ", the order may or may not have gone through");
+                });
+            }
+        }
+        Message order;
+        if (msg.lines != null) {
+            order = new Message(Message.Type.BATCH_REPLENISH, branchName, null, null, clock.tick());
+            order.lines = msg.lines;
+            order.fillMode = msg.fillMode;
+        } else {
+            order = new Message(Message.Type.REPLENISH, branchName, msg.item, msg.quantity, clock.tick());
+        }
+        order.correlationId = msg.correlationId;
+        // The key a queued order is resent with after a lost connection, so
+        // the leader runs it once whichever copy reaches it first
+        order.orderKey = msg.orderKey;
+        PendingOrder pending = pendingOrders.get(msg.correlationId);
+        if (pending != null) {
+            pending.link = leader;
+        }
+        leader.send(order);
+    }
+
+    // Returns false if the link was already replaced
+    private synchronized boolean closeLeaderLink(ServerLink leader) {
+        leader.close();
+        if (leaderLink != leader) {
+            return false;
+        }
+        leaderLink = null;
+        return true;
+    }
+
+    // Connects to another known node, trying the failed one last, with
+    // exponential backoff between rounds until one answers or the branch is
+    // closed. Back on the same server it resumes its session from the last
+    // event and chat line it saw, asking for a snapshot in place of the
+    // events if it never had one or was waiting for one; anywhere else it
+    // asks for a full snapshot, since versions are counted per node.
+    // Either way it first renews its subscription, which the server forgot.
+    private boolean reconnect(ServerLink failed) {
+        for (int attempt = 0; !closed; attempt++) {
+            List<String> candidates;
+            synchronized (servers) {
+                candidates = new ArrayList<>(servers);
+            }
+            candidates.remove(failed.getAddress());
+            candidates.add(failed.getAddress());
+            for (String address : candidates) {
+                try {
+                    ServerLink next = ServerLink.open(address, offeredCodecs);
+                    System.out.println(branchName + " lost " + failed.getAddress() + ", now reading from " + address);
+                    Message sync = new Message(Message.Type.SYNC, branchName, null, null, clock.tick());
+                    if (address.equals(failed.getAddress()) && failed.getSession() != null) {
+                        // No event has sequence -1, so the server answers that with a snapshot
+                        long since = failed.isSyncRequested() ? -1 : failed.getLastSequence();
+                        next.setInventoryVersion(failed.getInventoryVersion());
+                        next.setEpoch(failed.getEpoch());
+                        next.setLastSequence(since);
+                        next.setLastChatId(failed.getLastChatId());
+                        sync = new Message(Message.Type.RESUME, branchName, failed.getSession(), null, clock.tick());
+                        sync.sequence = since;
+                        sync.version = failed.getLastChatId();
+                        next.setHeldEvents(new ArrayList<>());
+                    }
+                    next.setSyncRequested(true);
+                    next.setShardId(failed.getShardId());
+                    link = next;
+                    shardLinks.replaceAll((shard, shardLink) -> shardLink == failed ? next : shardLink);
+                    Message subscribe = subscription();
+                    if (subscribe != null) {
+                        next.send(subscribe);
+                    }
+                    next.send(sync);
+                    return true;
+                } catch (IOException e) {
+                    // Try the next one
+                }
+            }
+            try {
+                Thread.sleep(backoff(attempt));
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // Takes a newer ring and connects to the shards we have no link to yet
+    private void updateRoutes(ServerLink from, Message msg) {
+        ShardRing next = ShardRing.parse(msg.content);
+        synchronized (shardLinks) {
+            ShardRing current = ring;
+            if (current != null && !next.supersedes(current)) {
+                return;
+            }
+            if (current == null) {
+                from.setShardId(msg.sender);
+                shardLinks.put(msg.sender, from);
+            }
+            ring = next;
+        }
+        for (String shard : next.getShardIds()) {
+            try {
+                shardLink(shard);
+            } catch (IOException e) {
+                // Not up yet; tried again when an order needs it
+            }
+        }
+    }
+
+    private ServerLink shardLink(String shard) throws IOException {
+        ServerLink existing = shardLinks.get(shard);
+        if (existing != null) {
+            return existing;
+        }
+        synchronized (shardLinks) {
+            existing = shardLinks.get(shard);
+            if (existing != null) {
+                return existing;
+            }
+            ServerLink opened = ServerLink.open(ring.getAddress(shard), offeredCodecs);
+            opened.setShardId(shard);
+            shardLinks.put(shard, opened);
+            listenTo(opened, () -> {
+                opened.close();
+                shardLinks.remove(shard, opened);
+                failPending(opened, "Lost connection to shard " + shard
+                        + ", the order may or may not have gone through");
+            });
+            Message subscribe = subscription();
+            if (subscribe != null) {
+                opened.send(subscribe);
+            }
+            opened.send(new Message(Message.Type.SYNC, branchName, null, null, clock.tick()));
+            return opened;
+        }
+    }
+
+    private void splitBatch(SplitBatch batch, Map<String, Map<String, Integer>> parts) {
+        splitBatches.put(batch.id, batch);
+        boolean prepare = batch.fillMode == Message.FillMode.ALL_OR_NOTHING;
+        synchronized (batch) {
+            batch.waiting = parts.size();
+            for (Map.Entry<String, Map<String, Integer>> part : parts.entrySet()) {
+                Message msg = new Message(prepare ? Message.Type.PREPARE : Message.Type.BATCH_REPLENISH, branchName,
+                        null, null, clock.tick());
+                msg.lines = part.getValue();
+                msg.fillMode = batch.fillMode;
+                msg.version = batch.id;
+                if (!prepare && batch.orderKey != null) {
+                    msg.orderKey = batch.orderKey + "/" + part.getKey();
+                }
+                try {
+                    ServerLink shardLink = shardLink(part.getKey());
+                    batch.links.add(shardLink);
+                    shardLink.send(msg);
+                } catch (IOException e) {
+                    // Counts as a shard that could fill nothing
+                    batch.waiting--;
+                    batch.refused = true;
+                    batch.failure = "Shard " + part.getKey() + " unreachable";
+                }
+            }
+            if (batch.waiting == 0) {
+                finishBatch(batch);
+            }
+        }
     }
 
-    public HashMap<String, Integer> getLocalInventory() {
-        return localInventory;
+    // A shard's vote on its part of an ALL_OR_NOTHING batch
+    private void onPrepared(ServerLink from, Message msg) throws IOException {
+        SplitBatch batch = splitBatches.get(msg.version);
+        if (batch == null) {
+            return;
+        }
+        synchronized (batch) {
+            if (msg.quantity == 1) {
+                batch.prepared.add(from);
+            } else {
+                batch.refused = true;
+            }
+            if (--batch.waiting > 0) {
+                return;
+            }
+            if (batch.refused) {
+                for (ServerLink shard : batch.prepared) {
+                    shard.send(decision(Message.Type.ABORT, batch));
+                }
+                finishBatch(batch);
+                return;
+            }
+            batch.committing = true;
+            batch.waiting = batch.prepared.size();
+            for (ServerLink shard : batch.prepared) {
+                shard.send(decision(Message.Type.COMMIT, batch));
+            }
+        }
+    }
+
+    private Message decision(Message.Type type, SplitBatch batch) {
+        Message msg = new Message(type, branchName, null, null, clock.tick());
+        msg.version = batch.id;
+        return msg;
+    }
+
+    // A shard's BATCH_RESULT for its part, after COMMIT or for a PARTIAL batch
+    private void onPartResult(SplitBatch batch, Message msg) {
+        synchronized (batch) {
+            if (msg.lines != null) {
+                msg.lines.forEach((item, quantity) -> batch.granted.merge(item, quantity, Integer::sum));
+            }
+            if (batch.committing && !"Approved".equals(msg.content)) {
+                batch.failure = msg.content;
+            }
+            if (--batch.waiting == 0) {
+                finishBatch(batch);
+            }
+        }
+    }
+
+    // Reports a split batch as one BATCH_RESULT would have been
+    private void finishBatch(SplitBatch batch) {
+        splitBatches.remove(batch.id);
+        Map<String, Integer> granted = new LinkedHashMap<>();
+        boolean all = true;
+        boolean none = true;
+        for (Map.Entry<String, Integer> line : batch.lines.entrySet()) {
+            int quantity = batch.refused && batch.fillMode == Message.FillMode.ALL_OR_NOTHING ? 0
+                    : batch.granted.getOrDefault(line.getKey(), 0);
+            granted.put(line.getKey(), quantity);
+            all &= quantity == line.getValue();
+            none &= quantity == 0;
+        }
+        String summary;
+        if (all) {
+            summary = "Approved";
+        } else if (none) {
+            summary = batch.failure != null ? "Denied: " + batch.failure : "Denied: Not enough stock";
+        } else {
+            summary = "Partially filled";
+        }
+        batch.result.complete(OrderResult.fromSummary(summary, granted));
+    }
+
+    // A branch subscribed to some items only sees some versions, and relies
+    // on the server's SYNC to tell it an UPDATE was dropped; so do events
+    // released after a resume, which the server has filtered the same way
+    private void applyDelta(ServerLink from, Message msg, boolean gapsExpected) throws IOException {
+        if (msg.inventory == null || msg.version <= from.getInventoryVersion()) {
+            return; // Already covered by a snapshot
+        }
+        Topics current = topics;
+        boolean filtered = current != null && !current.isAllStock();
+        if (!filtered && !gapsExpected && msg.version != from.getInventoryVersion() + 1) {
+            // Missed an update, ask for everything once and drop deltas until it arrives
+            if (!from.isSyncRequested()) {
+                from.setSyncRequested(true);
+                from.send(new Message(Message.Type.SYNC, branchName, null, null, clock.tick()));
+            }
+            return;
+        }
+        synchronized (localInventory) {
+            if (filtered) {
+                // Sent whole if any item is wanted, or before the server had our subscription
+                msg.inventory.forEach((item, quantity) -> {
+                    if (current.wantsItem(item) && reportsOn(from, item)) {
+                        localInventory.put(item, quantity);
+                    }
+                });
+            } else {
+                putOwned(from, msg.inventory);
+            }
+        }
+        from.setInventoryVersion(msg.version);
+        if (callback != null) {
+            callback.onInventoryUpdate(localInventory, msg.inventory.keySet());
+        }
+    }
+
+    private void applySnapshot(ServerLink from, Message msg) {
+        from.setSyncRequested(false);
+        if (msg.version < from.getInventoryVersion() && msg.content != null && msg.content.equals(from.getEpoch())) {
+            return;
+        }
+        from.setEpoch(msg.content);
+        from.setLastSequence(msg.sequence);
+        synchronized (localInventory) {
+            // A shard's snapshot only covers its own items
+            if (ring == null) {
+                localInventory.clear();
+            }
+            putOwned(from, msg.inventory);
+        }
+        from.setInventoryVersion(msg.version);
+        if (callback != null) {
+            callback.onInventoryUpdate(localInventory, null);
+        }
+    }
+
+    // Ends a resume: the items changed by missed updates that were not
+    // resent one by one, as of msg.version
+    private void applyCatchUp(ServerLink from, Message msg) {
+        from.setSyncRequested(false);
+        from.setLastSequence(msg.sequence);
+        if (msg.version < from.getInventoryVersion()) {
+            return;
+        }
+        synchronized (localInventory) {
+            putOwned(from, msg.inventory);
+        }
+        from.setInventoryVersion(msg.version);
+        if (callback != null) {
+            callback.onInventoryUpdate(localInventory, msg.inventory.keySet());
+        }
+    }
+
+    // Under localInventory's monitor
+    private void putOwned(ServerLink from, Map<String, Integer> stock) {
+        if (ring == null) {
+            stock.forEach(putEntry);
+            return;
+        }
+        stock.forEach((item, quantity) -> {
+            if (reportsOn(from, item)) {
+                localInventory.put(item, quantity);
+            }
+        });
+    }
+
+    // Against a sharded warehouse only the shard the ring gives an item to
+    // speaks for it: one that handed it over may still say it has none
+    private boolean reportsOn(ServerLink from, String item) {
+        ShardRing current = ring;
+        String shard = from.getShardId();
+        return current == null || shard == null || current.owns(shard, item);
+    }
+
+    // Version of the inventory of the server the branch reads from
+    public long getInventoryVersion() {
+        return link.getInventoryVersion();
+    }
+
+    // Copy of the branch's view of warehouse stock; offline, less the orders queued since
+    public Map<String, Integer> getLocalInventory() {
+        Inventory stock = offlineStock;
+        if (stock != null) {
+            return stock.toMap();
+        }
+        synchronized (localInventory) {
+            return localInventory.toMap();
+        }
+    }
+
+    // Only the given items, leaving out those the branch holds no stock level for
+    public Map<String, Integer> getLocalInventory(Collection<String> items) {
+        Inventory stock = offlineStock;
+        if (stock != null) {
+            synchronized (stock) {
+                return copyOf(stock.getStock(), items);
+            }
+        }
+        synchronized (localInventory) {
+            return copyOf(localInventory, items);
+        }
+    }
+
+    private static Map<String, Integer> copyOf(StockMap stock, Collection<String> items) {
+        Map<String, Integer> copy = new HashMap<>(items.size() * 2);
+        for (String item : items) {
+            if (stock.containsKey(item)) {
+                copy.put(item, stock.get(item));
+            }
+        }
+        return copy;
     }
 
     public void setMessageCallback(MessageCallback callback) {
@@ -79,10 +1284,18 @@ public class BranchClient {
 
     // Move interface inside the class as static nested interface
     public static interface MessageCallback {
-        void onInventoryUpdate(Map<String, Integer> inventory);
+        // Called on the listener thread; neither argument may be kept, nor
+        // inventory changed. changed holds the items the update set, or is
+        // null after a snapshot, when any item may have changed or gone.
+        void onInventoryUpdate(StockMap inventory, Collection<String> changed);
 
         void onChatMessage(String sender, String message);
 
         void onRequestDenied(String reason);
+
+        // The branch lost its server and works offline, or is back online
+        void onConnectionStateChanged(boolean online, String status);
+
+        void onBatchResult(String summary, Map<String, Integer> granted);
     }
-}
\ No newline at end of file
+}
@@ -1,24 +1,41 @@
 package client;
 
 import common.Message;
-import java.io.ObjectOutputStream;
+import java.util.function.Consumer;
 
 public class ChatClient {
-    private ObjectOutputStream out;
+    private BranchClient branchClient;
     private String branchName;
 
-    public ChatClient(ObjectOutputStream out, String branchName) {
-        this.out = out;
+    public ChatClient(BranchClient branchClient, String branchName) {
+        this.branchClient = branchClient;
         this.branchName = branchName;
     }
 
     public void sendChat(String message) {
+        sendChat(null, message);
+    }
+
+    // channel null for the general channel
+    public void sendChat(String channel, String message) {
         try {
-            Message chatMsg = new Message(Message.Type.CHAT, branchName, message, null, 0);
-            out.writeObject(chatMsg);
-            out.flush();
+            branchClient.sendChat(channel, message);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
-} 
\ No newline at end of file
+
+    // Shows the newest lines of the channel, e.g. to a branch that has just joined
+    public void showHistory(String channel, int limit, Consumer<String> display) {
+        branchClient.history(channel, 0, limit).whenComplete((lines, error) -> {
+            if (error != null) {
+                error.printStackTrace();
+                return;
+            }
+            for (Message line : lines) {
+                String prefix = line.item == null ? "" : "#" + line.item + " ";
+                display.accept("[" + line.sender + "] " + prefix + line.content);
+            }
+        });
+    }
+}
@@ -1,7 +1,10 @@
 package client;
 
 import client.gui.InventoryGUI;
+import java.nio.file.Paths;
 import javax.swing.*;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 public class ClientMain {
@@ -12,16 +15,20 @@ public class ClientMain {
             int serverPort = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
 
             BranchClient branchClient = new BranchClient(branchName);
+            branchClient.setCausalChat(true);
+            // Orders survive a lost connection or a restart of the branch
+            branchClient.setOrderQueue(Paths.get(branchName + "-orders.queue"));
             branchClient.connect(serverHost, serverPort);
 
-            ChatClient chatClient = new ChatClient(branchClient.out, branchName);
+            ChatClient chatClient = new ChatClient(branchClient, branchName);
             InventoryGUI gui = new InventoryGUI(branchClient, chatClient);
 
             // Set up GUI callback
             branchClient.setMessageCallback(new BranchClient.MessageCallback() {
                 @Override
-                public void onInventoryUpdate(Map<String, Integer> inventory) {
-                    // GUI will auto-refresh, but we could force update here
+                public void onInventoryUpdate(StockMap inventory, Collection<String> changed) {
+                    // The GUI reads the changed items when it next redraws
+                    gui.inventoryChanged(changed);
                 }
 
                 @Override
@@ -33,10 +40,23 @@ public class ClientMain {
                 public void onRequestDenied(String reason) {
                     gui.appendChatMessage("SERVER: " + reason);
                 }
+
+                @Override
+                public void onConnectionStateChanged(boolean online, String status) {
+                    gui.appendChatMessage("SERVER: " + status);
+                    // The GUI checks whether the branch is offline when it redraws
+                    gui.inventoryChanged(List.of());
+                }
+
+                @Override
+                public void onBatchResult(String summary, Map<String, Integer> granted) {
+                    gui.appendChatMessage("SERVER: Batch order " + summary + " " + granted);
+                }
             });
 
             // Start listening (remove extra Thread wrapper)
             branchClient.listen();
+            chatClient.showHistory(null, 50, gui::appendChatMessage);
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -1,9 +1,9 @@
 package client;
 
-import java.util.HashMap;
+import java.util.Map;
 
 public class Inventory {
-    private HashMap<String, Integer> stock = new HashMap<>();
+    private StockMap stock = new StockMap();
 
     public Inventory() {
         stock.put("Apples", 10);
@@ -11,20 +11,27 @@ public class Inventory {
         stock.put("Oranges", 6);
     }
 
+    public Inventory(Map<String, Integer> stock) {
+        stock.forEach(this.stock::put);
+    }
+
     public synchronized void addStock(String item, int quantity) {
-        stock.put(item, stock.getOrDefault(item, 0) + quantity);
+        stock.add(item, quantity);
     }
 
     public synchronized boolean removeStock(String item, int quantity) {
-        int available = stock.getOrDefault(item, 0);
-        if (available >= quantity) {
-            stock.put(item, available - quantity);
+        if (stock.get(item) >= quantity) {
+            stock.add(item, -quantity);
             return true;
         }
         return false;
     }
 
-    public HashMap<String, Integer> getStock() {
+    public synchronized Map<String, Integer> toMap() {
+        return stock.toMap();
+    }
+
+    public StockMap getStock() {
         return stock;
     }
 } 
\ No newline at end of file
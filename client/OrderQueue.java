@@ -0,0 +1,245 @@
+package client;
+
+import common.Message;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+// Orders a branch has placed and not yet had answered, kept on disk so they
+// survive a lost connection or a restart of the branch.
+//
+// The file is append-only; each record is [int length][int crc][body] with
+// the body one of
+//
+//   HEADER  queue id, last sequence number
+//   ORDER   seq, fill mode (-1 for a single item), line count, (item, quantity)*
+//   DONE    seq
+//
+// append() returns once its ORDER is on disk. A DONE is not forced: if it is
+// lost the order is sent again and the server recognises it by its key, the
+// queue id and sequence number. A torn record at the end is dropped on open,
+// and the file is rewritten with only the open orders then and whenever it
+// has emptied after COMPACT_AFTER records.
+public class OrderQueue implements Closeable {
+    private static final byte HEADER = 0;
+    private static final byte ORDER = 1;
+    private static final byte DONE = 2;
+    private static final int COMPACT_AFTER = 1000;
+
+    public static class Entry {
+        private long seq;
+        private String key;
+        private Map<String, Integer> lines;
+        // Null for a single-item REPLENISH
+        private Message.FillMode fillMode;
+
+        Entry(long seq, String key, Map<String, Integer> lines, Message.FillMode fillMode) {
+            this.seq = seq;
+            this.key = key;
+            this.lines = lines;
+            this.fillMode = fillMode;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public Map<String, Integer> getLines() {
+            return lines;
+        }
+
+        public Message.FillMode getFillMode() {
+            return fillMode;
+        }
+    }
+
+    private Path file;
+    private FileChannel channel;
+    private String id;
+    // Never reused, even once every order is done, so keys stay unique
+    private long lastSeq;
+    private Map<Long, Entry> pending = new TreeMap<>();
+    private int recordsWritten;
+
+    private OrderQueue(Path file) {
+        this.file = file;
+    }
+
+    public static OrderQueue open(Path file) throws IOException {
+        OrderQueue queue = new OrderQueue(file);
+        if (Files.exists(file)) {
+            queue.load();
+        }
+        if (queue.id == null) {
+            queue.id = UUID.randomUUID().toString();
+        }
+        queue.rewrite();
+        return queue;
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                byte[] body;
+                try {
+                    int length = in.readInt();
+                    int expectedCrc = in.readInt();
+                    if (length <= 0 || length > 1 << 20) {
+                        break;
+                    }
+                    body = new byte[length];
+                    in.readFully(body);
+                    CRC32 crc = new CRC32();
+                    crc.update(body);
+                    if ((int) crc.getValue() != expectedCrc) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break; // Torn write at the end
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(body)));
+            }
+        }
+        System.out.println("Order queue " + file + ": " + pending.size() + " orders still open");
+    }
+
+    private void apply(DataInputStream record) throws IOException {
+        switch (record.readByte()) {
+            case HEADER:
+                id = record.readUTF();
+                lastSeq = Math.max(lastSeq, record.readLong());
+                break;
+            case ORDER:
+                long seq = record.readLong();
+                int mode = record.readByte();
+                int count = record.readInt();
+                Map<String, Integer> lines = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++) {
+                    lines.put(record.readUTF(), record.readInt());
+                }
+                Message.FillMode fillMode = mode < 0 ? null : Message.FillMode.values()[mode];
+                pending.put(seq, new Entry(seq, key(seq), lines, fillMode));
+                lastSeq = Math.max(lastSeq, seq);
+                break;
+            case DONE:
+                pending.remove(record.readLong());
+                break;
+            default:
+                throw new IOException("Unknown order queue record in " + file);
+        }
+    }
+
+    private String key(long seq) {
+        return id + "/" + seq;
+    }
+
+    // Durable once this returns
+    public synchronized Entry append(Map<String, Integer> lines, Message.FillMode fillMode) throws IOException {
+        Entry entry = new Entry(++lastSeq, key(lastSeq), new LinkedHashMap<>(lines), fillMode);
+        write(channel, order(entry), true);
+        pending.put(entry.getSeq(), entry);
+        return entry;
+    }
+
+    public synchronized void markDone(long seq) throws IOException {
+        if (pending.remove(seq) == null) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(DONE);
+        out.writeLong(seq);
+        write(channel, bytes.toByteArray(), false);
+        if (pending.isEmpty() && recordsWritten >= COMPACT_AFTER) {
+            channel.close();
+            rewrite();
+        }
+    }
+
+    // Oldest first
+    public synchronized List<Entry> getPending() {
+        return Collections.unmodifiableList(new ArrayList<>(pending.values()));
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    // Writes the header and the open orders to a new file and swaps it in
+    private void rewrite() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(bytes);
+            header.writeByte(HEADER);
+            header.writeUTF(id);
+            header.writeLong(lastSeq);
+            write(out, bytes.toByteArray(), false);
+            for (Entry entry : pending.values()) {
+                write(out, order(entry), false);
+            }
+            out.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        recordsWritten = 0;
+    }
+
+    private static byte[] order(Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(ORDER);
+        out.writeLong(entry.getSeq());
+        out.writeByte(entry.getFillMode() == null ? -1 : entry.getFillMode().ordinal());
+        out.writeInt(entry.getLines().size());
+        for (Map.Entry<String, Integer> line : entry.getLines().entrySet()) {
+            out.writeUTF(line.getKey());
+            out.writeInt(line.getValue());
+        }
+        return bytes.toByteArray();
+    }
+
+    private void write(FileChannel to, byte[] body, boolean force) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteBuffer record = ByteBuffer.allocate(8 + body.length);
+        record.putInt(body.length).putInt((int) crc.getValue()).put(body);
+        record.flip();
+        while (record.hasRemaining()) {
+            to.write(record);
+        }
+        if (force) {
+            to.force(false);
+        }
+        recordsWritten++;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,56 @@
+package client;
+
+import java.util.Collections;
+import java.util.Map;
+
+// What became of one order: filled, partly filled (batches only) or denied,
+// with the quantity granted per line and the server's wording.
+public class OrderResult {
+    public enum Status {
+        APPROVED, PARTIALLY_FILLED, DENIED
+    }
+
+    private Status status;
+    private String summary;
+    private Map<String, Integer> granted;
+
+    public OrderResult(Status status, String summary, Map<String, Integer> granted) {
+        this.status = status;
+        this.summary = summary;
+        this.granted = granted == null ? Collections.emptyMap() : granted;
+    }
+
+    // From a BATCH_RESULT summary: "Approved", "Partially filled" or "Denied: ..."
+    public static OrderResult fromSummary(String summary, Map<String, Integer> granted) {
+        Status status;
+        if ("Approved".equals(summary)) {
+            status = Status.APPROVED;
+        } else if ("Partially filled".equals(summary)) {
+            status = Status.PARTIALLY_FILLED;
+        } else {
+            status = Status.DENIED;
+        }
+        return new OrderResult(status, summary, granted);
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isApproved() {
+        return status == Status.APPROVED;
+    }
+
+    public String getSummary() {
+        return summary;
+    }
+
+    public Map<String, Integer> getGranted() {
+        return granted;
+    }
+
+    @Override
+    public String toString() {
+        return summary + " " + granted;
+    }
+}
@@ -0,0 +1,156 @@
+package client;
+
+import common.FrameCodec;
+import common.Handshake;
+import common.Message;
+import common.MessageCodec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+
+// One connection to a warehouse server node, codec already negotiated.
+public class ServerLink implements Closeable {
+    private String address;
+    // Shard of a partitioned warehouse this link reads from; null until known
+    private volatile String shardId;
+    private Socket socket;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private MessageCodec codec;
+    // Version of this server's inventory the branch has applied; -1 until a snapshot
+    private long inventoryVersion = -1;
+    // Run of the server that version belongs to, from its last SNAPSHOT
+    private String epoch;
+    // Last event of the server's EventLog reflected here; -1 until a SNAPSHOT
+    private long lastSequence = -1;
+    // Number of the newest chat line had from this server; 0 for none
+    private long lastChatId;
+    // Token to resume the session with after reconnecting, from SESSION
+    private String session;
+    private boolean syncRequested;
+    // UPDATEs received while a RESUME is answered; null otherwise
+    private List<Message> heldEvents;
+
+    private ServerLink(String address) {
+        this.address = address;
+    }
+
+    public static ServerLink open(String host, int port, byte[] offeredCodecs) throws IOException {
+        ServerLink link = new ServerLink(host + ":" + port);
+        link.socket = new Socket(host, port);
+        try {
+            link.socket.setTcpNoDelay(true);
+            link.out = new DataOutputStream(new BufferedOutputStream(link.socket.getOutputStream()));
+            link.in = new DataInputStream(new BufferedInputStream(link.socket.getInputStream()));
+
+            FrameCodec.writeFrame(link.out, Handshake.hello(offeredCodecs));
+            byte[] accepted = Handshake.codecIds(FrameCodec.readPayload(link.in));
+            link.codec = MessageCodec.create(accepted[0]);
+        } catch (IOException | RuntimeException e) {
+            link.close();
+            throw e;
+        }
+        return link;
+    }
+
+    // Parses host:port
+    public static ServerLink open(String address, byte[] offeredCodecs) throws IOException {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IOException("Expected host:port but got: " + address);
+        }
+        return open(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)), offeredCodecs);
+    }
+
+    public void send(Message msg) throws IOException {
+        synchronized (out) {
+            FrameCodec.writeFrame(out, codec, msg);
+        }
+    }
+
+    public Message read() throws IOException {
+        return FrameCodec.readFrame(in, codec);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getShardId() {
+        return shardId;
+    }
+
+    public void setShardId(String shardId) {
+        this.shardId = shardId;
+    }
+
+    public long getInventoryVersion() {
+        return inventoryVersion;
+    }
+
+    public void setInventoryVersion(long inventoryVersion) {
+        this.inventoryVersion = inventoryVersion;
+    }
+
+    public String getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(String epoch) {
+        this.epoch = epoch;
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public void setLastSequence(long lastSequence) {
+        this.lastSequence = lastSequence;
+    }
+
+    public long getLastChatId() {
+        return lastChatId;
+    }
+
+    public void setLastChatId(long lastChatId) {
+        this.lastChatId = lastChatId;
+    }
+
+    public String getSession() {
+        return session;
+    }
+
+    public void setSession(String session) {
+        this.session = session;
+    }
+
+    public boolean isSyncRequested() {
+        return syncRequested;
+    }
+
+    public void setSyncRequested(boolean syncRequested) {
+        this.syncRequested = syncRequested;
+    }
+
+    public List<Message> getHeldEvents() {
+        return heldEvents;
+    }
+
+    public void setHeldEvents(List<Message> heldEvents) {
+        this.heldEvents = heldEvents;
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package client;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Item name -> quantity map for branch-side stock. Keys and quantities sit in
+// parallel arrays with linear probing, so quantities are never boxed and
+// get/put/add on an item that is already present allocate nothing. Only
+// growing the table allocates. Not thread-safe.
+public class StockMap {
+    public interface EntryConsumer {
+        void accept(String item, int quantity);
+    }
+
+    private static final int MIN_CAPACITY = 16;
+
+    private String[] keys;
+    private int[] values;
+    private int size;
+    private int resizeAt;
+
+    public StockMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public StockMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new String[capacity];
+        values = new int[capacity];
+        resizeAt = capacity * 3 / 4;
+    }
+
+    // Slot holding item, or the empty slot where it would go
+    private int slotOf(String item) {
+        int mask = keys.length - 1;
+        int h = item.hashCode();
+        int slot = (h ^ (h >>> 16)) & mask;
+        while (true) {
+            String key = keys[slot];
+            if (key == null || key == item || key.equals(item)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public boolean containsKey(String item) {
+        return keys[slotOf(item)] != null;
+    }
+
+    public int get(String item) {
+        return getOrDefault(item, 0);
+    }
+
+    public int getOrDefault(String item, int defaultValue) {
+        int slot = slotOf(item);
+        return keys[slot] != null ? values[slot] : defaultValue;
+    }
+
+    public void put(String item, int quantity) {
+        int slot = slotOf(item);
+        if (keys[slot] == null) {
+            if (size >= resizeAt) {
+                grow();
+                slot = slotOf(item);
+            }
+            keys[slot] = item;
+            size++;
+        }
+        values[slot] = quantity;
+    }
+
+    // Returns the new quantity; a missing item counts as 0
+    public int add(String item, int delta) {
+        int slot = slotOf(item);
+        if (keys[slot] == null) {
+            put(item, delta);
+            return delta;
+        }
+        values[slot] += delta;
+        return values[slot];
+    }
+
+    public void putAll(Map<String, Integer> quantities) {
+        for (Map.Entry<String, Integer> entry : quantities.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void grow() {
+        String[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = slotOf(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    // Keeps the table so refilling it does not allocate
+    public void clear() {
+        Arrays.fill(keys, null);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void forEach(EntryConsumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                consumer.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    public Map<String, Integer> toMap() {
+        Map<String, Integer> copy = new LinkedHashMap<>(size * 2);
+        forEach(copy::put);
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+}
@@ -2,24 +2,55 @@ package client.gui;
 
 import client.BranchClient;
 import client.ChatClient;
+import common.Message;
 import javax.swing.*;
 import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-
+import java.util.Set;
+
+// The inventory table is redrawn when the branch's stock changes, not on a
+// timer. inventoryChanged() may be called from any thread, as often as updates
+// arrive: it only notes which items changed, and the first call after a
+// redraw schedules the next one on the event thread, no sooner than FRAME_MS
+// after the last. A redraw reads just the items noted since the last one and
+// touches only their rows; the whole stock is read only after a snapshot.
 public class InventoryGUI extends JFrame {
+    private static final int FRAME_MS = 16;
+
     private BranchClient branchClient;
     private ChatClient chatClient;
     private DefaultTableModel inventoryTableModel;
     private JTable inventoryTable;
     private JTextField itemNameField;
     private JTextField quantityField;
+    private DefaultTableModel batchTableModel;
+    private JTable batchTable;
+    private JCheckBox partialFillCheckBox;
     private JTextArea chatArea;
     private JTextField chatInputField;
     private JLabel statusLabel;
-    private Timer refreshTimer;
+    private Timer renderTimer;
+    private long lastRenderNanos;
+    // Items changed since the last redraw, whether every item may have, and
+    // whether a redraw is on its way; guarded by changeLock
+    private Object changeLock = new Object();
+    private Set<String> changedItems = new HashSet<>();
+    private boolean allChanged;
+    private boolean renderScheduled;
+    // Whether the table shows the offline stock; event thread only
+    private boolean shownOffline;
+    // Row of each item in inventoryTableModel; event thread only
+    private Map<String, Integer> inventoryRows = new HashMap<>();
 
     public InventoryGUI(BranchClient branchClient, ChatClient chatClient) {
         this.branchClient = branchClient;
@@ -28,7 +59,6 @@ public class InventoryGUI extends JFrame {
         initializeComponents();
         setupLayout();
         setupEventHandlers();
-        startRefreshTimer();
 
         setTitle("Branch Inventory Management System");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -54,6 +84,12 @@ public class InventoryGUI extends JFrame {
         itemNameField = new JTextField(15);
         quantityField = new JTextField(10);
 
+        // Batch order lines, edited in place
+        batchTableModel = new DefaultTableModel(new String[] { "Item", "Quantity" }, 0);
+        batchTable = new JTable(batchTableModel);
+        batchTable.getTableHeader().setReorderingAllowed(false);
+        partialFillCheckBox = new JCheckBox("Allow partial fill");
+
         // Chat components
         chatArea = new JTextArea(10, 30);
         chatArea.setEditable(false);
@@ -66,7 +102,9 @@ public class InventoryGUI extends JFrame {
         statusLabel.setBorder(BorderFactory.createEtchedBorder());
 
         // Load initial inventory data
-        updateInventoryTable();
+        renderTimer = new Timer(FRAME_MS, e -> renderInventory());
+        renderTimer.setRepeats(false);
+        inventoryChanged();
     }
 
     private void setupLayout() {
@@ -95,7 +133,7 @@ public class InventoryGUI extends JFrame {
 
         // Add refresh button
         JButton refreshButton = new JButton("Refresh");
-        refreshButton.addActionListener(e -> updateInventoryTable());
+        refreshButton.addActionListener(e -> inventoryChanged());
         JPanel buttonPanel = new JPanel(new FlowLayout());
         buttonPanel.add(refreshButton);
         panel.add(buttonPanel, BorderLayout.SOUTH);
@@ -138,6 +176,7 @@ public class InventoryGUI extends JFrame {
         inputPanel.add(requestButton, gbc);
 
         panel.add(inputPanel, BorderLayout.NORTH);
+        panel.add(createBatchOrderPanel(), BorderLayout.CENTER);
 
         // Add action listener for request button
         requestButton.addActionListener(e -> handleReplenishmentRequest());
@@ -145,6 +184,40 @@ public class InventoryGUI extends JFrame {
         return panel;
     }
 
+    private JPanel createBatchOrderPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBorder(BorderFactory.createTitledBorder("Batch Order"));
+
+        JScrollPane scrollPane = new JScrollPane(batchTable);
+        scrollPane.setPreferredSize(new Dimension(400, 100));
+        panel.add(scrollPane, BorderLayout.CENTER);
+
+        JButton addLineButton = new JButton("Add Line");
+        JButton removeLineButton = new JButton("Remove Line");
+        JButton submitButton = new JButton("Submit Batch");
+        submitButton.setBackground(new Color(70, 130, 180));
+        submitButton.setForeground(Color.WHITE);
+
+        JPanel buttonPanel = new JPanel(new FlowLayout());
+        buttonPanel.add(addLineButton);
+        buttonPanel.add(removeLineButton);
+        buttonPanel.add(partialFillCheckBox);
+        buttonPanel.add(submitButton);
+        panel.add(buttonPanel, BorderLayout.SOUTH);
+
+        addLineButton.addActionListener(e -> batchTableModel.addRow(new Object[] { "", "" }));
+        removeLineButton.addActionListener(e -> {
+            int selectedRow = batchTable.getSelectedRow();
+            if (selectedRow >= 0) {
+                stopBatchEditing();
+                batchTableModel.removeRow(selectedRow);
+            }
+        });
+        submitButton.addActionListener(e -> handleBatchRequest());
+
+        return panel;
+    }
+
     private JPanel createChatPanel() {
         JPanel panel = new JPanel(new BorderLayout());
         panel.setBorder(BorderFactory.createTitledBorder("Chat"));
@@ -195,33 +268,104 @@ public class InventoryGUI extends JFrame {
         });
     }
 
-    private void startRefreshTimer() {
-        // Auto-refresh inventory every 5 seconds
-        refreshTimer = new Timer(5000, e -> updateInventoryTable());
-        refreshTimer.start();
+    // Any thread; for when any item may have changed
+    public void inventoryChanged() {
+        inventoryChanged(null);
     }
 
-    private void updateInventoryTable() {
-        SwingUtilities.invokeLater(() -> {
-            try {
-                Map<String, Integer> inventory = branchClient.getLocalInventory();
-
-                // Clear existing data
-                inventoryTableModel.setRowCount(0);
+    // Any thread; items null for all of them
+    public void inventoryChanged(Collection<String> items) {
+        synchronized (changeLock) {
+            if (items == null) {
+                allChanged = true;
+                changedItems.clear();
+            } else if (!allChanged) {
+                changedItems.addAll(items);
+            }
+            if (renderScheduled) {
+                return;
+            }
+            renderScheduled = true;
+        }
+        SwingUtilities.invokeLater(this::scheduleRender);
+    }
 
-                // Add current inventory data
-                for (Map.Entry<String, Integer> entry : inventory.entrySet()) {
-                    Object[] row = { entry.getKey(), entry.getValue() };
-                    inventoryTableModel.addRow(row);
-                }
+    private void scheduleRender() {
+        long sinceLast = (System.nanoTime() - lastRenderNanos) / 1_000_000;
+        renderTimer.setInitialDelay((int) Math.max(0, Math.min(FRAME_MS, FRAME_MS - sinceLast)));
+        renderTimer.restart();
+    }
 
-                // Update status
-                updateStatus("Inventory updated at " + java.time.LocalTime.now().toString().substring(0, 8));
+    private void renderInventory() {
+        lastRenderNanos = System.nanoTime();
+        Set<String> items;
+        boolean all;
+        // Taken first, so a change made while reading schedules another redraw
+        synchronized (changeLock) {
+            items = changedItems;
+            all = allChanged;
+            changedItems = new HashSet<>();
+            allChanged = false;
+            renderScheduled = false;
+        }
+        // Offline the branch orders against its own copy of the stock
+        if (branchClient.isOffline() != shownOffline) {
+            shownOffline = !shownOffline;
+            all = true;
+        }
+        if (!all && items.isEmpty()) {
+            return;
+        }
+        Map<String, Integer> inventory;
+        try {
+            inventory = all ? branchClient.getLocalInventory() : branchClient.getLocalInventory(items);
+        } catch (Exception e) {
+            statusLabel.setText("Error updating inventory: " + e.getMessage());
+            return;
+        }
 
-            } catch (Exception e) {
-                updateStatus("Error updating inventory: " + e.getMessage());
+        boolean changed = false;
+        for (Map.Entry<String, Integer> entry : inventory.entrySet()) {
+            Integer row = inventoryRows.get(entry.getKey());
+            if (row == null) {
+                inventoryRows.put(entry.getKey(), inventoryTableModel.getRowCount());
+                inventoryTableModel.addRow(new Object[] { entry.getKey(), entry.getValue() });
+                changed = true;
+            } else if (!entry.getValue().equals(inventoryTableModel.getValueAt(row, 1))) {
+                inventoryTableModel.setValueAt(entry.getValue(), row, 1);
+                changed = true;
             }
-        });
+        }
+        // Items shown that the branch no longer has, which only a snapshot does
+        List<String> gone = new ArrayList<>();
+        for (String item : all ? inventoryRows.keySet() : items) {
+            if (!inventory.containsKey(item) && inventoryRows.containsKey(item)) {
+                gone.add(item);
+            }
+        }
+        if (!gone.isEmpty()) {
+            removeRows(gone);
+            changed = true;
+        }
+
+        if (changed) {
+            statusLabel.setText("Inventory updated at " + java.time.LocalTime.now().toString().substring(0, 8));
+        }
+    }
+
+    private void removeRows(List<String> gone) {
+        List<Integer> rows = new ArrayList<>();
+        for (String item : gone) {
+            rows.add(inventoryRows.remove(item));
+        }
+        rows.sort(Collections.reverseOrder());
+        for (int row : rows) {
+            inventoryTableModel.removeRow(row);
+        }
+        // Rows below the first one removed have moved up
+        for (int row = rows.get(rows.size() - 1); row < inventoryTableModel.getRowCount(); row++) {
+            inventoryRows.put((String) inventoryTableModel.getValueAt(row, 0), row);
+        }
     }
 
     private void handleReplenishmentRequest() {
@@ -247,6 +391,8 @@ public class InventoryGUI extends JFrame {
 
             // Send replenishment request
             branchClient.requestReplenishment(itemName, quantity);
+            // Taken off the offline stock at once when working offline
+            inventoryChanged(List.of(itemName));
 
             // Clear input fields
             itemNameField.setText("");
@@ -266,6 +412,58 @@ public class InventoryGUI extends JFrame {
         }
     }
 
+    private void stopBatchEditing() {
+        if (batchTable.isEditing()) {
+            batchTable.getCellEditor().stopCellEditing();
+        }
+    }
+
+    private void handleBatchRequest() {
+        stopBatchEditing();
+
+        // Lines for the same item are merged
+        Map<String, Integer> lines = new LinkedHashMap<>();
+        for (int row = 0; row < batchTableModel.getRowCount(); row++) {
+            String itemName = String.valueOf(batchTableModel.getValueAt(row, 0)).trim();
+            String quantityText = String.valueOf(batchTableModel.getValueAt(row, 1)).trim();
+            if (itemName.isEmpty() && quantityText.isEmpty()) {
+                continue;
+            }
+            if (itemName.isEmpty()) {
+                showError("Line " + (row + 1) + ": please enter an item name");
+                return;
+            }
+            try {
+                int quantity = Integer.parseInt(quantityText);
+                if (quantity <= 0) {
+                    showError("Line " + (row + 1) + ": quantity must be a positive number");
+                    return;
+                }
+                lines.merge(itemName, quantity, Integer::sum);
+            } catch (NumberFormatException e) {
+                showError("Line " + (row + 1) + ": quantity must be a valid number");
+                return;
+            }
+        }
+
+        if (lines.isEmpty()) {
+            showError("Please add at least one order line");
+            return;
+        }
+
+        try {
+            Message.FillMode fillMode = partialFillCheckBox.isSelected() ? Message.FillMode.PARTIAL
+                    : Message.FillMode.ALL_OR_NOTHING;
+            branchClient.requestReplenishment(lines, fillMode);
+            inventoryChanged(lines.keySet());
+            batchTableModel.setRowCount(0);
+            updateStatus("Batch order sent for " + lines.size() + " items");
+        } catch (Exception e) {
+            showError("Error sending batch order: " + e.getMessage());
+            updateStatus("Error: " + e.getMessage());
+        }
+    }
+
     private void sendChatMessage() {
         String message = chatInputField.getText().trim();
         if (!message.isEmpty()) {
@@ -301,8 +499,8 @@ public class InventoryGUI extends JFrame {
 
     @Override
     public void dispose() {
-        if (refreshTimer != null) {
-            refreshTimer.stop();
+        if (renderTimer != null) {
+            renderTimer.stop();
         }
         super.dispose();
     }
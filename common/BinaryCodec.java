@@ -0,0 +1,349 @@
+package common;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compact codec. Layout of a payload:
+//
+//   type (1 byte) | flags (1 byte) | timestamp (varint) | version (varint) | sender (ref) | item (ref)
+//   | quantity (zigzag varint) | [content (utf8)] | [inventory (map)] | [lines (map)]
+//   | [correlation id (varint)] | [vector clock] | [order key (utf8)] | [sequence (varint)]
+//   | [chat lines]
+//
+// where a map is count (varint) followed by (ref, zigzag varint) pairs, and a
+// vector clock is count (varint) followed by (ref, varint) pairs. The flags
+// are all taken, so chat lines follow from the type: a CHAT_BATCH ends with a
+// count (varint) and each line laid out as above.
+//
+// Item names and senders are interned per connection: the first time a string is
+// sent it is defined inline and given the next id, afterwards only the id is sent.
+// Not thread-safe; the connection serializes encode and decode calls.
+public class BinaryCodec implements MessageCodec {
+    private static final int MAX_INTERNED = 1 << 16;
+
+    private static final int HAS_CONTENT = 1;
+    private static final int HAS_INVENTORY = 2;
+    private static final int HAS_LINES = 4;
+    private static final int PARTIAL_FILL = 8;
+    private static final int HAS_CORRELATION = 16;
+    private static final int HAS_VECTOR_CLOCK = 32;
+    private static final int HAS_ORDER_KEY = 64;
+    private static final int HAS_SEQUENCE = 128;
+
+    // String reference tags; anything above LITERAL is (id + FIRST_ID)
+    private static final int NULL = 0;
+    private static final int DEFINE = 1;
+    private static final int LITERAL = 2;
+    private static final int FIRST_ID = 3;
+
+    private static final Message.Type[] TYPES = Message.Type.values();
+
+    private Map<String, Integer> encodeIds = new HashMap<>();
+    private List<String> decodeTable = new ArrayList<>();
+
+    private byte[] buf = new byte[128];
+    private int pos;
+
+    @Override
+    public byte getId() {
+        return BINARY;
+    }
+
+    @Override
+    public byte[] encode(Message msg) {
+        pos = 0;
+        writeMessage(msg);
+        byte[] out = new byte[pos];
+        System.arraycopy(buf, 0, out, 0, pos);
+        return out;
+    }
+
+    private void writeMessage(Message msg) {
+        int flags = 0;
+        if (msg.content != null) {
+            flags |= HAS_CONTENT;
+        }
+        if (msg.inventory != null) {
+            flags |= HAS_INVENTORY;
+        }
+        if (msg.lines != null) {
+            flags |= HAS_LINES;
+        }
+        if (msg.fillMode == Message.FillMode.PARTIAL) {
+            flags |= PARTIAL_FILL;
+        }
+        if (msg.correlationId != 0) {
+            flags |= HAS_CORRELATION;
+        }
+        if (msg.vectorClock != null) {
+            flags |= HAS_VECTOR_CLOCK;
+        }
+        if (msg.orderKey != null) {
+            flags |= HAS_ORDER_KEY;
+        }
+        if (msg.sequence != 0) {
+            flags |= HAS_SEQUENCE;
+        }
+        writeByte(msg.type.ordinal());
+        writeByte(flags);
+        writeVarLong(msg.lamportTimestamp);
+        writeVarLong(msg.version);
+        writeRef(msg.sender);
+        writeRef(msg.item);
+        writeVarLong(zigzag(msg.quantity));
+        if (msg.content != null) {
+            writeUtf8(msg.content);
+        }
+        if (msg.inventory != null) {
+            writeMap(msg.inventory);
+        }
+        if (msg.lines != null) {
+            writeMap(msg.lines);
+        }
+        if (msg.correlationId != 0) {
+            writeVarLong(msg.correlationId);
+        }
+        if (msg.vectorClock != null) {
+            writeVarLong(msg.vectorClock.size());
+            for (Map.Entry<String, Long> entry : msg.vectorClock.entrySet()) {
+                writeRef(entry.getKey());
+                writeVarLong(entry.getValue());
+            }
+        }
+        if (msg.orderKey != null) {
+            writeUtf8(msg.orderKey);
+        }
+        if (msg.sequence != 0) {
+            writeVarLong(msg.sequence);
+        }
+        if (msg.type == Message.Type.CHAT_BATCH) {
+            List<Message> lines = msg.chat == null ? List.of() : msg.chat;
+            writeVarLong(lines.size());
+            for (Message line : lines) {
+                writeMessage(line);
+            }
+        }
+    }
+
+    @Override
+    public Message decode(byte[] data, int offset, int length) throws IOException {
+        Reader in = new Reader(data, offset, offset + length);
+        try {
+            return readMessage(in);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated message", e);
+        } catch (RuntimeException e) {
+            // Whatever a peer sends must not get past the connection reading it
+            throw new IOException("Malformed message", e);
+        }
+    }
+
+    private Message readMessage(Reader in) throws IOException {
+        int typeIndex = in.readByte();
+        if (typeIndex >= TYPES.length) {
+            throw new IOException("Unknown message type: " + typeIndex);
+        }
+        int flags = in.readByte();
+        long timestamp = in.readVarLong();
+        long version = in.readVarLong();
+        String sender = readRef(in);
+        String item = readRef(in);
+        int quantity = unzigzag(in.readVarLong());
+        String content = (flags & HAS_CONTENT) != 0 ? in.readUtf8() : null;
+        Map<String, Integer> inventory = (flags & HAS_INVENTORY) != 0 ? readMap(in) : null;
+        Message msg = new Message(TYPES[typeIndex], sender, content, inventory, timestamp);
+        msg.item = item;
+        msg.quantity = quantity;
+        msg.version = version;
+        if ((flags & HAS_LINES) != 0) {
+            msg.lines = readMap(in);
+        }
+        msg.fillMode = (flags & PARTIAL_FILL) != 0 ? Message.FillMode.PARTIAL : Message.FillMode.ALL_OR_NOTHING;
+        if ((flags & HAS_CORRELATION) != 0) {
+            msg.correlationId = in.readVarLong();
+        }
+        if ((flags & HAS_VECTOR_CLOCK) != 0) {
+            msg.vectorClock = readVectorClock(in);
+        }
+        if ((flags & HAS_ORDER_KEY) != 0) {
+            msg.orderKey = in.readUtf8();
+        }
+        if ((flags & HAS_SEQUENCE) != 0) {
+            msg.sequence = in.readVarLong();
+        }
+        if (msg.type == Message.Type.CHAT_BATCH) {
+            int size = (int) in.readVarLong();
+            if (size < 0 || size > in.remaining()) {
+                throw new IOException("Malformed chat batch size: " + size);
+            }
+            msg.chat = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                msg.chat.add(readMessage(in));
+            }
+        }
+        return msg;
+    }
+
+    private Map<String, Long> readVectorClock(Reader in) throws IOException {
+        int size = (int) in.readVarLong();
+        if (size < 0 || size > in.remaining()) {
+            throw new IOException("Malformed vector clock size: " + size);
+        }
+        Map<String, Long> clock = new HashMap<>(Math.max(16, size * 2));
+        for (int i = 0; i < size; i++) {
+            clock.put(readRef(in), in.readVarLong());
+        }
+        return clock;
+    }
+
+    private void writeMap(Map<String, Integer> map) {
+        writeVarLong(map.size());
+        for (Map.Entry<String, Integer> entry : map.entrySet()) {
+            writeRef(entry.getKey());
+            writeVarLong(zigzag(entry.getValue()));
+        }
+    }
+
+    // Keeps the sender's iteration order, which matters for batch order lines
+    private Map<String, Integer> readMap(Reader in) throws IOException {
+        int size = (int) in.readVarLong();
+        if (size < 0 || size > in.remaining()) {
+            throw new IOException("Malformed map size: " + size);
+        }
+        Map<String, Integer> map = new LinkedHashMap<>(Math.max(16, size * 2));
+        for (int i = 0; i < size; i++) {
+            String key = readRef(in);
+            map.put(key, unzigzag(in.readVarLong()));
+        }
+        return map;
+    }
+
+    private void writeRef(String s) {
+        if (s == null) {
+            writeVarLong(NULL);
+            return;
+        }
+        Integer id = encodeIds.get(s);
+        if (id != null) {
+            writeVarLong(id + FIRST_ID);
+        } else if (encodeIds.size() < MAX_INTERNED) {
+            encodeIds.put(s, encodeIds.size());
+            writeVarLong(DEFINE);
+            writeUtf8(s);
+        } else {
+            writeVarLong(LITERAL);
+            writeUtf8(s);
+        }
+    }
+
+    private String readRef(Reader in) throws IOException {
+        long tag = in.readVarLong();
+        if (tag < 0 || tag >= FIRST_ID + decodeTable.size()) {
+            throw new IOException("Unknown string tag: " + tag);
+        }
+        switch ((int) tag) {
+            case NULL:
+                return null;
+            case DEFINE:
+                // The encoder stops defining at MAX_INTERNED, so a peer that goes on is broken
+                if (decodeTable.size() >= MAX_INTERNED) {
+                    throw new IOException("More than " + MAX_INTERNED + " strings defined");
+                }
+                String s = in.readUtf8();
+                decodeTable.add(s);
+                return s;
+            case LITERAL:
+                return in.readUtf8();
+            default:
+                return decodeTable.get((int) tag - FIRST_ID);
+        }
+    }
+
+    private void writeUtf8(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    private void writeVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(1);
+        buf[pos++] = (byte) b;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (pos + extra > buf.length) {
+            byte[] bigger = new byte[Math.max(buf.length * 2, pos + extra)];
+            System.arraycopy(buf, 0, bigger, 0, pos);
+            buf = bigger;
+        }
+    }
+
+    static long zigzag(int value) {
+        return ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL;
+    }
+
+    static int unzigzag(long value) {
+        return (int) (value >>> 1) ^ -(int) (value & 1);
+    }
+
+    private static class Reader {
+        private byte[] data;
+        private int pos;
+        private int end;
+
+        Reader(byte[] data, int pos, int end) {
+            this.data = data;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        int remaining() {
+            return end - pos;
+        }
+
+        int readByte() throws IOException {
+            if (pos >= end) {
+                throw new IOException("Truncated message");
+            }
+            return data[pos++] & 0xFF;
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        String readUtf8() throws IOException {
+            int length = (int) readVarLong();
+            if (length < 0 || length > end - pos) {
+                throw new IOException("Truncated message");
+            }
+            String s = new String(data, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+// Every message on the wire is sent as [int length][payload] so that both the
+// blocking and the non-blocking server transports can find message boundaries.
+// The payload format is decided by the MessageCodec negotiated on connect.
+public class FrameCodec {
+    public static final int HEADER_SIZE = 4;
+
+    public static void writeFrame(DataOutputStream out, byte[] payload) throws IOException {
+        appendFrame(out, payload);
+        out.flush();
+    }
+
+    // Writes a frame without flushing, so several frames can go out together
+    public static void appendFrame(DataOutputStream out, byte[] payload) throws IOException {
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    public static void writeFrame(DataOutputStream out, MessageCodec codec, Message msg) throws IOException {
+        writeFrame(out, codec.encode(msg));
+    }
+
+    public static byte[] readPayload(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    public static Message readFrame(DataInputStream in, MessageCodec codec) throws IOException {
+        byte[] payload = readPayload(in);
+        return codec.decode(payload, 0, payload.length);
+    }
+
+    public static void checkLength(int length) throws IOException {
+        if (length < 0 || length > Protocol.MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+    }
+}
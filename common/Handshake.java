@@ -0,0 +1,62 @@
+package common;
+
+import java.io.IOException;
+
+// Codec negotiation. The client's first frame lists the codecs it supports in
+// order of preference; the server answers with the one it picked. A first frame
+// without the magic prefix is treated as a Java-serialized message from a client
+// that does not negotiate, and the connection stays on Java serialization.
+public class Handshake {
+    private static final byte[] MAGIC = { 'W', 'H', 'S' };
+    private static final byte VERSION = 1;
+
+    public static byte[] hello(byte... codecIds) {
+        byte[] payload = new byte[MAGIC.length + 2 + codecIds.length];
+        System.arraycopy(MAGIC, 0, payload, 0, MAGIC.length);
+        payload[MAGIC.length] = VERSION;
+        payload[MAGIC.length + 1] = (byte) codecIds.length;
+        System.arraycopy(codecIds, 0, payload, MAGIC.length + 2, codecIds.length);
+        return payload;
+    }
+
+    public static byte[] accept(byte codecId) {
+        return hello(codecId);
+    }
+
+    public static boolean isHandshake(byte[] payload) {
+        if (payload.length < MAGIC.length + 2) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (payload[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static byte[] codecIds(byte[] payload) throws IOException {
+        if (!isHandshake(payload)) {
+            throw new IOException("Not a handshake frame");
+        }
+        int count = payload[MAGIC.length + 1];
+        if (count < 0 || payload.length != MAGIC.length + 2 + count) {
+            throw new IOException("Malformed handshake frame");
+        }
+        byte[] ids = new byte[count];
+        System.arraycopy(payload, MAGIC.length + 2, ids, 0, count);
+        return ids;
+    }
+
+    // Picks the first codec the client offered that the server allows
+    public static byte choose(byte[] offered, byte[] allowed) {
+        for (byte id : offered) {
+            for (byte ok : allowed) {
+                if (id == ok) {
+                    return id;
+                }
+            }
+        }
+        return MessageCodec.JAVA;
+    }
+}
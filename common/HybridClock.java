@@ -0,0 +1,56 @@
+package common;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hybrid logical clock. A timestamp is one long: wall-clock milliseconds in
+// the high 48 bits and a logical counter in the low 16. It never runs
+// backwards, stays close to real time, and like a Lamport clock every event
+// is stamped later than any message that could have caused it.
+//
+// tick() stamps a local or send event and update() merges a received
+// timestamp. Both are a compare-and-set on one AtomicLong, so threads sending
+// at once never wait on each other.
+public class HybridClock {
+    private static final int LOGICAL_BITS = 16;
+    private static final long LOGICAL_MASK = (1L << LOGICAL_BITS) - 1;
+
+    private AtomicLong last = new AtomicLong();
+
+    public long tick() {
+        while (true) {
+            long previous = last.get();
+            long wall = System.currentTimeMillis() << LOGICAL_BITS;
+            // A full logical counter carries into the milliseconds, which only run a little ahead
+            long next = wall > previous ? wall : previous + 1;
+            if (last.compareAndSet(previous, next)) {
+                return next;
+            }
+        }
+    }
+
+    // Returns the timestamp of the receive event
+    public long update(long received) {
+        while (true) {
+            long previous = last.get();
+            long wall = System.currentTimeMillis() << LOGICAL_BITS;
+            long latest = Math.max(previous, received);
+            long next = wall > latest ? wall : latest + 1;
+            if (last.compareAndSet(previous, next)) {
+                return next;
+            }
+        }
+    }
+
+    // Latest timestamp handed out, without advancing the clock
+    public long current() {
+        return last.get();
+    }
+
+    public static long wallTime(long timestamp) {
+        return timestamp >>> LOGICAL_BITS;
+    }
+
+    public static int logical(long timestamp) {
+        return (int) (timestamp & LOGICAL_MASK);
+    }
+}
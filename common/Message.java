@@ -1,21 +1,91 @@
 package common;
 
 import java.io.Serializable;
+import java.util.List;
 import java.util.Map;
 
 public class Message implements Serializable {
-    public enum Type { REQUEST, REPLY, UPDATE, CHAT, REPLENISH, DENY }
+    // UPDATE carries only the changed items; SYNC asks for a SNAPSHOT of everything.
+    // BATCH_REPLENISH orders several lines at once and is answered with BATCH_RESULT.
+    public enum Type {
+        REQUEST, REPLY, UPDATE, CHAT, REPLENISH, DENY, SYNC, SNAPSHOT, BATCH_REPLENISH, BATCH_RESULT,
+        // Mutual exclusion messages beyond REQUEST/REPLY, see server.MutualExclusion
+        RELEASE, INQUIRE, FAILED, YIELD, TOKEN,
+        // A cluster follower returning an order; content is the leader's host:port
+        REDIRECT,
+        // Sharded warehouse, see common.ShardRing. ROUTES carries the ring spec in
+        // content. A batch spanning shards is reserved on each with PREPARE, voted
+        // on with PREPARED (quantity 1 yes, 0 no) and finished with COMMIT or
+        // ABORT; version is the branch's transaction id. HANDOFF moves stock to a
+        // shard that has joined the ring.
+        ROUTES, PREPARE, PREPARED, COMMIT, ABORT, HANDOFF,
+        // A single REPLENISH that was filled, sent only to a branch that gave it a correlation id
+        APPROVE,
+        // Read-only stock lookup: of item, of the keys of lines, or of every item
+        // starting with content. QUERY_RESULT has the quantities in inventory and
+        // the inventory version they are as of.
+        QUERY, QUERY_RESULT,
+        // Session resumption. SESSION tells a branch its session token (content),
+        // which is secret, when it connects. A branch that reconnects sends RESUME with that token,
+        // the last event sequence it saw (-1 for a snapshot) and, in version, the
+        // last chat line; the server sends the UPDATE events it missed and then a
+        // CATCH_UP, or a SNAPSHOT if they are no longer kept. CATCH_UP has the items changed by
+        // events not resent, as of version, and the sequence the branch is now up to.
+        CATCH_UP, SESSION, RESUME,
+        // Replaces what the branch gets UPDATEs and CHAT for, see common.Topics
+        SUBSCRIBE,
+        // Chat from the server, see server.ChatService. CHAT_BATCH carries CHAT
+        // lines in chat, each numbered in sequence by the server's chat history.
+        // HISTORY asks for up to quantity lines of channel item before sequence
+        // (0 for the newest) and is answered with a CHAT_BATCH of them, oldest
+        // first, under its correlation id.
+        CHAT_BATCH, HISTORY
+    }
+
+    // How a batch order is filled when some lines cannot be
+    public enum FillMode { ALL_OR_NOTHING, PARTIAL }
+
     public Type type;
     public String sender;
     public String content;
+    // Also the channel of a CHAT, null for the general one
+    public String item;
+    public int quantity;
     public Map<String, Integer> inventory;
-    public int lamportTimestamp;
+    // Sender's HybridClock reading when it sent the message
+    public long lamportTimestamp;
+    // Inventory version an UPDATE moves to, or that a SNAPSHOT reflects
+    public long version;
+    // Lines of a batch order (item -> quantity requested, or granted in a BATCH_RESULT)
+    public Map<String, Integer> lines;
+    public FillMode fillMode = FillMode.ALL_OR_NOTHING;
+    // Chosen by the branch for an order and echoed on every answer to it; 0 for none
+    public long correlationId;
+    // Sender's VectorClock stamp (process -> count) when one is kept, else null
+    public Map<String, Long> vectorClock;
+    // Idempotency key of an order, unique per branch queue; a server that has
+    // already answered an order with this key answers the same again
+    public String orderKey;
+    // Position of a broadcast UPDATE in the server's EventLog, of a CHAT line
+    // in its chat history, or the last position a SNAPSHOT or CATCH_UP covers;
+    // 0 for none
+    public long sequence;
+    // Lines of a CHAT_BATCH
+    public List<Message> chat;
 
-    public Message(Type type, String sender, String content, Map<String, Integer> inventory, int lamportTimestamp) {
+    public Message(Type type, String sender, String content, Map<String, Integer> inventory, long lamportTimestamp) {
         this.type = type;
         this.sender = sender;
         this.content = content;
         this.inventory = inventory;
         this.lamportTimestamp = lamportTimestamp;
     }
+
+    public Message(Type type, String sender, String item, int quantity, long lamportTimestamp) {
+        this.type = type;
+        this.sender = sender;
+        this.item = item;
+        this.quantity = quantity;
+        this.lamportTimestamp = lamportTimestamp;
+    }
 } 
\ No newline at end of file
@@ -0,0 +1,28 @@
+package common;
+
+import java.io.IOException;
+
+// Turns a Message into a frame payload and back. Codecs may keep per-connection
+// state (see BinaryCodec), so each connection owns its own instance and callers
+// must encode in the same order the frames are written.
+public interface MessageCodec {
+    byte JAVA = 1;
+    byte BINARY = 2;
+
+    byte getId();
+
+    byte[] encode(Message msg) throws IOException;
+
+    Message decode(byte[] data, int offset, int length) throws IOException;
+
+    static MessageCodec create(byte id) {
+        switch (id) {
+            case JAVA:
+                return new JavaSerializationCodec();
+            case BINARY:
+                return new BinaryCodec();
+            default:
+                throw new IllegalArgumentException("Unknown codec id: " + id);
+        }
+    }
+}
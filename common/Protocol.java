@@ -2,5 +2,6 @@ package common;
 
 public class Protocol {
     public static final int SERVER_PORT = 5000;
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
     // Add more protocol constants as needed
 } 
\ No newline at end of file
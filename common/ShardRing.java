@@ -0,0 +1,137 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Consistent hashing of item names onto the shards of a partitioned
+// warehouse. Every shard is placed on a 64-bit ring at VIRTUAL_NODES points
+// and owns the items that hash up to each of them, so adding a shard only
+// moves the items landing on its new points, about 1/N of the catalogue.
+//
+// Written as "id@host:port,..." in --shards and in ROUTES messages. Shards are
+// only ever added, so of two rings the one with more shards is the newer.
+public class ShardRing {
+    private static final int VIRTUAL_NODES = 64;
+
+    private Map<String, String> addresses = new LinkedHashMap<>();
+    // Sorted ring positions and the shard at each
+    private long[] points;
+    private String[] owners;
+
+    private ShardRing(Map<String, String> addresses) {
+        this.addresses.putAll(addresses);
+        int count = addresses.size() * VIRTUAL_NODES;
+        long[] hashes = new long[count];
+        String[] shards = new String[count];
+        int i = 0;
+        for (String shard : addresses.keySet()) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                hashes[i] = hash(shard + "#" + v);
+                shards[i] = shard;
+                i++;
+            }
+        }
+        Integer[] order = new Integer[count];
+        for (int j = 0; j < count; j++) {
+            order[j] = j;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(hashes[a], hashes[b]));
+        points = new long[count];
+        owners = new String[count];
+        for (int j = 0; j < count; j++) {
+            points[j] = hashes[order[j]];
+            owners[j] = shards[order[j]];
+        }
+    }
+
+    // Parses "id@host:port,..."
+    public static ShardRing parse(String spec) {
+        Map<String, String> addresses = new LinkedHashMap<>();
+        for (String part : spec.split(",")) {
+            String[] idAndAddress = part.trim().split("@");
+            if (idAndAddress.length != 2 || !idAndAddress[1].contains(":")) {
+                throw new IllegalArgumentException("Expected id@host:port but got: " + part);
+            }
+            addresses.put(idAndAddress[0], idAndAddress[1]);
+        }
+        return new ShardRing(addresses);
+    }
+
+    public String ownerOf(String item) {
+        int i = Arrays.binarySearch(points, hash(item));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        // Past the last point wraps around to the first
+        return owners[i == points.length ? 0 : i];
+    }
+
+    public boolean owns(String shard, String item) {
+        return ownerOf(item).equals(shard);
+    }
+
+    // Splits batch lines by owning shard, keeping their order within each shard
+    public Map<String, Map<String, Integer>> partition(Map<String, Integer> lines) {
+        Map<String, Map<String, Integer>> byShard = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> line : lines.entrySet()) {
+            byShard.computeIfAbsent(ownerOf(line.getKey()), s -> new LinkedHashMap<>()).put(line.getKey(),
+                    line.getValue());
+        }
+        return byShard;
+    }
+
+    public List<String> getShardIds() {
+        return new ArrayList<>(addresses.keySet());
+    }
+
+    // host:port of a shard, or null if it is not in the ring
+    public String getAddress(String shard) {
+        return addresses.get(shard);
+    }
+
+    public int size() {
+        return addresses.size();
+    }
+
+    // Whether this ring is other plus at least one new shard, as after a rebalance
+    public boolean supersedes(ShardRing other) {
+        if (size() <= other.size()) {
+            return false;
+        }
+        for (Map.Entry<String, String> shard : other.addresses.entrySet()) {
+            if (!shard.getValue().equals(addresses.get(shard.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String toSpec() {
+        StringBuilder spec = new StringBuilder();
+        for (Map.Entry<String, String> shard : addresses.entrySet()) {
+            if (spec.length() > 0) {
+                spec.append(',');
+            }
+            spec.append(shard.getKey()).append('@').append(shard.getValue());
+        }
+        return spec.toString();
+    }
+
+    // FNV-1a over the characters, then a murmur3 finalizer so similar names spread out
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb3fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,102 @@
+package common;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+// What a branch subscribes to, sent as the content of a SUBSCRIBE:
+//
+//   item:Apples,category:Item0001,chat:east
+//
+// item names one item, category every item whose name starts with it, chat
+// a chat channel. A branch that names no item or category gets every stock
+// update, and one that names no channel gets chat on every channel.
+public class Topics {
+    private static final String ITEM = "item:";
+    private static final String CATEGORY = "category:";
+    private static final String CHAT = "chat:";
+    // Channel of CHAT messages that name none
+    public static final String GENERAL = "general";
+
+    private Set<String> items;
+    private Set<String> categories;
+    private Set<String> channels;
+
+    public Topics(Collection<String> items, Collection<String> categories, Collection<String> channels) {
+        this.items = Collections.unmodifiableSet(new TreeSet<>(items));
+        this.categories = Collections.unmodifiableSet(new TreeSet<>(categories));
+        this.channels = Collections.unmodifiableSet(new TreeSet<>(channels));
+    }
+
+    public static Topics parse(String spec) {
+        Set<String> items = new TreeSet<>();
+        Set<String> categories = new TreeSet<>();
+        Set<String> channels = new TreeSet<>();
+        if (spec != null && !spec.isEmpty()) {
+            for (String topic : spec.split(",")) {
+                if (topic.startsWith(ITEM)) {
+                    items.add(topic.substring(ITEM.length()));
+                } else if (topic.startsWith(CATEGORY)) {
+                    categories.add(topic.substring(CATEGORY.length()));
+                } else if (topic.startsWith(CHAT)) {
+                    channels.add(topic.substring(CHAT.length()));
+                } else {
+                    throw new IllegalArgumentException("Unknown topic: " + topic);
+                }
+            }
+        }
+        return new Topics(items, categories, channels);
+    }
+
+    public String toSpec() {
+        StringBuilder spec = new StringBuilder();
+        for (String item : items) {
+            spec.append(',').append(ITEM).append(item);
+        }
+        for (String category : categories) {
+            spec.append(',').append(CATEGORY).append(category);
+        }
+        for (String channel : channels) {
+            spec.append(',').append(CHAT).append(channel);
+        }
+        return spec.length() == 0 ? "" : spec.substring(1);
+    }
+
+    public boolean isAllStock() {
+        return items.isEmpty() && categories.isEmpty();
+    }
+
+    public boolean isAllChat() {
+        return channels.isEmpty();
+    }
+
+    public boolean wantsItem(String item) {
+        if (isAllStock() || items.contains(item)) {
+            return true;
+        }
+        for (String category : categories) {
+            if (item.startsWith(category)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // channel may be null for the general channel
+    public boolean wantsChannel(String channel) {
+        return isAllChat() || channels.contains(channel == null ? GENERAL : channel);
+    }
+
+    public Set<String> getItems() {
+        return items;
+    }
+
+    public Set<String> getCategories() {
+        return categories;
+    }
+
+    public Set<String> getChannels() {
+        return channels;
+    }
+}
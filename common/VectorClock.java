@@ -0,0 +1,75 @@
+package common;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Vector clock over named processes (branch names). Unlike a HybridClock
+// timestamp it tells whether two events are causally related or concurrent,
+// at the cost of one counter per process, so it is only carried where that
+// matters (Message.vectorClock on chat messages).
+//
+// Also used to deliver messages in causal order: a process keeps the clock
+// of what it has delivered and holds back a message until everything the
+// sender had seen before sending it has been delivered too.
+public class VectorClock {
+    public enum Order {
+        BEFORE, AFTER, EQUAL, CONCURRENT
+    }
+
+    private Map<String, Long> counters = new HashMap<>();
+
+    // Counts a send by process and returns the stamp to send with it
+    public synchronized Map<String, Long> tick(String process) {
+        counters.merge(process, 1L, Long::sum);
+        return new HashMap<>(counters);
+    }
+
+    public synchronized void merge(Map<String, Long> received) {
+        received.forEach((process, count) -> counters.merge(process, count, Math::max));
+    }
+
+    // Whether a message from sender stamped this way can be delivered after
+    // what this clock has delivered: it is the sender's next message and
+    // everything else it depends on is here. A process not heard from yet
+    // counts as caught up, since what it sent before we joined never arrives.
+    public synchronized boolean canDeliver(String sender, Map<String, Long> stamp) {
+        for (Map.Entry<String, Long> entry : stamp.entrySet()) {
+            Long delivered = counters.get(entry.getKey());
+            if (delivered == null) {
+                continue;
+            }
+            long allowed = entry.getKey().equals(sender) ? delivered + 1 : delivered;
+            if (entry.getValue() > allowed) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized Map<String, Long> toMap() {
+        return new HashMap<>(counters);
+    }
+
+    // Where stamp a happened relative to stamp b
+    public static Order compare(Map<String, Long> a, Map<String, Long> b) {
+        boolean before = false;
+        boolean after = false;
+        Map<String, Long> all = new HashMap<>(a);
+        b.forEach((process, count) -> all.putIfAbsent(process, 0L));
+        for (String process : all.keySet()) {
+            long left = a.getOrDefault(process, 0L);
+            long right = b.getOrDefault(process, 0L);
+            before |= left < right;
+            after |= left > right;
+        }
+        if (before && after) {
+            return Order.CONCURRENT;
+        }
+        return before ? Order.BEFORE : after ? Order.AFTER : Order.EQUAL;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return counters.toString();
+    }
+}
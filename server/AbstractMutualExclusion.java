@@ -0,0 +1,140 @@
+package server;
+
+import common.HybridClock;
+import common.Message;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Plumbing shared by the MutualExclusion algorithms. Every event (a local
+// request or release, an incoming message, a node leaving) runs under one lock.
+// Messages a node sends to itself are handled right after the event that sent
+// them, and entry futures are completed once the lock is released, so code
+// that runs on entry may call straight back in.
+abstract class AbstractMutualExclusion implements MutualExclusion {
+    // ReentrantLock rather than synchronized so virtual threads are not pinned
+    private final ReentrantLock lock = new ReentrantLock();
+
+    protected String nodeId;
+    // Shared with the rest of the node, see getClock()
+    protected HybridClock clock = new HybridClock();
+    // Every other node and where to send its messages
+    protected Map<String, Connection> nodes = new HashMap<>();
+
+    private Queue<Message> loopback = new ArrayDeque<>();
+    private List<CompletableFuture<Void>> entered = new ArrayList<>();
+    private long messagesSent;
+
+    protected AbstractMutualExclusion(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    protected abstract void request(String resource, CompletableFuture<Void> request);
+
+    protected abstract void release(String resource);
+
+    protected abstract void receive(String senderId, Message msg);
+
+    protected abstract void nodeRemoved(String nodeId);
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void addNode(String nodeId, Connection connection) {
+        run(() -> nodes.put(nodeId, connection));
+    }
+
+    @Override
+    public void removeNode(String nodeId) {
+        run(() -> {
+            if (nodes.remove(nodeId) != null) {
+                nodeRemoved(nodeId);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> requestCS(String resource) {
+        CompletableFuture<Void> request = new CompletableFuture<>();
+        run(() -> request(resource, request));
+        return request;
+    }
+
+    @Override
+    public void releaseCS(String resource) {
+        run(() -> release(resource));
+    }
+
+    @Override
+    public void handleMessage(String senderId, Message msg) {
+        run(() -> {
+            clock.update(msg.lamportTimestamp);
+            receive(senderId, msg);
+        });
+    }
+
+    @Override
+    public HybridClock getClock() {
+        return clock;
+    }
+
+    @Override
+    public long getMessagesSent() {
+        lock.lock();
+        try {
+            return messagesSent;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void run(Runnable event) {
+        List<CompletableFuture<Void>> ready;
+        lock.lock();
+        try {
+            event.run();
+            Message msg;
+            while ((msg = loopback.poll()) != null) {
+                receive(nodeId, msg);
+            }
+            ready = new ArrayList<>(entered);
+            entered.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (CompletableFuture<Void> request : ready) {
+            request.complete(null);
+        }
+    }
+
+    // Caller holds the lock; send() only queues, so this never blocks
+    protected void send(String targetNodeId, Message.Type type, String resource, int value, long timestamp) {
+        Message msg = new Message(type, nodeId, resource, value, timestamp);
+        send(targetNodeId, msg);
+    }
+
+    protected void send(String targetNodeId, Message msg) {
+        if (targetNodeId.equals(nodeId)) {
+            loopback.add(msg);
+            return;
+        }
+        Connection connection = nodes.get(targetNodeId);
+        if (connection != null) {
+            connection.send(msg);
+            messagesSent++;
+        }
+    }
+
+    // Caller holds the lock; the request completes when the current event is done
+    protected void enter(CompletableFuture<Void> request) {
+        entered.add(request);
+    }
+}
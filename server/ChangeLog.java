@@ -0,0 +1,11 @@
+package server;
+
+import java.io.IOException;
+import java.util.Map;
+
+// Where approved stock changes are recorded before they are committed and
+// acknowledged: the local write-ahead log, or the replicated cluster log.
+public interface ChangeLog {
+    // Blocks until the change is safe and returns its position in the log
+    long append(Map<String, Integer> deltas) throws IOException;
+}
@@ -0,0 +1,251 @@
+package server;
+
+import common.Message;
+import common.Topics;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+// Every chat line the server has delivered, on disk so branches can page back
+// through a channel's history, and a reconnecting branch can be sent what it missed.
+//
+// The file is append-only; each record is [int length][int crc][body] with
+// the body the line's number, channel, sender, timestamp, text and vector
+// clock, so replayed chat still goes into a branch's causal order. Lines
+// are numbered from 1 and kept for good. Only where each line starts is held
+// in memory, per channel, and a page is read back from the file when asked for.
+// A torn record at the end is cut off on open.
+//
+// Appends are not forced to disk: a crash may lose the last lines, never
+// the order of those before. Used from ChatService's delivery thread only.
+public class ChatHistory {
+    private static final int MAX_RECORD = 1 << 20;
+
+    // Numbers and file positions of one channel's lines, in order
+    private static class Lines {
+        private long[] ids = new long[16];
+        private long[] offsets = new long[16];
+        private int size;
+
+        void add(long id, long offset) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            ids[size] = id;
+            offsets[size] = offset;
+            size++;
+        }
+
+        // Index of the first line numbered at least id
+        int indexOf(long id) {
+            int found = Arrays.binarySearch(ids, 0, size, id);
+            return found >= 0 ? found : -found - 1;
+        }
+    }
+
+    private Path file;
+    private FileChannel channel;
+    private long size;
+    private long lastId;
+    private Map<String, Lines> byChannel = new TreeMap<>();
+
+    private ChatHistory(Path file) {
+        this.file = file;
+    }
+
+    public static ChatHistory open(Path file) throws IOException {
+        ChatHistory history = new ChatHistory(file);
+        history.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        history.load();
+        return history;
+    }
+
+    // For a server without a data directory: gone when the server stops
+    public static ChatHistory openTemporary() throws IOException {
+        Path file = Files.createTempFile("chat", ".log");
+        file.toFile().deleteOnExit();
+        return open(file);
+    }
+
+    private void load() throws IOException {
+        long end = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(8);
+        while (size + 8 <= end) {
+            header.clear();
+            readFully(header, size);
+            header.flip();
+            int length = header.getInt();
+            int expectedCrc = header.getInt();
+            if (length <= 0 || length > MAX_RECORD || size + 8 + length > end) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            readFully(body, size + 8);
+            CRC32 crc = new CRC32();
+            crc.update(body.array());
+            if ((int) crc.getValue() != expectedCrc) {
+                break;
+            }
+            Message line = decode(body.array());
+            index(line, size);
+            size += 8 + length;
+        }
+        if (size < end) {
+            System.out.println("Chat history " + file + ": dropping " + (end - size) + " torn bytes");
+            channel.truncate(size);
+        }
+        channel.position(size);
+        System.out.println("Chat history " + file + ": " + lastId + " lines");
+    }
+
+    public long getLastId() {
+        return lastId;
+    }
+
+    // Writes the lines, numbered already, in one go; ChatService keeps their
+    // text short enough for writeUTF
+    public void append(List<Message> lines) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(lines.size() * 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        long[] offsets = new long[lines.size()];
+        long offset = size;
+        for (int i = 0; i < lines.size(); i++) {
+            byte[] body = encode(lines.get(i));
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            out.writeInt(body.length);
+            out.writeInt((int) crc.getValue());
+            out.write(body);
+            offsets[i] = offset;
+            offset += 8 + body.length;
+        }
+        ByteBuffer records = ByteBuffer.wrap(bytes.toByteArray());
+        while (records.hasRemaining()) {
+            channel.write(records);
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            index(lines.get(i), offsets[i]);
+        }
+        size = offset;
+    }
+
+    private void index(Message line, long offset) {
+        byChannel.computeIfAbsent(key(line.item), k -> new Lines()).add(line.sequence, offset);
+        lastId = Math.max(lastId, line.sequence);
+    }
+
+    private static String key(String channel) {
+        return channel == null ? Topics.GENERAL : channel;
+    }
+
+    // Up to limit lines of the channel numbered below before, or the newest
+    // ones if before is 0; oldest first
+    public List<Message> before(String channel, long before, int limit) throws IOException {
+        Lines lines = byChannel.get(key(channel));
+        List<Message> page = new ArrayList<>();
+        if (lines == null) {
+            return page;
+        }
+        int end = before <= 0 ? lines.size : lines.indexOf(before);
+        for (int i = Math.max(0, end - limit); i < end; i++) {
+            page.add(read(lines.offsets[i]));
+        }
+        return page;
+    }
+
+    // The newest limit lines numbered after since and up to upTo, on the
+    // channels the topics take (all of them for null); oldest first
+    public List<Message> between(long since, long upTo, Topics topics, int limit) throws IOException {
+        List<long[]> found = new ArrayList<>();
+        for (Map.Entry<String, Lines> entry : byChannel.entrySet()) {
+            if (topics != null && !topics.wantsChannel(entry.getKey())) {
+                continue;
+            }
+            Lines lines = entry.getValue();
+            int end = lines.indexOf(upTo + 1);
+            for (int i = Math.max(lines.indexOf(since + 1), end - limit); i < end; i++) {
+                found.add(new long[] { lines.ids[i], lines.offsets[i] });
+            }
+        }
+        found.sort(Comparator.comparingLong(position -> position[0]));
+        List<Message> page = new ArrayList<>();
+        for (long[] position : found.subList(Math.max(0, found.size() - limit), found.size())) {
+            page.add(read(position[1]));
+        }
+        return page;
+    }
+
+    private Message read(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        readFully(header, offset);
+        header.flip();
+        ByteBuffer body = ByteBuffer.allocate(header.getInt());
+        readFully(body, offset + 8);
+        return decode(body.array());
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Chat history " + file + " ends early");
+            }
+        }
+    }
+
+    private static byte[] encode(Message line) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(line.sequence);
+        out.writeUTF(key(line.item));
+        out.writeUTF(line.sender == null ? "" : line.sender);
+        out.writeLong(line.lamportTimestamp);
+        out.writeUTF(line.content == null ? "" : line.content);
+        Map<String, Long> vectorClock = line.vectorClock == null ? Map.of() : line.vectorClock;
+        out.writeInt(vectorClock.size());
+        for (Map.Entry<String, Long> entry : vectorClock.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Message decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        long id = in.readLong();
+        String channel = in.readUTF();
+        String sender = in.readUTF();
+        long timestamp = in.readLong();
+        Message line = new Message(Message.Type.CHAT, sender, in.readUTF(), null, timestamp);
+        line.item = Topics.GENERAL.equals(channel) ? null : channel;
+        line.sequence = id;
+        int clockSize = in.readInt();
+        if (clockSize > 0) {
+            line.vectorClock = new HashMap<>();
+            for (int i = 0; i < clockSize; i++) {
+                line.vectorClock.put(in.readUTF(), in.readLong());
+            }
+        }
+        return line;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,183 @@
+package server;
+
+import common.HybridClock;
+import common.Message;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Chat, kept apart from stock updates so a burst of it never delays them.
+//
+// Lines posted by branches are numbered and collected; BATCH_MS after the
+// first one the delivery thread writes them all to the ChatHistory and hands
+// each branch one CHAT_BATCH with the lines on its channels. Branches get it
+// through the chat lane of their OutboundQueue, behind any stock updates.
+// Nothing here takes the dispatcher's publish lock.
+//
+// A branch gets live every line numbered after the last one when it
+// connected. A branch that resumes its session is sent the lines between the
+// last one it saw and that point from the history, the newest
+// MAX_REPLAYED_LINES of them; older ones it can page through with HISTORY.
+public class ChatService {
+    private static final long BATCH_MS = 20;
+    private static final int MAX_PAGE = 200;
+    private static final int MAX_REPLAYED_LINES = 256;
+    // Keeps every line within writeUTF's 64 KB
+    private static final int MAX_LINE_CHARS = 4000;
+
+    private ChatHistory history;
+    private SubscriptionIndex subscriptions;
+    private HybridClock clock;
+    // Number of the last line posted, and lines posted since the last delivery; guarded by this
+    private long lastId;
+    private List<Message> posted = new ArrayList<>();
+    private boolean deliveryScheduled;
+    // Last line numbered when each branch connected
+    private Map<Connection, Long> joined = new ConcurrentHashMap<>();
+    private ScheduledExecutorService delivery = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chat-delivery");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private LongAdder lineCount;
+    private LongAdder errorCount;
+    // Writing one batch of lines to the history and queueing it for every branch
+    private LatencyHistogram deliveryTime;
+
+    public ChatService(ChatHistory history, SubscriptionIndex subscriptions, HybridClock clock, Metrics metrics) {
+        this.history = history;
+        this.subscriptions = subscriptions;
+        this.clock = clock;
+        this.lastId = history.getLastId();
+        lineCount = metrics.counter("chat.lines");
+        errorCount = metrics.counter("chat.errors");
+        deliveryTime = metrics.histogram("chat.delivery");
+    }
+
+    // Takes the history of a data directory instead; only before branches connect
+    public synchronized void setHistory(ChatHistory history) {
+        ChatHistory old = this.history;
+        this.history = history;
+        lastId = history.getLastId();
+        try {
+            old.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized void add(Connection connection) {
+        joined.put(connection, lastId);
+    }
+
+    public void remove(Connection connection) {
+        joined.remove(connection);
+    }
+
+    public void post(Message msg) {
+        String text = msg.content == null ? "" : msg.content;
+        if (text.length() > MAX_LINE_CHARS) {
+            text = text.substring(0, MAX_LINE_CHARS);
+        }
+        // Stamped by the server if the branch sent none
+        Message line = new Message(Message.Type.CHAT, msg.sender, text, null,
+                msg.lamportTimestamp != 0 ? msg.lamportTimestamp : clock.tick());
+        line.item = msg.item;
+        line.vectorClock = msg.vectorClock;
+        lineCount.increment();
+        synchronized (this) {
+            line.sequence = ++lastId;
+            posted.add(line);
+            if (!deliveryScheduled) {
+                deliveryScheduled = true;
+                delivery.schedule(this::deliver, BATCH_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    // Delivery thread only
+    private void deliver() {
+        List<Message> lines;
+        synchronized (this) {
+            lines = posted;
+            posted = new ArrayList<>();
+            deliveryScheduled = false;
+        }
+        if (lines.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            history.append(lines);
+        } catch (IOException e) {
+            errorCount.increment();
+            e.printStackTrace();
+        }
+        Map<Connection, List<Message>> batches = new HashMap<>();
+        for (Message line : lines) {
+            subscriptions.forEachChatSubscriber(line.item, c -> {
+                Long since = joined.get(c);
+                if (since != null && line.sequence > since) {
+                    batches.computeIfAbsent(c, k -> new ArrayList<>()).add(line);
+                }
+            });
+        }
+        for (Map.Entry<Connection, List<Message>> batch : batches.entrySet()) {
+            batch.getKey().send(chatBatch(batch.getValue(), 0));
+        }
+        deliveryTime.record(System.nanoTime() - start);
+    }
+
+    private Message chatBatch(List<Message> lines, long correlationId) {
+        Message batch = new Message(Message.Type.CHAT_BATCH, "Server", null, null, clock.tick());
+        batch.chat = lines;
+        batch.correlationId = correlationId;
+        return batch;
+    }
+
+    // Sends a resumed branch the lines numbered after since that it missed
+    public void resume(Connection connection, long since) {
+        delivery.execute(() -> {
+            // Lines still waiting may be among them and must be in the history first
+            deliver();
+            Long upTo = joined.get(connection);
+            if (upTo == null || since >= upTo) {
+                return;
+            }
+            try {
+                List<Message> missed = history.between(since, upTo, subscriptions.get(connection),
+                        MAX_REPLAYED_LINES);
+                if (!missed.isEmpty()) {
+                    connection.send(chatBatch(missed, 0));
+                }
+            } catch (IOException e) {
+                errorCount.increment();
+                e.printStackTrace();
+            }
+        });
+    }
+
+    // Answers a HISTORY request with a page of the channel's lines
+    public void page(Connection connection, Message msg) {
+        delivery.execute(() -> {
+            deliver();
+            List<Message> page;
+            try {
+                page = history.before(msg.item, msg.sequence, Math.max(0, Math.min(msg.quantity, MAX_PAGE)));
+            } catch (IOException e) {
+                errorCount.increment();
+                e.printStackTrace();
+                page = new ArrayList<>();
+            }
+            connection.send(chatBatch(page, msg.correlationId));
+        });
+    }
+}
@@ -1,99 +1,139 @@
 package server;
 
+import common.FrameCodec;
+import common.Handshake;
+import common.JavaSerializationCodec;
 import common.Message;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import common.MessageCodec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.net.Socket;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.List;
 import java.util.ArrayList;
+import java.util.List;
 
-public class ClientHandler implements Runnable {
-    private Socket socket;
-    private ConcurrentHashMap<String, Integer> inventory;
-    private static List<ObjectOutputStream> clientOutputs = new ArrayList<>();
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
-    private static RicartAgrawala ricartAgrawala = new RicartAgrawala();
+// Blocking transport: one platform or virtual thread per connected branch reads
+// requests, and a second one drains the branch's OutboundQueue to the socket.
+public class ClientHandler implements Runnable, Connection {
+    private static final int MAX_WRITE_BATCH = 256;
 
-    static {
-        // Initialize with client outputs when first client connects
-        ricartAgrawala.setClientOutputs(clientOutputs);
-    }
+    private Socket socket;
+    private RequestDispatcher dispatcher;
+    private ServerConfig config;
+    private MessageCodec codec;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private volatile String clientId;
+    private OutboundQueue outbound;
+    private LatencyHistogram encodeTime;
 
-    public ClientHandler(Socket socket, ConcurrentHashMap<String, Integer> inventory) {
+    public ClientHandler(Socket socket, RequestDispatcher dispatcher, ServerConfig config) {
         this.socket = socket;
-        this.inventory = inventory;
+        this.dispatcher = dispatcher;
+        this.config = config;
+        this.outbound = new OutboundQueue(config.getOutboundCapacity(), config.getSlowConsumerPolicy());
+        this.encodeTime = dispatcher.getMetrics().histogram("codec.encode");
     }
 
     @Override
     public void run() {
         try {
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
+            // REQUEST/REPLY frames are tiny and latency-bound, so do not let Nagle hold them back
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
-            synchronized (clientOutputs) {
-                clientOutputs.add(out);
-                // Register this client with Ricart-Agrawala
-                ricartAgrawala.addNode("CLIENT_" + clientOutputs.size());
+            Message first = null;
+            byte[] payload = FrameCodec.readPayload(in);
+            if (Handshake.isHandshake(payload)) {
+                byte chosen = Handshake.choose(Handshake.codecIds(payload), config.getCodecs());
+                codec = MessageCodec.create(chosen);
+                FrameCodec.writeFrame(out, Handshake.accept(chosen));
+            } else {
+                codec = new JavaSerializationCodec();
+                first = codec.decode(payload, 0, payload.length);
+            }
+            startWriter();
+            dispatcher.register(this);
+            if (first != null) {
+                dispatcher.dispatch(this, first);
             }
 
             while (true) {
-                Message msg = (Message) in.readObject();
-                switch (msg.type) {
-                    case REPLENISH:
-                        // Ricart-Agrawala mutual exclusion for stock update
-                        ricartAgrawala.requestCS();
-                        String[] parts = msg.content.split(":");
-                        String item = parts[0];
-                        int qty = Integer.parseInt(parts[1]);
-                        boolean approved = false;
-                        synchronized (inventory) {
-                            int available = inventory.getOrDefault(item, 0);
-                            if (available >= qty) {
-                                inventory.put(item, available - qty);
-                                approved = true;
-                            }
-                        }
-                        if (approved) {
-                            // Broadcast update to all clients
-                            Message updateMsg = new Message(Message.Type.UPDATE, "Server", item + ":" + qty,
-                                    new ConcurrentHashMap<>(inventory), msg.lamportTimestamp);
-                            broadcast(updateMsg);
-                        } else {
-                            Message denyMsg = new Message(Message.Type.DENY, "Server", "Denied: Not enough stock", null,
-                                    msg.lamportTimestamp);
-                            out.writeObject(denyMsg);
-                        }
-                        ricartAgrawala.releaseCS();
-                        break;
-                    case CHAT:
-                        // Broadcast chat message to all clients
-                        broadcast(msg);
-                        break;
-                    default:
-                        break;
-                }
+                Message msg = FrameCodec.readFrame(in, codec);
+                dispatcher.dispatch(this, msg);
             }
+        } catch (EOFException e) {
+            System.out.println(clientId + " disconnected");
         } catch (Exception e) {
+            dispatcher.getMetrics().counter("connections.errors").increment();
             e.printStackTrace();
         } finally {
-            synchronized (clientOutputs) {
-                clientOutputs.remove(out);
-                ricartAgrawala.removeNode("CLIENT_" + (clientOutputs.size() + 1));
-            }
+            dispatcher.unregister(this);
+            close();
         }
     }
 
-    private void broadcast(Message msg) {
-        synchronized (clientOutputs) {
-            for (ObjectOutputStream o : clientOutputs) {
-                try {
-                    o.writeObject(msg);
-                    o.flush();
-                } catch (Exception ignored) {
+    private void startWriter() {
+        // The writer runs on the same kind of thread as the reader
+        Thread.Builder builder = Thread.currentThread().isVirtual() ? Thread.ofVirtual()
+                : Thread.ofPlatform().daemon();
+        builder.name("writer-" + socket.getPort()).start(this::writeLoop);
+    }
+
+    private void writeLoop() {
+        List<Message> batch = new ArrayList<>();
+        try {
+            while (outbound.takeBatch(batch, MAX_WRITE_BATCH)) {
+                // Coalesce everything queued so far into a single flush
+                for (Message msg : batch) {
+                    long start = System.nanoTime();
+                    byte[] payload = codec.encode(msg);
+                    encodeTime.record(System.nanoTime() - start);
+                    FrameCodec.appendFrame(out, payload);
                 }
+                out.flush();
+                batch.clear();
             }
+        } catch (IOException e) {
+            close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void send(Message msg) {
+        if (!outbound.offer(msg)) {
+            System.out.println(clientId + " is too slow, disconnecting");
+            close();
         }
     }
-}
\ No newline at end of file
+
+    @Override
+    public void close() {
+        outbound.close();
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
+    @Override
+    public String getClientId() {
+        return clientId;
+    }
+
+    @Override
+    public void setClientId(String clientId) {
+        this.clientId = clientId;
+    }
+}
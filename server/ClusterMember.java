@@ -0,0 +1,56 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// One warehouse server node of a replicated cluster: branches connect to its
+// client port, the other nodes to its raft port.
+public class ClusterMember {
+    private String id;
+    private String host;
+    private int clientPort;
+    private int raftPort;
+
+    public ClusterMember(String id, String host, int clientPort, int raftPort) {
+        this.id = id;
+        this.host = host;
+        this.clientPort = clientPort;
+        this.raftPort = raftPort;
+    }
+
+    // Parses "id@host:clientPort:raftPort,..."
+    public static List<ClusterMember> parseAll(String value) {
+        List<ClusterMember> members = new ArrayList<>();
+        for (String spec : value.split(",")) {
+            String[] idAndAddress = spec.trim().split("@");
+            String[] parts = idAndAddress.length == 2 ? idAndAddress[1].split(":") : new String[0];
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Expected id@host:clientPort:raftPort but got: " + spec);
+            }
+            members.add(new ClusterMember(idAndAddress[0], parts[0], Integer.parseInt(parts[1]),
+                    Integer.parseInt(parts[2])));
+        }
+        return members;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getClientPort() {
+        return clientPort;
+    }
+
+    public int getRaftPort() {
+        return raftPort;
+    }
+
+    // Where branches should connect, as host:port
+    public String getClientAddress() {
+        return host + ":" + clientPort;
+    }
+}
@@ -0,0 +1,18 @@
+package server;
+
+import common.Message;
+
+// A connected branch, independent of whether it is served by a blocking
+// ClientHandler thread or by the NIO reactor.
+public interface Connection {
+    String getClientId();
+
+    void setClientId(String clientId);
+
+    // Queues the message for delivery; never blocks on the branch's socket
+    void send(Message msg);
+
+    OutboundQueue getOutboundQueue();
+
+    void close();
+}
@@ -0,0 +1,17 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+// The copy of the stock that only reflects changes already in the write-ahead
+// log. WriteAheadLog feeds it every durable record, in log order and from a
+// single thread, and asks it to checkpoint so older log segments can go.
+public interface DurableStore {
+    // Every record up to this sequence number is reflected in the store
+    long getCheckpointSeq();
+
+    void apply(long seq, Map<String, Integer> deltas);
+
+    // Persists the state as of seq; completes once older log segments are no longer needed
+    CompletableFuture<Void> checkpoint(long seq);
+}
@@ -0,0 +1,46 @@
+package server;
+
+import common.Message;
+import java.util.ArrayList;
+import java.util.List;
+
+// The last UPDATE messages broadcast to branches, numbered in the order
+// they went out, so a branch that reconnects can be sent only what it
+// missed. A fixed ring: once full, every new event takes the oldest one's
+// slot. Appends and reads of events are made under RequestDispatcher's
+// publish lock; the last sequence number can be read without it.
+public class EventLog {
+    private Message[] ring;
+    private volatile long lastSequence;
+
+    public EventLog(int capacity) {
+        ring = new Message[capacity];
+    }
+
+    // Numbers the event, in msg.sequence, and keeps it
+    public long append(Message event) {
+        long sequence = lastSequence + 1;
+        event.sequence = sequence;
+        ring[(int) (sequence % ring.length)] = event;
+        lastSequence = sequence;
+        return sequence;
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    // Events after sequence, oldest first, or null if some of them have been
+    // overwritten already or sequence is not one this log gave out
+    public List<Message> since(long sequence) {
+        long last = lastSequence;
+        if (sequence < 0 || sequence > last || last - sequence > ring.length) {
+            return null;
+        }
+        List<Message> events = new ArrayList<>((int) (last - sequence));
+        for (long next = sequence + 1; next <= last; next++) {
+            events.add(ring[(int) (next % ring.length)]);
+        }
+        return events;
+    }
+}
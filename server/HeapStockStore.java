@@ -0,0 +1,83 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+// On-heap StockStore. Quantities live in fixed-size AtomicIntegerArray chunks
+// that are never copied, so growing the store cannot lose a concurrent update.
+public class HeapStockStore implements StockStore {
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile AtomicIntegerArray[] quantities = new AtomicIntegerArray[0];
+    private volatile String[][] names = new String[0][];
+    private volatile int size;
+    private ReentrantLock growLock = new ReentrantLock();
+
+    @Override
+    public int lookup(String item) {
+        Integer id = ids.get(item);
+        return id == null ? NO_ID : id;
+    }
+
+    @Override
+    public int idFor(String item) {
+        Integer id = ids.get(item);
+        if (id != null) {
+            return id;
+        }
+        growLock.lock();
+        try {
+            id = ids.get(item);
+            if (id != null) {
+                return id;
+            }
+            int newId = size;
+            int chunk = newId >>> CHUNK_SHIFT;
+            if (chunk >= quantities.length) {
+                AtomicIntegerArray[] grownQuantities = new AtomicIntegerArray[chunk + 1];
+                String[][] grownNames = new String[chunk + 1][];
+                System.arraycopy(quantities, 0, grownQuantities, 0, quantities.length);
+                System.arraycopy(names, 0, grownNames, 0, names.length);
+                grownQuantities[chunk] = new AtomicIntegerArray(CHUNK_SIZE);
+                grownNames[chunk] = new String[CHUNK_SIZE];
+                quantities = grownQuantities;
+                names = grownNames;
+            }
+            names[chunk][newId & CHUNK_MASK] = item;
+            size = newId + 1;
+            ids.put(item, newId);
+            return newId;
+        } finally {
+            growLock.unlock();
+        }
+    }
+
+    @Override
+    public String name(int id) {
+        return names[id >>> CHUNK_SHIFT][id & CHUNK_MASK];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int get(int id) {
+        return quantities[id >>> CHUNK_SHIFT].get(id & CHUNK_MASK);
+    }
+
+    @Override
+    public boolean compareAndSet(int id, int expected, int value) {
+        return quantities[id >>> CHUNK_SHIFT].compareAndSet(id & CHUNK_MASK, expected, value);
+    }
+
+    @Override
+    public int addAndGet(int id, int delta) {
+        return quantities[id >>> CHUNK_SHIFT].addAndGet(id & CHUNK_MASK, delta);
+    }
+}
@@ -1,26 +1,159 @@
 package server;
 
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+// Authoritative warehouse stock. Each item has its own atomic slot in the
+// StockStore and stock is taken with compare-and-set, so orders for different
+// items never contend and orders for the same item never block each other.
+//
+// Taking stock is two-phase: reserve() removes the quantity from what is
+// available, then commit() makes it final or cancel() puts it back.
+//
+// A shard drops the items whose stock it has handed to another one. Store
+// ids are never given back, so a dropped item keeps its slot with DROPPED in
+// it: it reads as 0, cannot be reserved and is left out of snapshot().
 public class Inventory {
-    private ConcurrentHashMap<String, Integer> stock = new ConcurrentHashMap<>();
+    private static final int DROPPED = Integer.MIN_VALUE;
+
+    private StockStore store;
 
     public Inventory() {
-        stock.put("Apples", 100);
-        stock.put("Bananas", 80);
-        stock.put("Oranges", 60);
+        this(defaultStock());
+    }
+
+    public Inventory(Map<String, Integer> initialStock) {
+        this(new HeapStockStore());
+        initialStock.forEach(this::addStock);
+    }
+
+    public Inventory(StockStore store) {
+        this.store = store;
+    }
+
+    // What a warehouse starts with when there is no saved state
+    public static Map<String, Integer> defaultStock() {
+        Map<String, Integer> defaults = new LinkedHashMap<>();
+        defaults.put("Apples", 100);
+        defaults.put("Bananas", 80);
+        defaults.put("Oranges", 60);
+        return defaults;
+    }
+
+    public static class Reservation {
+        private String item;
+        private int quantity;
+        private int id;
+        private AtomicBoolean done = new AtomicBoolean();
+
+        private Reservation(String item, int quantity, int id) {
+            this.item = item;
+            this.quantity = quantity;
+            this.id = id;
+        }
+
+        public String getItem() {
+            return item;
+        }
+
+        public int getQuantity() {
+            return quantity;
+        }
+    }
+
+    // Returns null if the item is unknown or there is not enough of it
+    public Reservation reserve(String item, int quantity) {
+        if (item == null || quantity <= 0) {
+            return null;
+        }
+        int id = store.lookup(item);
+        if (id == StockStore.NO_ID) {
+            return null;
+        }
+        while (true) {
+            int available = store.get(id);
+            if (available < quantity) {
+                return null;
+            }
+            if (store.compareAndSet(id, available, available - quantity)) {
+                return new Reservation(item, quantity, id);
+            }
+        }
     }
 
-    public synchronized boolean requestStock(String item, int quantity) {
-        int available = stock.getOrDefault(item, 0);
-        if (available >= quantity) {
-            stock.put(item, available - quantity);
-            return true;
+    // Returns the item's available quantity after the commit
+    public int commit(Reservation reservation) {
+        finish(reservation);
+        return store.get(reservation.id);
+    }
+
+    public int cancel(Reservation reservation) {
+        finish(reservation);
+        return add(reservation.id, reservation.quantity);
+    }
+
+    private void finish(Reservation reservation) {
+        if (!reservation.done.compareAndSet(false, true)) {
+            throw new IllegalStateException("Reservation already committed or cancelled");
+        }
+    }
+
+    public boolean requestStock(String item, int quantity) {
+        Reservation reservation = reserve(item, quantity);
+        if (reservation == null) {
+            return false;
+        }
+        commit(reservation);
+        return true;
+    }
+
+    public void addStock(String item, int quantity) {
+        add(store.idFor(item), quantity);
+    }
+
+    // Stock added to a dropped item brings it back, starting from 0
+    private int add(int id, int delta) {
+        while (true) {
+            int current = store.get(id);
+            int next = (current == DROPPED ? 0 : current) + delta;
+            if (store.compareAndSet(id, current, next)) {
+                return next;
+            }
+        }
+    }
+
+    // Takes the item out of the catalogue if none of it is left; returns
+    // whether it is out
+    public boolean drop(String item) {
+        int id = store.lookup(item);
+        return id == StockStore.NO_ID || store.compareAndSet(id, 0, DROPPED) || store.get(id) == DROPPED;
+    }
+
+    public int getQuantity(String item) {
+        int id = store.lookup(item);
+        if (id == StockStore.NO_ID) {
+            return 0;
         }
-        return false;
+        int quantity = store.get(id);
+        return quantity == DROPPED ? 0 : quantity;
     }
 
-    public ConcurrentHashMap<String, Integer> getStock() {
-        return stock;
+    public int size() {
+        return store.size();
+    }
+
+    // Point-in-time copy; each item is read atomically but not all at the same instant
+    public Map<String, Integer> snapshot() {
+        int size = store.size();
+        Map<String, Integer> copy = new HashMap<>(size * 2);
+        for (int id = 0; id < size; id++) {
+            int quantity = store.get(id);
+            if (quantity != DROPPED) {
+                copy.put(store.name(id), quantity);
+            }
+        }
+        return copy;
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,257 @@
+package server;
+
+import common.Message;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+// Maekawa quorum voting, per resource. All nodes, this one included, are laid
+// out row by row in a square grid in node id order; a node's quorum is its row
+// and its column, so any two quorums share a node and about 2*sqrt(N) nodes are
+// asked instead of all of them. Each node votes for one request at a time.
+//
+// Deadlock avoidance (Sanders): a voter that has already voted and sees an
+// older request sends INQUIRE to the node it voted for, and FAILED to any
+// request that has to wait. A requester that has been told FAILED gives up the
+// votes it was asked about with YIELD, and the voter passes them on.
+//
+// Message timestamps identify requests: REQUEST carries the request timestamp,
+// which the voter uses to order the requests it is holding back.
+public class Maekawa extends AbstractMutualExclusion {
+    private enum State {
+        IDLE, REQUESTING, IN_CS
+    }
+
+    // A request a voter is holding back
+    private static class Candidate implements Comparable<Candidate> {
+        private String node;
+        private long timestamp;
+        private boolean failedSent;
+
+        Candidate(String node, long timestamp) {
+            this.node = node;
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            if (timestamp != other.timestamp) {
+                return Long.compare(timestamp, other.timestamp);
+            }
+            return node.compareTo(other.node);
+        }
+    }
+
+    private static class Resource {
+        // Requester side
+        private State currentState = State.IDLE;
+        private long myRequestTimestamp;
+        private Set<String> quorum = new HashSet<>();
+        private Set<String> votes = new HashSet<>();
+        // Voters that asked for their vote back before we knew we had to wait
+        private Set<String> inquiries = new HashSet<>();
+        private boolean failed;
+        private CompletableFuture<Void> currentRequest;
+        private Queue<CompletableFuture<Void>> waitingRequests = new ArrayDeque<>();
+
+        // Voter side
+        private Candidate votedFor;
+        private boolean inquirySent;
+        private PriorityQueue<Candidate> pending = new PriorityQueue<>();
+
+        boolean isIdle() {
+            return currentState == State.IDLE && waitingRequests.isEmpty() && votedFor == null && pending.isEmpty();
+        }
+    }
+
+    // Only resources something is happening to; idle ones are dropped
+    private Map<String, Resource> resources = new HashMap<>();
+
+    public Maekawa(String nodeId) {
+        super(nodeId);
+    }
+
+    // This node's row and column in the grid of all nodes
+    private Set<String> quorum() {
+        List<String> all = new ArrayList<>(nodes.keySet());
+        all.add(nodeId);
+        Collections.sort(all);
+        int side = (int) Math.ceil(Math.sqrt(all.size()));
+        int me = all.indexOf(nodeId);
+        Set<String> quorum = new HashSet<>();
+        for (int i = 0; i < all.size(); i++) {
+            if (i / side == me / side || i % side == me % side) {
+                quorum.add(all.get(i));
+            }
+        }
+        return quorum;
+    }
+
+    @Override
+    protected void request(String name, CompletableFuture<Void> request) {
+        Resource resource = resources.computeIfAbsent(name, n -> new Resource());
+        if (resource.currentState == State.IDLE) {
+            startRequest(name, resource, request);
+        } else {
+            resource.waitingRequests.add(request);
+        }
+    }
+
+    private void startRequest(String name, Resource resource, CompletableFuture<Void> request) {
+        resource.currentRequest = request;
+        resource.currentState = State.REQUESTING;
+        resource.myRequestTimestamp = clock.tick();
+        resource.quorum = quorum();
+        resource.votes.clear();
+        resource.inquiries.clear();
+        resource.failed = false;
+        for (String node : resource.quorum) {
+            send(node, Message.Type.REQUEST, name, 0, resource.myRequestTimestamp);
+        }
+    }
+
+    @Override
+    protected void release(String name) {
+        Resource resource = resources.get(name);
+        if (resource == null || resource.currentState != State.IN_CS) {
+            return; // Not in critical section
+        }
+        resource.currentState = State.IDLE;
+        resource.currentRequest = null;
+        for (String node : resource.quorum) {
+            send(node, Message.Type.RELEASE, name, 0, clock.tick());
+        }
+        if (!resource.waitingRequests.isEmpty()) {
+            startRequest(name, resource, resource.waitingRequests.poll());
+        }
+        dropIfIdle(name, resource);
+    }
+
+    @Override
+    protected void receive(String senderId, Message msg) {
+        String name = msg.item;
+        Resource resource = resources.computeIfAbsent(name, n -> new Resource());
+        switch (msg.type) {
+            case REQUEST:
+                onRequest(name, resource, new Candidate(senderId, msg.lamportTimestamp));
+                break;
+            case RELEASE:
+                if (resource.votedFor != null && resource.votedFor.node.equals(senderId)) {
+                    resource.votedFor = null;
+                    resource.inquirySent = false;
+                    voteForNext(name, resource);
+                }
+                break;
+            case YIELD:
+                if (resource.votedFor != null && resource.votedFor.node.equals(senderId)) {
+                    resource.votedFor.failedSent = false;
+                    resource.pending.add(resource.votedFor);
+                    resource.votedFor = null;
+                    resource.inquirySent = false;
+                    voteForNext(name, resource);
+                }
+                break;
+            case REPLY:
+                if (resource.currentState == State.REQUESTING && resource.quorum.contains(senderId)) {
+                    resource.votes.add(senderId);
+                    enterIfElected(resource);
+                }
+                break;
+            case FAILED:
+                if (resource.currentState == State.REQUESTING) {
+                    resource.failed = true;
+                    for (String voter : resource.inquiries) {
+                        yieldVote(name, resource, voter);
+                    }
+                    resource.inquiries.clear();
+                }
+                break;
+            case INQUIRE:
+                // Only a vote we hold for a request we are still waiting on can be given back
+                if (resource.currentState == State.REQUESTING && resource.votes.contains(senderId)) {
+                    if (resource.failed) {
+                        yieldVote(name, resource, senderId);
+                    } else {
+                        resource.inquiries.add(senderId);
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+        dropIfIdle(name, resource);
+    }
+
+    private void onRequest(String name, Resource resource, Candidate candidate) {
+        if (resource.votedFor == null) {
+            vote(name, resource, candidate);
+            return;
+        }
+        Candidate previousHead = resource.pending.peek();
+        resource.pending.add(candidate);
+        boolean oldest = candidate.compareTo(resource.votedFor) < 0 && resource.pending.peek() == candidate;
+        if (!oldest) {
+            candidate.failedSent = true;
+            send(candidate.node, Message.Type.FAILED, name, 0, clock.tick());
+            return;
+        }
+        // The new request should go before the one we voted for; ask for the vote back
+        if (!resource.inquirySent) {
+            resource.inquirySent = true;
+            send(resource.votedFor.node, Message.Type.INQUIRE, name, 0, clock.tick());
+        }
+        if (previousHead != null && !previousHead.failedSent) {
+            previousHead.failedSent = true;
+            send(previousHead.node, Message.Type.FAILED, name, 0, clock.tick());
+        }
+    }
+
+    private void voteForNext(String name, Resource resource) {
+        if (!resource.pending.isEmpty()) {
+            vote(name, resource, resource.pending.poll());
+        }
+    }
+
+    private void vote(String name, Resource resource, Candidate candidate) {
+        resource.votedFor = candidate;
+        send(candidate.node, Message.Type.REPLY, name, 0, clock.tick());
+    }
+
+    private void yieldVote(String name, Resource resource, String voter) {
+        resource.votes.remove(voter);
+        send(voter, Message.Type.YIELD, name, 0, clock.tick());
+    }
+
+    private void enterIfElected(Resource resource) {
+        if (resource.currentState == State.REQUESTING && resource.votes.containsAll(resource.quorum)) {
+            resource.currentState = State.IN_CS;
+            resource.inquiries.clear();
+            enter(resource.currentRequest);
+        }
+    }
+
+    private void dropIfIdle(String name, Resource resource) {
+        if (resource.isIdle()) {
+            resources.remove(name);
+        }
+    }
+
+    @Override
+    protected void nodeRemoved(String nodeId) {
+        for (Map.Entry<String, Resource> entry : new ArrayList<>(resources.entrySet())) {
+            String name = entry.getKey();
+            Resource resource = entry.getValue();
+            resource.pending.removeIf(candidate -> candidate.node.equals(nodeId));
+            resource.inquiries.remove(nodeId);
+            if (resource.votedFor != null && resource.votedFor.node.equals(nodeId)) {
+                resource.votedFor = null;
+                resource.inquirySent = false;
+                voteForNext(name, resource);
+            }
+            if (resource.quorum.remove(nodeId)) {
+                resource.votes.remove(nodeId);
+                enterIfElected(resource);
+            }
+            dropIfIdle(name, resource);
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package server;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Off-heap StockStore for very large catalogues. Everything lives in two
+// memory-mapped files in the data directory, so a restart maps them instead of
+// loading anything and the heap holds no per-item objects.
+//
+// catalogue.dat, for a capacity of C items:
+//   header     64 bytes: magic, format, capacity, count, checkpointSeq, namesEnd
+//   live       int[C]         available quantity, updated with CAS
+//   durable    16 bytes * C   (int quantity, pad, long seq) of the last logged change
+//   nameOffset int[C]         where each item's name starts in catalogue.names
+//   index      long[2C]       open addressing, (hash << 32) | (id + 1), 0 = empty
+// catalogue.names holds [int length][UTF-8 bytes] for each item in id order.
+//
+// The store is also the write-ahead log's DurableStore: logged changes go to
+// the durable slots, and a checkpoint forces the file and then records count
+// and checkpointSeq in the header. Each durable slot remembers the sequence
+// number that last changed it, so records the OS happened to write back before
+// a crash are not applied twice on replay. Anything added after the last
+// checkpoint is dropped on open and comes back through replay; live quantities
+// are reset from the durable ones once recovery is done.
+public class MappedStockStore implements StockStore, DurableStore {
+    public static final int MAX_CAPACITY = 1 << 25;
+
+    private static final int MAGIC = 0x57434154;
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int MAGIC_AT = 0;
+    private static final int FORMAT_AT = 4;
+    private static final int CAPACITY_AT = 8;
+    private static final int COUNT_AT = 12;
+    private static final int CHECKPOINT_SEQ_AT = 16;
+    private static final int NAMES_END_AT = 24;
+    private static final int DURABLE_SLOT = 16;
+
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.LITTLE_ENDIAN);
+
+    private FileChannel dataChannel;
+    private FileChannel namesChannel;
+    private MappedByteBuffer data;
+    // Replaced by a larger mapping when it fills up
+    private volatile MappedByteBuffer names;
+
+    private int capacity;
+    private int indexMask;
+    private int liveAt;
+    private int durableAt;
+    private int nameOffsetAt;
+    private int indexAt;
+
+    private volatile int count;
+    private int namesEnd;
+    private volatile long checkpointSeq;
+    private ReentrantLock insertLock = new ReentrantLock();
+    private ExecutorService checkpointer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "catalogue-checkpoint");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private MappedStockStore() {
+    }
+
+    // Maps the catalogue in dir, creating it with initialStock if there is none.
+    // capacity only applies to a new catalogue.
+    public static MappedStockStore open(Path dir, int capacity, Map<String, Integer> initialStock)
+            throws IOException {
+        Files.createDirectories(dir);
+        Path dataPath = dir.resolve("catalogue.dat");
+        boolean fresh = !Files.exists(dataPath);
+        MappedStockStore store = new MappedStockStore();
+        store.dataChannel = FileChannel.open(dataPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        store.namesChannel = FileChannel.open(dir.resolve("catalogue.names"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (fresh) {
+            store.create(capacity);
+            store.seed(initialStock);
+        } else {
+            store.load();
+        }
+        return store;
+    }
+
+    private void create(int requestedCapacity) throws IOException {
+        if (requestedCapacity < 2 || requestedCapacity > MAX_CAPACITY) {
+            throw new IOException("Catalogue capacity must be between 2 and " + MAX_CAPACITY);
+        }
+        layout(Integer.highestOneBit(requestedCapacity - 1) << 1);
+        data.putInt(MAGIC_AT, MAGIC);
+        data.putInt(FORMAT_AT, FORMAT);
+        data.putInt(CAPACITY_AT, capacity);
+        mapNames(Math.max(1 << 20, (long) capacity * 32));
+    }
+
+    private void seed(Map<String, Integer> initialStock) throws IOException {
+        for (Map.Entry<String, Integer> entry : initialStock.entrySet()) {
+            int id = idFor(entry.getKey());
+            INT.setVolatile(data, liveAt + id * 4, entry.getValue());
+            data.putInt(durableAt + id * DURABLE_SLOT, entry.getValue());
+        }
+        checkpoint(0).join();
+    }
+
+    private void load() throws IOException {
+        MappedByteBuffer header = dataChannel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt(MAGIC_AT) != MAGIC || header.getInt(FORMAT_AT) != FORMAT) {
+            throw new IOException("Not a catalogue file");
+        }
+        layout(header.getInt(CAPACITY_AT));
+        count = data.getInt(COUNT_AT);
+        namesEnd = data.getInt(NAMES_END_AT);
+        checkpointSeq = data.getLong(CHECKPOINT_SEQ_AT);
+        mapNames(Math.max(namesChannel.size(), namesEnd));
+        // Index entries written after the last checkpoint are dropped; they were
+        // all added after the surviving ones, so no probe chain is broken
+        for (int slot = 0; slot <= indexMask; slot++) {
+            long entry = data.getLong(indexAt + slot * 8);
+            if (entry != 0 && (int) entry - 1 >= count) {
+                data.putLong(indexAt + slot * 8, 0);
+            }
+        }
+        System.out.println("Mapped catalogue with " + count + " items at log position " + checkpointSeq);
+    }
+
+    private void layout(int capacity) throws IOException {
+        this.capacity = capacity;
+        indexMask = capacity * 2 - 1;
+        liveAt = HEADER_SIZE;
+        durableAt = liveAt + capacity * 4;
+        nameOffsetAt = durableAt + capacity * DURABLE_SLOT;
+        indexAt = nameOffsetAt + capacity * 4;
+        long size = indexAt + (long) capacity * 16;
+        data = dataChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        data.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void mapNames(long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Catalogue names file is full");
+        }
+        MappedByteBuffer mapped = namesChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+        names = mapped;
+    }
+
+    // Sets every live quantity to its durable one; call once recovery has replayed the log
+    public void resetLiveFromDurable() {
+        int size = count;
+        for (int id = 0; id < size; id++) {
+            INT.setVolatile(data, liveAt + id * 4, data.getInt(durableAt + id * DURABLE_SLOT));
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public int lookup(String item) {
+        return find(item.getBytes(StandardCharsets.UTF_8), hash(item));
+    }
+
+    private int find(byte[] name, int hash) {
+        for (int slot = hash & indexMask;; slot = (slot + 1) & indexMask) {
+            long entry = (long) LONG.getAcquire(data, indexAt + slot * 8);
+            if (entry == 0) {
+                return NO_ID;
+            }
+            int id = (int) entry - 1;
+            if ((int) (entry >>> 32) == hash && nameEquals(id, name)) {
+                return id;
+            }
+        }
+    }
+
+    @Override
+    public int idFor(String item) {
+        byte[] name = item.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(item);
+        int id = find(name, hash);
+        if (id != NO_ID) {
+            return id;
+        }
+        insertLock.lock();
+        try {
+            id = find(name, hash);
+            if (id != NO_ID) {
+                return id;
+            }
+            id = count;
+            if (id == capacity) {
+                throw new IllegalStateException("Catalogue is full (" + capacity + " items)");
+            }
+            if ((long) namesEnd + 4 + name.length > names.capacity()) {
+                try {
+                    mapNames(Math.max((long) names.capacity() * 2, (long) namesEnd + 4 + name.length));
+                } catch (IOException e) {
+                    throw new IllegalStateException("Could not grow catalogue names", e);
+                }
+            }
+            MappedByteBuffer mapped = names;
+            mapped.putInt(namesEnd, name.length);
+            mapped.put(namesEnd + 4, name);
+            data.putInt(nameOffsetAt + id * 4, namesEnd);
+            namesEnd += 4 + name.length;
+            // The slots may hold leftovers from an item dropped on open
+            INT.setVolatile(data, liveAt + id * 4, 0);
+            data.putInt(durableAt + id * DURABLE_SLOT, 0);
+            data.putLong(durableAt + id * DURABLE_SLOT + 8, 0);
+            count = id + 1;
+
+            int slot = hash & indexMask;
+            while (data.getLong(indexAt + slot * 8) != 0) {
+                slot = (slot + 1) & indexMask;
+            }
+            LONG.setRelease(data, indexAt + slot * 8, ((long) hash << 32) | (id + 1));
+            return id;
+        } finally {
+            insertLock.unlock();
+        }
+    }
+
+    @Override
+    public String name(int id) {
+        MappedByteBuffer mapped = names;
+        int offset = data.getInt(nameOffsetAt + id * 4);
+        byte[] bytes = new byte[mapped.getInt(offset)];
+        mapped.get(offset + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private boolean nameEquals(int id, byte[] name) {
+        MappedByteBuffer mapped = names;
+        int offset = data.getInt(nameOffsetAt + id * 4);
+        if (mapped.getInt(offset) != name.length) {
+            return false;
+        }
+        byte[] stored = new byte[name.length];
+        mapped.get(offset + 4, stored);
+        return Arrays.equals(stored, name);
+    }
+
+    // String.hashCode is fixed by the spec, so the index stays valid across restarts
+    private static int hash(String item) {
+        int h = item.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public int get(int id) {
+        return (int) INT.getVolatile(data, liveAt + id * 4);
+    }
+
+    @Override
+    public boolean compareAndSet(int id, int expected, int value) {
+        return INT.compareAndSet(data, liveAt + id * 4, expected, value);
+    }
+
+    @Override
+    public int addAndGet(int id, int delta) {
+        return (int) INT.getAndAdd(data, liveAt + id * 4, delta) + delta;
+    }
+
+    @Override
+    public long getCheckpointSeq() {
+        return checkpointSeq;
+    }
+
+    @Override
+    public void apply(long seq, Map<String, Integer> deltas) {
+        for (Map.Entry<String, Integer> entry : deltas.entrySet()) {
+            int slot = durableAt + idFor(entry.getKey()) * DURABLE_SLOT;
+            if (data.getLong(slot + 8) < seq) {
+                data.putInt(slot, data.getInt(slot) + entry.getValue());
+                data.putLong(slot + 8, seq);
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> checkpoint(long seq) {
+        int checkpointCount;
+        int checkpointNamesEnd;
+        insertLock.lock();
+        try {
+            checkpointCount = count;
+            checkpointNamesEnd = namesEnd;
+        } finally {
+            insertLock.unlock();
+        }
+        return CompletableFuture.runAsync(() -> {
+            names.force();
+            data.force(durableAt, data.capacity() - durableAt);
+            data.putInt(COUNT_AT, checkpointCount);
+            data.putInt(NAMES_END_AT, checkpointNamesEnd);
+            data.putLong(CHECKPOINT_SEQ_AT, seq);
+            data.force(0, HEADER_SIZE);
+            checkpointSeq = seq;
+        }, checkpointer);
+    }
+}
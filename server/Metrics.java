@@ -0,0 +1,65 @@
+package server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Named counters, gauges and latency histograms of one server. Code on a hot
+// path looks its counter or histogram up once and keeps it in a field; the
+// maps are only walked to write a report.
+//
+// The report is plain text, one metric per line, times in microseconds:
+//
+//   orders.replenish 1234
+//   cs.wait count=1234 mean=85.2 p50=61.0 p90=150.0 p99=410.0 p999=900.0 max=1203.4
+public class Metrics {
+    private Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    // Read when a report is written
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    public String report() {
+        StringBuilder out = new StringBuilder();
+        counters.forEach((name, counter) -> out.append(name).append(' ').append(counter.sum()).append('\n'));
+        gauges.forEach((name, gauge) -> out.append(name).append(' ').append(gauge.getAsLong()).append('\n'));
+        histograms.forEach((name, histogram) -> {
+            out.append(name).append(" count=").append(histogram.getCount());
+            out.append(String.format(" mean=%.1f", histogram.getMean() / 1000));
+            out.append(" p50=").append(micros(histogram.getPercentile(50)));
+            out.append(" p90=").append(micros(histogram.getPercentile(90)));
+            out.append(" p99=").append(micros(histogram.getPercentile(99)));
+            out.append(" p999=").append(micros(histogram.getPercentile(99.9)));
+            out.append(" max=").append(micros(histogram.getMax())).append('\n');
+        });
+        return out.toString();
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1f", nanos / 1000.0);
+    }
+
+    // Replaces the file in one step, so a reader never sees half a report
+    public static void writeReport(Path file, String report) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, report.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,199 @@
+package server;
+
+import common.Message;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+// Discrete-event simulation of the MutualExclusion algorithms, measuring
+// messages per critical section entry and entry latency. Every node runs the
+// real implementation; connections are replaced by a network that delivers
+// each message after a fixed one-way delay, in order per link.
+//
+// Two workloads: "server", where one node does all the entering and the rest
+// only take part (how the warehouse uses it, branches never request), and
+// "contended", where every node keeps requesting the same resource.
+//
+// Usage: MutexSimulation [nodes,...] [algorithm,...]
+public class MutexSimulation {
+    private static final double ONE_WAY_MS = 0.5;
+    private static final double HOLD_MS = 0.1;
+    private static final double THINK_MS = 5.0;
+    private static final int ENTRIES = 2000;
+    private static final String RESOURCE = "Apples";
+
+    private static class Event implements Comparable<Event> {
+        private double time;
+        private long order;
+        private Runnable action;
+
+        Event(double time, long order, Runnable action) {
+            this.time = time;
+            this.order = order;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            return time != other.time ? Double.compare(time, other.time) : Long.compare(order, other.order);
+        }
+    }
+
+    private PriorityQueue<Event> events = new PriorityQueue<>();
+    private long eventCount;
+    private double now;
+    private List<MutualExclusion> nodes = new ArrayList<>();
+    private Random random = new Random(42);
+
+    private int holders;
+    private int violations;
+    private int entries;
+    private double totalLatency;
+    private double maxLatency;
+
+    // Delivers messages to one node as if over a connection
+    private class SimulatedConnection implements Connection {
+        private MutualExclusion target;
+        private String clientId;
+
+        SimulatedConnection(MutualExclusion target) {
+            this.target = target;
+            this.clientId = target.getNodeId();
+        }
+
+        @Override
+        public String getClientId() {
+            return clientId;
+        }
+
+        @Override
+        public void setClientId(String clientId) {
+            this.clientId = clientId;
+        }
+
+        @Override
+        public void send(Message msg) {
+            schedule(ONE_WAY_MS, () -> target.handleMessage(msg.sender, msg));
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private void schedule(double delay, Runnable action) {
+        events.add(new Event(now + delay, eventCount++, action));
+    }
+
+    private MutexSimulation(MutualExclusion.Algorithm algorithm, int nodeCount) {
+        for (int i = 0; i < nodeCount; i++) {
+            // Zero-padded so node id order matches creation order
+            String id = String.format("N%05d", i);
+            switch (algorithm) {
+                case MAEKAWA:
+                    nodes.add(new Maekawa(id));
+                    break;
+                case SUZUKI_KASAMI:
+                    nodes.add(new SuzukiKasami(id, i == 0));
+                    break;
+                default:
+                    nodes.add(new RicartAgrawala(id));
+                    break;
+            }
+        }
+        for (MutualExclusion node : nodes) {
+            for (MutualExclusion other : nodes) {
+                if (other != node) {
+                    node.addNode(other.getNodeId(), new SimulatedConnection(other));
+                }
+            }
+        }
+    }
+
+    // Requests, holds for HOLD_MS, releases, thinks and goes again until it has entered enough times
+    private void cycle(MutualExclusion node, int remaining) {
+        if (remaining == 0) {
+            return;
+        }
+        double requestedAt = now;
+        node.requestCS(RESOURCE).thenRun(() -> {
+            double latency = now - requestedAt;
+            entries++;
+            totalLatency += latency;
+            maxLatency = Math.max(maxLatency, latency);
+            if (++holders > 1) {
+                violations++;
+            }
+            schedule(HOLD_MS, () -> {
+                holders--;
+                node.releaseCS(RESOURCE);
+                schedule(random.nextDouble() * 2 * THINK_MS, () -> cycle(node, remaining - 1));
+            });
+        });
+    }
+
+    private void run(boolean contended) {
+        if (contended) {
+            int perNode = Math.max(1, ENTRIES / nodes.size());
+            for (MutualExclusion node : nodes) {
+                schedule(random.nextDouble() * THINK_MS, () -> cycle(node, perNode));
+            }
+        } else {
+            schedule(0, () -> cycle(nodes.get(0), ENTRIES));
+        }
+        while (!events.isEmpty()) {
+            Event event = events.poll();
+            now = event.time;
+            event.action.run();
+        }
+    }
+
+    private long messagesSent() {
+        long total = 0;
+        for (MutualExclusion node : nodes) {
+            total += node.getMessagesSent();
+        }
+        return total;
+    }
+
+    public static void main(String[] args) {
+        int[] sizes = { 10, 100, 1000 };
+        if (args.length > 0) {
+            String[] parts = args[0].split(",");
+            sizes = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                sizes[i] = Integer.parseInt(parts[i].trim());
+            }
+        }
+        MutualExclusion.Algorithm[] algorithms = MutualExclusion.Algorithm.values();
+        if (args.length > 1) {
+            String[] parts = args[1].split(",");
+            algorithms = new MutualExclusion.Algorithm[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                algorithms[i] = MutualExclusion.Algorithm.valueOf(parts[i].trim().toUpperCase().replace('-', '_'));
+            }
+        }
+
+        System.out.printf("%-16s %6s %-10s %8s %10s %12s %12s %s%n", "algorithm", "nodes", "workload", "entries",
+                "msgs/entry", "mean ms", "max ms", "violations");
+        for (MutualExclusion.Algorithm algorithm : algorithms) {
+            for (int size : sizes) {
+                for (boolean contended : new boolean[] { false, true }) {
+                    MutexSimulation simulation = new MutexSimulation(algorithm, size);
+                    simulation.run(contended);
+                    System.out.printf("%-16s %6d %-10s %8d %10.1f %12.2f %12.2f %d%n", algorithm, size,
+                            contended ? "contended" : "server", simulation.entries,
+                            (double) simulation.messagesSent() / simulation.entries,
+                            simulation.totalLatency / simulation.entries, simulation.maxLatency,
+                            simulation.violations);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package server;
+
+import common.HybridClock;
+import common.Message;
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+
+// Distributed mutual exclusion over named resources (item names) between this
+// node and the nodes added with addNode(). Entry is asynchronous: the future
+// returned by requestCS() completes once this node holds the resource.
+public interface MutualExclusion {
+    enum Algorithm {
+        // Asks every node; 2(N-1) messages per entry
+        RICART_AGRAWALA,
+        // Asks a grid quorum of about 2*sqrt(N) nodes; 3 to 5 messages per quorum member
+        MAEKAWA,
+        // Passes a token; none while the holder keeps entering, otherwise N
+        SUZUKI_KASAMI
+    }
+
+    // The created node starts out owning every Suzuki-Kasami token
+    static MutualExclusion create(Algorithm algorithm, String nodeId) {
+        switch (algorithm) {
+            case MAEKAWA:
+                return new Maekawa(nodeId);
+            case SUZUKI_KASAMI:
+                return new SuzukiKasami(nodeId, true);
+            default:
+                return new RicartAgrawala(nodeId);
+        }
+    }
+
+    String getNodeId();
+
+    void addNode(String nodeId, Connection connection);
+
+    // A node that leaves no longer takes part
+    void removeNode(String nodeId);
+
+    // Completes once this node holds the resource; call releaseCS() after
+    CompletableFuture<Void> requestCS(String resource);
+
+    void releaseCS(String resource);
+
+    // Resources are acquired one after the other in name order, so two
+    // multi-resource requests cannot deadlock
+    default CompletableFuture<Void> requestCS(Collection<String> resources) {
+        CompletableFuture<Void> acquired = CompletableFuture.completedFuture(null);
+        for (String resource : new TreeSet<>(resources)) {
+            acquired = acquired.thenCompose(ignored -> requestCS(resource));
+        }
+        return acquired;
+    }
+
+    default void releaseCS(Collection<String> resources) {
+        for (String resource : resources) {
+            releaseCS(resource);
+        }
+    }
+
+    // A protocol message (REQUEST, REPLY, RELEASE, ...) from another node
+    void handleMessage(String senderId, Message msg);
+
+    // Stamps this node's protocol messages; the node stamps everything else it sends with it too
+    HybridClock getClock();
+
+    // Protocol messages sent to other nodes so far
+    long getMessagesSent();
+}
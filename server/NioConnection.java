@@ -0,0 +1,281 @@
+package server;
+
+import common.FrameCodec;
+import common.Handshake;
+import common.JavaSerializationCodec;
+import common.Message;
+import common.MessageCodec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// A branch connection served by a Reactor. Incoming frames are decoded on the
+// reactor thread and processed one at a time on the worker pool, so per-branch
+// ordering is kept without dedicating a thread to the branch.
+//
+// Outgoing messages wait in an OutboundQueue and are encoded on the reactor
+// thread in batches, so one gathering write carries many frames.
+//
+// Back-pressure: reading from the socket is paused while too many decoded
+// messages are waiting to be processed, or while the outbound queue is more than
+// half full because the branch is not reading its replies.
+public class NioConnection implements Connection {
+    private static final int MAX_PENDING_INBOUND = 64;
+    private static final int MAX_WRITE_BATCH = 256;
+
+    private Reactor reactor;
+    private SocketChannel channel;
+    private ServerConfig config;
+    private RequestDispatcher dispatcher;
+    private Executor workers;
+    private SelectionKey key;
+    private volatile String clientId;
+    private volatile boolean closed;
+
+    // Reactor thread only: bytes of an incomplete frame left over from the last read
+    private ByteBuffer partial;
+    // Chosen by the first frame; only used on the reactor thread
+    private MessageCodec codec;
+    // Reactor thread only: encoded frames not yet fully written
+    private ByteBuffer writeBuffer;
+
+    // Guarded by inbound
+    private ArrayDeque<Message> inbound = new ArrayDeque<>(4);
+    private boolean processing;
+    private volatile boolean inboundPaused;
+
+    private OutboundQueue outbound;
+    private LatencyHistogram encodeTime;
+    private AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    public NioConnection(Reactor reactor, SocketChannel channel, ServerConfig config, RequestDispatcher dispatcher,
+            Executor workers) {
+        this.reactor = reactor;
+        this.channel = channel;
+        this.config = config;
+        this.dispatcher = dispatcher;
+        this.workers = workers;
+        this.outbound = new OutboundQueue(config.getOutboundCapacity(), config.getSlowConsumerPolicy());
+        this.encodeTime = dispatcher.getMetrics().histogram("codec.encode");
+    }
+
+    void open(SelectionKey key) {
+        this.key = key;
+    }
+
+    void onReadable(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int n = channel.read(buffer);
+        if (n < 0) {
+            close();
+            return;
+        }
+        buffer.flip();
+        ByteBuffer src = buffer;
+        if (partial != null) {
+            src = ByteBuffer.allocate(partial.remaining() + buffer.remaining());
+            src.put(partial).put(buffer).flip();
+            partial = null;
+        }
+        readFrames(src);
+        if (src.hasRemaining()) {
+            partial = ByteBuffer.allocate(src.remaining());
+            partial.put(src).flip();
+        }
+    }
+
+    private void readFrames(ByteBuffer src) throws IOException {
+        while (src.remaining() >= FrameCodec.HEADER_SIZE) {
+            int length = src.getInt(src.position());
+            FrameCodec.checkLength(length);
+            if (src.remaining() < FrameCodec.HEADER_SIZE + length) {
+                return;
+            }
+            src.position(src.position() + FrameCodec.HEADER_SIZE);
+            byte[] payload = new byte[length];
+            src.get(payload);
+            if (codec == null) {
+                negotiate(payload);
+            } else {
+                enqueueInbound(codec.decode(payload, 0, length));
+            }
+        }
+    }
+
+    private void negotiate(byte[] payload) throws IOException {
+        if (Handshake.isHandshake(payload)) {
+            byte chosen = Handshake.choose(Handshake.codecIds(payload), config.getCodecs());
+            codec = MessageCodec.create(chosen);
+            // Nothing else can be queued before register(), so the reply goes out first
+            writeBuffer = frame(List.of(Handshake.accept(chosen)));
+            flush();
+            dispatcher.register(this);
+        } else {
+            codec = new JavaSerializationCodec();
+            dispatcher.register(this);
+            enqueueInbound(codec.decode(payload, 0, payload.length));
+        }
+    }
+
+    private void enqueueInbound(Message msg) {
+        synchronized (inbound) {
+            inbound.add(msg);
+            if (!processing) {
+                processing = true;
+                workers.execute(this::processInbound);
+            }
+            if (inbound.size() >= MAX_PENDING_INBOUND && !inboundPaused) {
+                inboundPaused = true;
+                updateInterest();
+            }
+        }
+    }
+
+    private void processInbound() {
+        while (true) {
+            Message msg;
+            synchronized (inbound) {
+                msg = inbound.poll();
+                if (msg == null) {
+                    processing = false;
+                    return;
+                }
+                if (inboundPaused && inbound.size() < MAX_PENDING_INBOUND / 2) {
+                    inboundPaused = false;
+                    updateInterest();
+                }
+            }
+            if (closed) {
+                continue;
+            }
+            try {
+                dispatcher.dispatch(this, msg);
+            } catch (Exception e) {
+                dispatcher.getMetrics().counter("connections.errors").increment();
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void send(Message msg) {
+        if (closed) {
+            return;
+        }
+        if (!outbound.offer(msg)) {
+            System.out.println(clientId + " is too slow, disconnecting");
+            close();
+            return;
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            reactor.execute(this::flush);
+        }
+    }
+
+    void onWritable() throws IOException {
+        flush();
+    }
+
+    // Reactor thread only
+    private void flush() {
+        flushScheduled.set(false);
+        try {
+            List<Message> batch = new ArrayList<>();
+            while (true) {
+                if (writeBuffer == null || !writeBuffer.hasRemaining()) {
+                    batch.clear();
+                    if (outbound.drainTo(batch, MAX_WRITE_BATCH) == 0) {
+                        writeBuffer = null;
+                        break;
+                    }
+                    List<byte[]> payloads = new ArrayList<>(batch.size());
+                    for (Message msg : batch) {
+                        long start = System.nanoTime();
+                        payloads.add(codec.encode(msg));
+                        encodeTime.record(System.nanoTime() - start);
+                    }
+                    writeBuffer = frame(payloads);
+                }
+                channel.write(writeBuffer);
+                if (writeBuffer.hasRemaining()) {
+                    break; // Socket buffer full, wait for OP_WRITE
+                }
+            }
+            updateInterest();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private static ByteBuffer frame(List<byte[]> payloads) {
+        int size = 0;
+        for (byte[] payload : payloads) {
+            size += FrameCodec.HEADER_SIZE + payload.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] payload : payloads) {
+            buffer.putInt(payload.length).put(payload);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private void updateInterest() {
+        reactor.execute(() -> {
+            if (key == null || !key.isValid()) {
+                return;
+            }
+            int ops = 0;
+            boolean outboundBacklog = outbound.getDepth() > outbound.getCapacity() / 2;
+            if (!inboundPaused && !outboundBacklog) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (writeBuffer != null && writeBuffer.hasRemaining()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        });
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        reactor.execute(() -> {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            outbound.close();
+            writeBuffer = null;
+            partial = null;
+        });
+        dispatcher.unregister(this);
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
+    @Override
+    public String getClientId() {
+        return clientId;
+    }
+
+    @Override
+    public void setClientId(String clientId) {
+        this.clientId = clientId;
+    }
+}
@@ -0,0 +1,52 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Non-blocking transport: the calling thread accepts connections and hands them
+// round-robin to a small, fixed set of reactor threads. Decoded messages are run
+// on a worker pool so that a slow order never stalls the selector loop.
+public class NioServer {
+    private static final int ACCEPT_BACKLOG = 4096;
+
+    private ServerConfig config;
+    private RequestDispatcher dispatcher;
+    private Reactor[] reactors;
+    private ExecutorService workers;
+
+    public NioServer(ServerConfig config, RequestDispatcher dispatcher) {
+        this.config = config;
+        this.dispatcher = dispatcher;
+    }
+
+    public void start() throws IOException {
+        workers = Executors.newFixedThreadPool(config.getWorkerThreads());
+        reactors = new Reactor[config.getIoThreads()];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(config, dispatcher, workers);
+            Thread t = new Thread(reactors[i], "reactor-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(config.getPort()), ACCEPT_BACKLOG);
+            System.out.println("Warehouse Server (NIO, " + reactors.length + " reactors) started on port "
+                    + config.getPort());
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                reactors[next].register(channel);
+                next = (next + 1) % reactors.length;
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package server;
+
+import common.Message;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded queue of messages waiting to be written to one branch. Producers
+// (broadcasts, replies) never block: when the branch falls behind, the
+// configured policy decides what to give up.
+//
+// Only UPDATE is ever dropped from the queue. After dropping one the queue
+// hands out a SYNC before anything else, telling the branch to ask for a
+// snapshot; a branch subscribed to some items only cannot tell from the
+// versions it sees. Replies such as DENY or SNAPSHOT must arrive, so if the
+// queue holds nothing droppable the branch is disconnected instead.
+//
+// Chat waits in a lane of its own, as deep as the queue, and is only handed
+// out once the queue is empty, so a chat burst never holds up stock updates.
+// When the lane is full the oldest chat is dropped, whatever the policy.
+public class OutboundQueue {
+    public enum Policy {
+        DROP_OLDEST, DROP_NEWEST, DISCONNECT
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private ArrayDeque<Message> queue = new ArrayDeque<>(4);
+    private ArrayDeque<Message> chat = new ArrayDeque<>(4);
+    private int capacity;
+    private Policy policy;
+    private boolean closed;
+    // An UPDATE was dropped since the last drain
+    private boolean updateDropped;
+
+    // Statistics, guarded by lock
+    private long enqueued;
+    private long dropped;
+    private int maxDepth;
+
+    public OutboundQueue(int capacity, Policy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    // Returns false if the branch is too slow and should be disconnected
+    public boolean offer(Message msg) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            if (isChat(msg)) {
+                if (chat.size() >= capacity) {
+                    chat.poll();
+                    dropped++;
+                }
+                chat.add(msg);
+                enqueued++;
+                notEmpty.signal();
+                return true;
+            }
+            if (queue.size() >= capacity) {
+                if (policy == Policy.DROP_NEWEST && isDroppable(msg)) {
+                    dropped++;
+                    updateDropped |= msg.type == Message.Type.UPDATE;
+                    return true;
+                }
+                if (policy == Policy.DISCONNECT || !dropOldest()) {
+                    return false;
+                }
+            }
+            queue.add(msg);
+            enqueued++;
+            maxDepth = Math.max(maxDepth, queue.size());
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean dropOldest() {
+        Iterator<Message> it = queue.iterator();
+        while (it.hasNext()) {
+            Message oldest = it.next();
+            if (isDroppable(oldest)) {
+                it.remove();
+                dropped++;
+                updateDropped |= oldest.type == Message.Type.UPDATE;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isDroppable(Message msg) {
+        return msg.type == Message.Type.UPDATE;
+    }
+
+    private static boolean isChat(Message msg) {
+        return msg.type == Message.Type.CHAT || msg.type == Message.Type.CHAT_BATCH;
+    }
+
+    // Waits for at least one message, then moves up to max queued messages into batch.
+    // Returns false once the queue is closed.
+    public boolean takeBatch(List<Message> batch, int max) throws InterruptedException {
+        lock.lock();
+        try {
+            while (queue.isEmpty() && chat.isEmpty()) {
+                if (closed) {
+                    return false;
+                }
+                notEmpty.await();
+            }
+            drain(batch, max);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Moves up to max queued messages into batch without waiting
+    public int drainTo(List<Message> batch, int max) {
+        lock.lock();
+        try {
+            return drain(batch, max);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int drain(List<Message> batch, int max) {
+        int n = 0;
+        if (updateDropped && max > 0) {
+            updateDropped = false;
+            batch.add(new Message(Message.Type.SYNC, "Server", null, null, 0));
+            n++;
+        }
+        while (n < max && !queue.isEmpty()) {
+            batch.add(queue.poll());
+            n++;
+        }
+        while (n < max && queue.isEmpty() && !chat.isEmpty()) {
+            batch.add(chat.poll());
+            n++;
+        }
+        return n;
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            queue.clear();
+            chat.clear();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getDepth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getChatDepth() {
+        lock.lock();
+        try {
+            return chat.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxDepth() {
+        lock.lock();
+        try {
+            return maxDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getEnqueuedCount() {
+        lock.lock();
+        try {
+            return enqueued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
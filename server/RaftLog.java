@@ -0,0 +1,252 @@
+package server;
+
+import common.Protocol;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// The replicated log of a RaftNode plus the term and vote it must not forget.
+// Entries are numbered from 1; entry 0 is an implicit empty entry of term 0.
+//
+// With a directory, entries go to raft.log as [int length][int crc][long term,
+// int count, (item, delta)*] and the term and vote to raft.state. Without one
+// everything is kept in memory, which is only safe if a node never restarts.
+public class RaftLog {
+    public static class Entry {
+        private long term;
+        private Map<String, Integer> deltas;
+
+        public Entry(long term, Map<String, Integer> deltas) {
+            this.term = term;
+            this.deltas = deltas;
+        }
+
+        public long getTerm() {
+            return term;
+        }
+
+        public Map<String, Integer> getDeltas() {
+            return deltas;
+        }
+    }
+
+    private Path dir;
+    private FileChannel file;
+    private List<Entry> entries = new ArrayList<>();
+    // File offset of every entry, so a conflicting suffix can be cut off
+    private List<Long> offsets = new ArrayList<>();
+    private ByteArrayOutputStream unwritten = new ByteArrayOutputStream();
+    private long currentTerm;
+    private String votedFor;
+
+    private RaftLog(Path dir) {
+        this.dir = dir;
+    }
+
+    // dir may be null for a log kept in memory only
+    public static RaftLog open(Path dir) throws IOException {
+        RaftLog log = new RaftLog(dir);
+        if (dir != null) {
+            Files.createDirectories(dir);
+            log.readState();
+            log.readEntries();
+            log.file = FileChannel.open(dir.resolve("raft.log"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            log.file.position(log.file.size());
+        }
+        return log;
+    }
+
+    public long getLastIndex() {
+        return entries.size();
+    }
+
+    public long getLastTerm() {
+        return termAt(entries.size());
+    }
+
+    // Term of the entry at index, 0 for index 0; index must exist
+    public long termAt(long index) {
+        return index == 0 ? 0 : entries.get((int) (index - 1)).term;
+    }
+
+    public Entry get(long index) {
+        return entries.get((int) (index - 1));
+    }
+
+    public List<Entry> getFrom(long index, int max) {
+        int from = (int) (index - 1);
+        int to = (int) Math.min(entries.size(), from + (long) max);
+        return new ArrayList<>(entries.subList(from, to));
+    }
+
+    // Adds an entry at the end; it is on disk after the next force()
+    public long append(Entry entry) throws IOException {
+        if (file != null) {
+            offsets.add(file.position() + unwritten.size());
+            unwritten.write(encode(entry));
+        }
+        entries.add(entry);
+        return entries.size();
+    }
+
+    // Removes index and everything after it
+    public void truncateFrom(long index) throws IOException {
+        if (index > entries.size()) {
+            return;
+        }
+        int from = (int) (index - 1);
+        if (file != null) {
+            writeUnwritten();
+            long offset = offsets.get(from);
+            file.truncate(offset);
+            file.position(offset);
+            offsets.subList(from, offsets.size()).clear();
+        }
+        entries.subList(from, entries.size()).clear();
+    }
+
+    // Makes every appended entry durable
+    public void force() throws IOException {
+        if (file != null) {
+            writeUnwritten();
+            file.force(false);
+        }
+    }
+
+    private void writeUnwritten() throws IOException {
+        if (unwritten.size() == 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(unwritten.toByteArray());
+        while (buffer.hasRemaining()) {
+            file.write(buffer);
+        }
+        unwritten.reset();
+    }
+
+    public long getCurrentTerm() {
+        return currentTerm;
+    }
+
+    public String getVotedFor() {
+        return votedFor;
+    }
+
+    // Durable before it returns, since a node must never vote twice in a term
+    public void setTermAndVote(long term, String votedFor) throws IOException {
+        this.currentTerm = term;
+        this.votedFor = votedFor;
+        if (dir == null) {
+            return;
+        }
+        Path tmp = dir.resolve("raft.state.tmp");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(term);
+        out.writeUTF(votedFor == null ? "" : votedFor);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, dir.resolve("raft.state"), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void readState() throws IOException {
+        Path path = dir.resolve("raft.state");
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            currentTerm = in.readLong();
+            String vote = in.readUTF();
+            votedFor = vote.isEmpty() ? null : vote;
+        }
+    }
+
+    // Loads raft.log, cutting off a torn record at the end
+    private void readEntries() throws IOException {
+        Path path = dir.resolve("raft.log");
+        if (!Files.exists(path)) {
+            return;
+        }
+        long validLength = 0;
+        try (InputStream stream = Files.newInputStream(path);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(stream))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int expectedCrc = in.readInt();
+                if (length < 12 || length > Protocol.MAX_FRAME_SIZE) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                if ((int) crc.getValue() != expectedCrc) {
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                long term = record.readLong();
+                int count = record.readInt();
+                Map<String, Integer> deltas = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++) {
+                    deltas.put(record.readUTF(), record.readInt());
+                }
+                offsets.add(validLength);
+                entries.add(new Entry(term, deltas));
+                validLength += 8 + length;
+            }
+        } catch (EOFException e) {
+            // Torn write, handled below
+        }
+        if (validLength < Files.size(path)) {
+            System.out.println("Truncating torn tail of raft.log at " + validLength);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+                channel.force(true);
+            }
+        }
+    }
+
+    private static byte[] encode(Entry entry) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(16 + entry.deltas.size() * 24);
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeLong(entry.term);
+        out.writeInt(entry.deltas.size());
+        for (Map.Entry<String, Integer> delta : entry.deltas.entrySet()) {
+            out.writeUTF(delta.getKey());
+            out.writeInt(delta.getValue());
+        }
+        byte[] bodyBytes = body.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bodyBytes);
+        ByteBuffer record = ByteBuffer.allocate(8 + bodyBytes.length);
+        record.putInt(bodyBytes.length).putInt((int) crc.getValue()).put(bodyBytes);
+        return record.array();
+    }
+}
@@ -0,0 +1,95 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Messages between the server nodes of a cluster, sent as length-prefixed
+// frames on the raft port. Branch clients never see these.
+public class RaftMessage {
+    public enum Kind {
+        VOTE_REQUEST, VOTE_RESPONSE, APPEND, APPEND_RESPONSE
+    }
+
+    public Kind kind;
+    public long term;
+    public String from;
+    // VOTE_REQUEST: the candidate's last log entry. APPEND: the entry before entries.
+    public long logIndex;
+    public long logTerm;
+    // APPEND only
+    public List<RaftLog.Entry> entries = List.of();
+    public long leaderCommit;
+    // VOTE_RESPONSE: vote granted. APPEND_RESPONSE: entries accepted.
+    public boolean success;
+    // APPEND_RESPONSE: the follower's last entry known to match the leader's
+    public long matchIndex;
+
+    public RaftMessage(Kind kind, long term, String from) {
+        this.kind = kind;
+        this.term = term;
+        this.from = from;
+    }
+
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(kind.ordinal());
+        out.writeLong(term);
+        out.writeUTF(from);
+        out.writeLong(logIndex);
+        out.writeLong(logTerm);
+        out.writeLong(leaderCommit);
+        out.writeBoolean(success);
+        out.writeLong(matchIndex);
+        out.writeInt(entries.size());
+        for (RaftLog.Entry entry : entries) {
+            out.writeLong(entry.getTerm());
+            out.writeInt(entry.getDeltas().size());
+            for (Map.Entry<String, Integer> delta : entry.getDeltas().entrySet()) {
+                out.writeUTF(delta.getKey());
+                out.writeInt(delta.getValue());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    public static RaftMessage decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int kind = in.readByte();
+        if (kind < 0 || kind >= Kind.values().length) {
+            throw new IOException("Unknown raft message kind " + kind);
+        }
+        RaftMessage msg = new RaftMessage(Kind.values()[kind], in.readLong(), in.readUTF());
+        msg.logIndex = in.readLong();
+        msg.logTerm = in.readLong();
+        msg.leaderCommit = in.readLong();
+        msg.success = in.readBoolean();
+        msg.matchIndex = in.readLong();
+        int count = in.readInt();
+        if (count < 0 || count > payload.length) {
+            throw new IOException("Bad entry count " + count);
+        }
+        List<RaftLog.Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long term = in.readLong();
+            int size = in.readInt();
+            if (size < 0 || size > payload.length) {
+                throw new IOException("Bad entry size " + size);
+            }
+            Map<String, Integer> deltas = new LinkedHashMap<>();
+            for (int j = 0; j < size; j++) {
+                deltas.put(in.readUTF(), in.readInt());
+            }
+            entries.add(new RaftLog.Entry(term, deltas));
+        }
+        msg.entries = entries;
+        return msg;
+    }
+}
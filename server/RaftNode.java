@@ -0,0 +1,617 @@
+package server;
+
+import common.FrameCodec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+// Raft leader election and log replication between the server nodes of a
+// cluster. The leader takes every order: its stock changes are proposed as
+// log entries and the order is acknowledged once a majority of nodes has
+// the entry on disk. Followers apply committed entries to their own
+// inventory, so branches can read from any node.
+//
+// All Raft state is touched only on the loop thread. Proposals queue up while
+// the loop is busy and are appended and forced as one batch, so concurrent
+// orders share a disk flush and an append round trip.
+//
+// On election the leader appends an empty entry and only takes orders once
+// that is applied, so its inventory includes everything committed before it.
+public class RaftNode implements ChangeLog, Closeable {
+    public enum Role {
+        FOLLOWER, CANDIDATE, LEADER
+    }
+
+    private static final int HEARTBEAT_MS = 50;
+    // Election timeouts are picked at random between this and twice this
+    private static final int ELECTION_TIMEOUT_MS = 300;
+    private static final int MAX_APPEND_ENTRIES = 1024;
+    private static final int PEER_QUEUE_CAPACITY = 4096;
+
+    private static class Proposal {
+        private Map<String, Integer> deltas;
+        private CompletableFuture<Long> result = new CompletableFuture<>();
+
+        Proposal(Map<String, Integer> deltas) {
+            this.deltas = deltas;
+        }
+    }
+
+    // Outgoing connection to another node. Messages are dropped while it is
+    // unreachable; the leader resends what matters on the next heartbeat.
+    private class Peer implements Runnable {
+        private ClusterMember member;
+        private LinkedBlockingQueue<RaftMessage> queue = new LinkedBlockingQueue<>(PEER_QUEUE_CAPACITY);
+        private volatile boolean connected;
+        private Thread thread;
+
+        Peer(ClusterMember member) {
+            this.member = member;
+        }
+
+        void send(RaftMessage msg) {
+            if (connected) {
+                queue.offer(msg);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(member.getHost(), member.getRaftPort()), 1000);
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    connected = true;
+                    List<RaftMessage> batch = new ArrayList<>();
+                    while (!closed) {
+                        batch.add(queue.take());
+                        queue.drainTo(batch);
+                        for (RaftMessage msg : batch) {
+                            FrameCodec.appendFrame(out, msg.encode());
+                        }
+                        out.flush();
+                        batch.clear();
+                    }
+                } catch (IOException e) {
+                    // Not up yet or gone away; retry below
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    connected = false;
+                    queue.clear();
+                }
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private ClusterMember self;
+    private Map<String, ClusterMember> members = new LinkedHashMap<>();
+    private Map<String, Peer> peers = new LinkedHashMap<>();
+    private RaftLog log;
+    // Applies entries this node did not propose itself
+    private Consumer<Map<String, Integer>> stateMachine = deltas -> {
+    };
+    private ScheduledExecutorService loop;
+    private ServerSocket listener;
+    private volatile boolean closed;
+    private Random random = new Random();
+
+    // Read by other threads, written on the loop thread
+    private volatile Role role = Role.FOLLOWER;
+    private volatile String leaderId;
+    private volatile boolean ready;
+
+    private long commitIndex;
+    private long lastApplied;
+    // Index of the empty entry this node appended when it became leader
+    private long termStartIndex;
+    private Set<String> votes = new HashSet<>();
+    private Map<String, Long> nextIndex = new HashMap<>();
+    private Map<String, Long> matchIndex = new HashMap<>();
+    // Peers with an append we have not had a response to
+    private Set<String> appendInFlight = new HashSet<>();
+    private Map<Long, CompletableFuture<Long>> pending = new HashMap<>();
+    private ScheduledFuture<?> electionTimer;
+    private ScheduledFuture<?> heartbeatTimer;
+
+    private ConcurrentLinkedQueue<Proposal> proposals = new ConcurrentLinkedQueue<>();
+    private AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    private RaftNode(ClusterMember self, List<ClusterMember> members, RaftLog log) {
+        this.self = self;
+        this.log = log;
+        for (ClusterMember member : members) {
+            this.members.put(member.getId(), member);
+            if (member != self) {
+                peers.put(member.getId(), new Peer(member));
+            }
+        }
+        loop = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "raft-" + self.getId());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // dir may be null to keep the log in memory, which is only safe if the node never restarts
+    public static RaftNode open(String nodeId, List<ClusterMember> members, Path dir) throws IOException {
+        ClusterMember self = null;
+        for (ClusterMember member : members) {
+            if (member.getId().equals(nodeId)) {
+                self = member;
+            }
+        }
+        if (self == null) {
+            throw new IllegalArgumentException("Node " + nodeId + " is not in the cluster");
+        }
+        return new RaftNode(self, members, RaftLog.open(dir));
+    }
+
+    public void setStateMachine(Consumer<Map<String, Integer>> stateMachine) {
+        this.stateMachine = stateMachine;
+    }
+
+    public void start() throws IOException {
+        listener = new ServerSocket(self.getRaftPort());
+        Thread acceptor = new Thread(this::acceptPeers, "raft-accept-" + self.getId());
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (Peer peer : peers.values()) {
+            peer.thread = new Thread(peer, "raft-peer-" + peer.member.getId());
+            peer.thread.setDaemon(true);
+            peer.thread.start();
+        }
+        System.out.println("Raft node " + self.getId() + " listening on port " + self.getRaftPort() + ", log has "
+                + log.getLastIndex() + " entries, term " + log.getCurrentTerm());
+        onLoop(this::resetElectionTimer);
+    }
+
+    public String getNodeId() {
+        return self.getId();
+    }
+
+    public boolean isLeader() {
+        return role == Role.LEADER;
+    }
+
+    // Leader and caught up with everything committed before its term
+    public boolean isReady() {
+        return ready;
+    }
+
+    // Client address of the current leader, or null while there is none
+    public String getLeaderAddress() {
+        String leader = leaderId;
+        return leader == null ? null : members.get(leader).getClientAddress();
+    }
+
+    @Override
+    public long append(Map<String, Integer> deltas) throws IOException {
+        try {
+            return propose(deltas).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for commit", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // Completes with the entry's index once it is committed
+    public CompletableFuture<Long> propose(Map<String, Integer> deltas) {
+        Proposal proposal = new Proposal(deltas);
+        if (!ready) {
+            proposal.result.completeExceptionally(new IOException("Not the leader"));
+            return proposal.result;
+        }
+        proposals.add(proposal);
+        if (drainScheduled.compareAndSet(false, true)) {
+            onLoop(this::appendProposals);
+        }
+        return proposal.result;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            if (listener != null) {
+                listener.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Peer peer : peers.values()) {
+            if (peer.thread != null) {
+                peer.thread.interrupt();
+            }
+        }
+        // Not shutdownNow(), an interrupt would close the log file mid-write
+        loop.shutdown();
+        try {
+            loop.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Tasks on a scheduled executor swallow their exceptions, so report them here
+    private void onLoop(Runnable task) {
+        loop.execute(() -> runReporting(task));
+    }
+
+    private void runReporting(Runnable task) {
+        if (closed) {
+            return;
+        }
+        try {
+            task.run();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void acceptPeers() {
+        while (!closed) {
+            try {
+                Socket socket = listener.accept();
+                socket.setTcpNoDelay(true);
+                Thread reader = new Thread(() -> readPeer(socket), "raft-in-" + self.getId());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void readPeer(Socket socket) {
+        try (socket; DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (!closed) {
+                RaftMessage msg = RaftMessage.decode(FrameCodec.readPayload(in));
+                if (members.containsKey(msg.from)) {
+                    onLoop(() -> handle(msg));
+                }
+            }
+        } catch (IOException e) {
+            // Peer went away; it reconnects on its own
+        }
+    }
+
+    private void send(String to, RaftMessage msg) {
+        Peer peer = peers.get(to);
+        if (peer != null) {
+            peer.send(msg);
+        }
+    }
+
+    private void handle(RaftMessage msg) {
+        if (msg.term > log.getCurrentTerm()) {
+            stepDown(msg.term);
+        }
+        switch (msg.kind) {
+            case VOTE_REQUEST:
+                onVoteRequest(msg);
+                break;
+            case VOTE_RESPONSE:
+                onVoteResponse(msg);
+                break;
+            case APPEND:
+                onAppend(msg);
+                break;
+            case APPEND_RESPONSE:
+                onAppendResponse(msg);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Persists the term and vote; a node that cannot must not take part any more
+    private void saveTermAndVote(long term, String votedFor) {
+        try {
+            log.setTermAndVote(term, votedFor);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not save raft state", e);
+        }
+    }
+
+    private void stepDown(long term) {
+        if (term > log.getCurrentTerm()) {
+            saveTermAndVote(term, null);
+            leaderId = null;
+        }
+        if (role == Role.LEADER) {
+            System.out.println("Raft node " + self.getId() + " is no longer leader (term " + term + ")");
+        }
+        role = Role.FOLLOWER;
+        ready = false;
+        votes.clear();
+        appendInFlight.clear();
+        if (heartbeatTimer != null) {
+            heartbeatTimer.cancel(false);
+            heartbeatTimer = null;
+        }
+        failPending("Leadership lost");
+        resetElectionTimer();
+    }
+
+    // The entries may still commit under the next leader, so the orders are
+    // reported as failed without being undone on the other nodes
+    private void failPending(String reason) {
+        for (CompletableFuture<Long> future : pending.values()) {
+            future.completeExceptionally(new IOException(reason));
+        }
+        pending.clear();
+        Proposal proposal;
+        while ((proposal = proposals.poll()) != null) {
+            proposal.result.completeExceptionally(new IOException(reason));
+        }
+    }
+
+    private void resetElectionTimer() {
+        if (electionTimer != null) {
+            electionTimer.cancel(false);
+        }
+        if (closed) {
+            return;
+        }
+        long timeout = ELECTION_TIMEOUT_MS + random.nextInt(ELECTION_TIMEOUT_MS);
+        electionTimer = loop.schedule(() -> runReporting(this::startElection), timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private void startElection() {
+        if (role == Role.LEADER) {
+            return;
+        }
+        long term = log.getCurrentTerm() + 1;
+        saveTermAndVote(term, self.getId());
+        role = Role.CANDIDATE;
+        leaderId = null;
+        votes.clear();
+        votes.add(self.getId());
+        for (String peer : peers.keySet()) {
+            RaftMessage request = new RaftMessage(RaftMessage.Kind.VOTE_REQUEST, term, self.getId());
+            request.logIndex = log.getLastIndex();
+            request.logTerm = log.getLastTerm();
+            send(peer, request);
+        }
+        resetElectionTimer();
+        becomeLeaderIfElected();
+    }
+
+    private void onVoteRequest(RaftMessage msg) {
+        long term = log.getCurrentTerm();
+        String votedFor = log.getVotedFor();
+        // Only for a candidate whose log is at least as up to date as ours
+        boolean upToDate = msg.logTerm > log.getLastTerm()
+                || (msg.logTerm == log.getLastTerm() && msg.logIndex >= log.getLastIndex());
+        boolean grant = msg.term == term && (votedFor == null || votedFor.equals(msg.from)) && upToDate;
+        if (grant) {
+            saveTermAndVote(term, msg.from);
+            resetElectionTimer();
+        }
+        RaftMessage response = new RaftMessage(RaftMessage.Kind.VOTE_RESPONSE, term, self.getId());
+        response.success = grant;
+        send(msg.from, response);
+    }
+
+    private void onVoteResponse(RaftMessage msg) {
+        if (role == Role.CANDIDATE && msg.term == log.getCurrentTerm() && msg.success) {
+            votes.add(msg.from);
+            becomeLeaderIfElected();
+        }
+    }
+
+    private void becomeLeaderIfElected() {
+        if (role != Role.CANDIDATE || votes.size() <= members.size() / 2) {
+            return;
+        }
+        role = Role.LEADER;
+        leaderId = self.getId();
+        electionTimer.cancel(false);
+        for (String peer : peers.keySet()) {
+            nextIndex.put(peer, log.getLastIndex() + 1);
+            matchIndex.put(peer, 0L);
+        }
+        System.out.println("Raft node " + self.getId() + " is leader for term " + log.getCurrentTerm());
+        try {
+            termStartIndex = log.append(new RaftLog.Entry(log.getCurrentTerm(), Map.of()));
+            log.force();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write raft log", e);
+        }
+        heartbeatTimer = loop.scheduleAtFixedRate(() -> runReporting(() -> sendAppends(true)), HEARTBEAT_MS,
+                HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+        sendAppends(true);
+        advanceCommitIndex();
+    }
+
+    private void appendProposals() {
+        drainScheduled.set(false);
+        if (role != Role.LEADER) {
+            failPending("Not the leader");
+            return;
+        }
+        List<Proposal> batch = new ArrayList<>();
+        Proposal proposal;
+        while ((proposal = proposals.poll()) != null) {
+            batch.add(proposal);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            for (Proposal p : batch) {
+                long index = log.append(new RaftLog.Entry(log.getCurrentTerm(), p.deltas));
+                pending.put(index, p.result);
+            }
+            log.force();
+        } catch (IOException e) {
+            // Without a durable log this node cannot lead; let another one take over
+            e.printStackTrace();
+            stepDown(log.getCurrentTerm());
+            return;
+        }
+        sendAppends(false);
+        advanceCommitIndex();
+    }
+
+    // A heartbeat goes to every follower; otherwise only to those with no append in flight
+    private void sendAppends(boolean heartbeat) {
+        for (String peer : peers.keySet()) {
+            if (heartbeat || !appendInFlight.contains(peer)) {
+                sendAppend(peer);
+            }
+        }
+    }
+
+    private void sendAppend(String peer) {
+        long next = nextIndex.get(peer);
+        RaftMessage append = new RaftMessage(RaftMessage.Kind.APPEND, log.getCurrentTerm(), self.getId());
+        append.logIndex = next - 1;
+        append.logTerm = log.termAt(next - 1);
+        if (next <= log.getLastIndex()) {
+            append.entries = log.getFrom(next, MAX_APPEND_ENTRIES);
+        }
+        append.leaderCommit = commitIndex;
+        appendInFlight.add(peer);
+        send(peer, append);
+    }
+
+    private void onAppend(RaftMessage msg) {
+        long term = log.getCurrentTerm();
+        RaftMessage response = new RaftMessage(RaftMessage.Kind.APPEND_RESPONSE, term, self.getId());
+        if (msg.term < term) {
+            send(msg.from, response);
+            return;
+        }
+        if (role != Role.FOLLOWER) {
+            stepDown(term);
+        }
+        if (!msg.from.equals(leaderId)) {
+            leaderId = msg.from;
+            System.out.println("Raft node " + self.getId() + " follows " + leaderId + " in term " + term);
+        }
+        resetElectionTimer();
+
+        if (msg.logIndex > log.getLastIndex() || log.termAt(msg.logIndex) != msg.logTerm) {
+            // Tell the leader where to look next
+            response.matchIndex = Math.min(log.getLastIndex(), msg.logIndex - 1);
+            send(msg.from, response);
+            return;
+        }
+        try {
+            long index = msg.logIndex;
+            boolean appended = false;
+            for (RaftLog.Entry entry : msg.entries) {
+                index++;
+                if (index <= log.getLastIndex()) {
+                    if (log.termAt(index) == entry.getTerm()) {
+                        continue;
+                    }
+                    log.truncateFrom(index);
+                }
+                log.append(entry);
+                appended = true;
+            }
+            if (appended) {
+                log.force();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            send(msg.from, response);
+            return;
+        }
+        long match = msg.logIndex + msg.entries.size();
+        if (msg.leaderCommit > commitIndex) {
+            commitIndex = Math.max(commitIndex, Math.min(msg.leaderCommit, match));
+            applyCommitted();
+        }
+        response.success = true;
+        response.matchIndex = match;
+        send(msg.from, response);
+    }
+
+    private void onAppendResponse(RaftMessage msg) {
+        if (role != Role.LEADER || msg.term != log.getCurrentTerm()) {
+            return;
+        }
+        appendInFlight.remove(msg.from);
+        if (msg.success) {
+            matchIndex.merge(msg.from, msg.matchIndex, Math::max);
+            nextIndex.put(msg.from, matchIndex.get(msg.from) + 1);
+            advanceCommitIndex();
+        } else {
+            long next = Math.min(nextIndex.get(msg.from) - 1, msg.matchIndex + 1);
+            nextIndex.put(msg.from, Math.max(1, next));
+        }
+        if (nextIndex.get(msg.from) <= log.getLastIndex()) {
+            sendAppend(msg.from);
+        }
+    }
+
+    // An entry of the current term is committed once a majority has it;
+    // earlier entries are committed along with it
+    private void advanceCommitIndex() {
+        for (long n = log.getLastIndex(); n > commitIndex && log.termAt(n) == log.getCurrentTerm(); n--) {
+            // The leader forces before it sends, so it always has its own entries
+            int count = 1;
+            for (long match : matchIndex.values()) {
+                if (match >= n) {
+                    count++;
+                }
+            }
+            if (count > members.size() / 2) {
+                commitIndex = n;
+                break;
+            }
+        }
+        applyCommitted();
+    }
+
+    private void applyCommitted() {
+        while (lastApplied < commitIndex) {
+            lastApplied++;
+            CompletableFuture<Long> future = pending.remove(lastApplied);
+            if (future != null) {
+                // Proposed here, so the inventory already has the change
+                future.complete(lastApplied);
+            } else {
+                Map<String, Integer> deltas = log.get(lastApplied).getDeltas();
+                if (!deltas.isEmpty()) {
+                    stateMachine.accept(deltas);
+                }
+            }
+        }
+        if (role == Role.LEADER && !ready && lastApplied >= termStartIndex) {
+            ready = true;
+        }
+    }
+}
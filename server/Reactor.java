@@ -0,0 +1,97 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+// One selector loop serving many connections. All channel and interest-op
+// changes happen on this thread; other threads submit them through execute().
+// Whatever one connection or task throws, the loop keeps going: a failing
+// connection is closed and counted, the rest are still served.
+public class Reactor implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private Selector selector;
+    private ServerConfig config;
+    private RequestDispatcher dispatcher;
+    private Executor workers;
+    private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Shared by every connection on this reactor, so idle connections hold no buffer
+    private ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private volatile Thread thread;
+
+    public Reactor(ServerConfig config, RequestDispatcher dispatcher, Executor workers) throws IOException {
+        this.selector = Selector.open();
+        this.config = config;
+        this.dispatcher = dispatcher;
+        this.workers = workers;
+    }
+
+    public void register(SocketChannel channel) {
+        execute(() -> {
+            NioConnection connection = new NioConnection(this, channel, config, dispatcher, workers);
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.open(key);
+            } catch (IOException e) {
+                connection.close();
+            }
+        });
+    }
+
+    public void execute(Runnable task) {
+        if (Thread.currentThread() == thread) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (true) {
+            try {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.onReadable(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        connection.close();
+                    } catch (RuntimeException e) {
+                        dispatcher.getMetrics().counter("connections.errors").increment();
+                        e.printStackTrace();
+                        connection.close();
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
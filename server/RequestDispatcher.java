@@ -0,0 +1,1065 @@
+package server;
+
+import common.HybridClock;
+import common.Message;
+import common.ShardRing;
+import common.Topics;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Handles incoming messages for every transport mode. Connections only deal
+// with framing and delivery, all warehouse logic lives here.
+public class RequestDispatcher {
+    // How long a prepared cross-shard order may hold its stock before it is aborted
+    private static final int PREPARED_TIMEOUT_SECONDS = 30;
+    // Events kept for branches that resume their session
+    private static final int EVENT_LOG_SIZE = 4096;
+    // A resuming branch that missed more events than this gets one CATCH_UP instead
+    private static final int MAX_REPLAYED_EVENTS = 256;
+    // Answers kept for orders with an idempotency key
+    private static final int MAX_REMEMBERED_ORDERS = 10000;
+    // Session secrets kept for branches that may resume; older ones get a snapshot
+    private static final int MAX_REMEMBERED_SESSIONS = 10000;
+    // Tries at logging a handoff, and the wait before the first retry, doubled after each
+    private static final int HANDOFF_ATTEMPTS = 5;
+    private static final long HANDOFF_RETRY_MS = 200;
+    // How often a handoff checks whether the prepared orders on its items are settled
+    private static final long PREPARED_POLL_MS = 50;
+
+    // Lines of a cross-shard order reserved here, waiting for COMMIT or ABORT.
+    // It stays in prepared until its reservations are committed or cancelled.
+    private static class PreparedOrder {
+        private List<Inventory.Reservation> reservations;
+        private ScheduledFuture<?> expiry;
+        // Set by whichever of COMMIT, ABORT or expiry gets to the order first
+        private AtomicBoolean settling = new AtomicBoolean();
+
+        PreparedOrder(List<Inventory.Reservation> reservations) {
+            this.reservations = reservations;
+        }
+
+        boolean touches(Set<String> items) {
+            for (Inventory.Reservation reservation : reservations) {
+                if (items.contains(reservation.getItem())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private Inventory inventory;
+    // Write-ahead log or cluster log; null when the server runs without a data directory
+    private ChangeLog log;
+    // Set when this server is one node of a replicated cluster
+    private RaftNode cluster;
+    // Set when this server is one shard of a partitioned catalogue; replaced when a shard joins
+    private volatile ShardRing ring;
+    private String shardId;
+    private ReentrantLock ringLock = new ReentrantLock();
+    // By client id and transaction id
+    private Map<String, PreparedOrder> prepared = new ConcurrentHashMap<>();
+    // Starts its thread on the first PREPARE
+    private ScheduledExecutorService preparedExpiry = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "prepared-expiry");
+        t.setDaemon(true);
+        return t;
+    });
+    // Copy-on-write so broadcasts never hold a lock while writing to branches
+    private List<Connection> clients = new CopyOnWriteArrayList<>();
+    // Stock changes themselves are lock-free; this lock only orders the
+    // UPDATE/SNAPSHOT messages so every branch sees them in sequence.
+    // Explicit lock rather than synchronized so virtual threads are not pinned.
+    private ReentrantLock publishLock = new ReentrantLock();
+    // Bumped on every published change; guarded by publishLock
+    private long inventoryVersion;
+    // Stock as of inventoryVersion, replaced under publishLock and read without it
+    private volatile StockSnapshot published;
+    // Recent UPDATE broadcasts; appended to under publishLock
+    private EventLog events = new EventLog(EVENT_LOG_SIZE);
+    // Who gets which UPDATEs and CHAT
+    private SubscriptionIndex subscriptions = new SubscriptionIndex();
+    // Delivers chat on a thread of its own, never under publishLock
+    private ChatService chat;
+    // Versions and sequences start again from 0 when the server does, so
+    // snapshots and session tokens say which run of the server they are from
+    private String epoch = UUID.randomUUID().toString();
+    // Answer to each recent order that had an idempotency key, by key,
+    // completed once the order has run. Lives in memory on this node only, so a
+    // restarted server or a new cluster leader takes a resent order again.
+    private Map<String, CompletableFuture<Message>> orderOutcomes = Collections.synchronizedMap(
+            new LinkedHashMap<>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<Message>> eldest) {
+                    // Oldest answered orders go first; one still running keeps
+                    // its entry, or a copy sent meanwhile would run it again
+                    Iterator<CompletableFuture<Message>> outcomes = values().iterator();
+                    while (size() > MAX_REMEMBERED_ORDERS && outcomes.hasNext()) {
+                        if (outcomes.next().isDone()) {
+                            outcomes.remove();
+                        }
+                    }
+                    return false;
+                }
+            });
+    private MutualExclusion mutex;
+    // The mutual exclusion node's clock, so the node has one clock for everything it sends
+    private HybridClock clock;
+    private AtomicInteger nextClientId = new AtomicInteger();
+    // Secret part of each recent session token, by client id. A new one is
+    // issued with every SESSION, and only the branch it went to knows it.
+    private Map<String, String> sessionSecrets = Collections.synchronizedMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_REMEMBERED_SESSIONS;
+        }
+    });
+    private SecureRandom secrets = new SecureRandom();
+    // Orders run here once they hold the critical section; they may block on the log
+    private ExecutorService orderExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private Metrics metrics = new Metrics();
+    private LongAdder replenishCount = metrics.counter("orders.replenish");
+    private LongAdder batchCount = metrics.counter("orders.batch");
+    private LongAdder approvedCount = metrics.counter("orders.approved");
+    private LongAdder partialCount = metrics.counter("orders.partial");
+    private LongAdder deniedCount = metrics.counter("orders.denied");
+    private LongAdder queryCount = metrics.counter("queries");
+    private LongAdder errorCount = metrics.counter("errors");
+    private LongAdder duplicateCount = metrics.counter("orders.duplicate");
+    private LongAdder resumedCount = metrics.counter("sessions.resumed");
+    private LongAdder resumeSnapshotCount = metrics.counter("sessions.snapshot");
+    // From asking for an order's items to holding them, and from then to letting go
+    private LatencyHistogram csWait = metrics.histogram("cs.wait");
+    private LatencyHistogram csHold = metrics.histogram("cs.hold");
+    // Queueing one message for every branch
+    private LatencyHistogram broadcastTime = metrics.histogram("broadcast.fanout");
+
+    public RequestDispatcher(Inventory inventory) {
+        this(inventory, null);
+    }
+
+    public RequestDispatcher(Inventory inventory, ChangeLog log) {
+        this(inventory, log, new RicartAgrawala("SERVER_" + System.currentTimeMillis()));
+    }
+
+    public RequestDispatcher(Inventory inventory, ChangeLog log, MutualExclusion mutex) {
+        this.inventory = inventory;
+        this.log = log;
+        this.mutex = mutex;
+        this.clock = mutex.getClock();
+        this.published = StockSnapshot.of(0, inventory.snapshot());
+        try {
+            this.chat = new ChatService(ChatHistory.openTemporary(), subscriptions, clock, metrics);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not create chat history", e);
+        }
+        metrics.gauge("clients", clients::size);
+        metrics.gauge("inventory.version", () -> published.getVersion());
+        metrics.gauge("mutex.messages", mutex::getMessagesSent);
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public HybridClock getClock() {
+        return clock;
+    }
+
+    // Orders are only taken while this node is the cluster leader; followers
+    // redirect them and keep serving SYNC from their replicated inventory
+    public void setCluster(RaftNode cluster) {
+        this.cluster = cluster;
+    }
+
+    // Keeps chat in the data directory rather than a temporary file
+    public void setChatHistory(ChatHistory history) {
+        chat.setHistory(history);
+    }
+
+    // Only items the ring maps to shardId are taken here; branches are told
+    // the ring when they connect and route their orders themselves
+    public void setSharding(ShardRing ring, String shardId) {
+        this.ring = ring;
+        this.shardId = shardId;
+        // Items handed to another shard before a restart are still on disk, at 0
+        List<String> foreign = new ArrayList<>();
+        for (String item : inventory.snapshot().keySet()) {
+            if (!ring.owns(shardId, item)) {
+                foreign.add(item);
+            }
+        }
+        dropItems(foreign);
+    }
+
+    public void register(Connection connection) {
+        connection.setClientId("CLIENT_" + nextClientId.incrementAndGet());
+        clients.add(connection);
+        subscriptions.add(connection);
+        chat.add(connection);
+        // Register this client with the mutual exclusion algorithm
+        mutex.addNode(connection.getClientId(), connection);
+        connection.send(sessionMessage(connection));
+        if (ring != null) {
+            connection.send(routesMessage(ring));
+        }
+    }
+
+    public void unregister(Connection connection) {
+        if (clients.remove(connection)) {
+            subscriptions.remove(connection);
+            chat.remove(connection);
+            mutex.removeNode(connection.getClientId());
+            // Nobody is left to commit them
+            String prefix = connection.getClientId() + "/";
+            for (String key : prepared.keySet()) {
+                if (key.startsWith(prefix)) {
+                    abortPrepared(key);
+                }
+            }
+        }
+    }
+
+    public void dispatch(Connection from, Message msg) {
+        clock.update(msg.lamportTimestamp);
+        switch (msg.type) {
+            case REPLENISH:
+                handleReplenish(from, msg);
+                break;
+            case BATCH_REPLENISH:
+                handleBatchReplenish(from, msg);
+                break;
+            case SYNC:
+                sendSnapshot(from);
+                break;
+            case RESUME:
+                handleResume(from, msg);
+                break;
+            case SUBSCRIBE:
+                try {
+                    subscriptions.subscribe(from, Topics.parse(msg.content));
+                } catch (IllegalArgumentException e) {
+                    from.send(deny(msg, "Denied: " + e.getMessage()));
+                }
+                break;
+            case QUERY:
+                handleQuery(from, msg);
+                break;
+            case REQUEST:
+            case REPLY:
+            case RELEASE:
+            case INQUIRE:
+            case FAILED:
+            case YIELD:
+            case TOKEN:
+                mutex.handleMessage(from.getClientId(), msg);
+                break;
+            case CHAT:
+                // To every branch on the channel, batched with other lines
+                chat.post(msg);
+                break;
+            case HISTORY:
+                chat.page(from, msg);
+                break;
+            case PREPARE:
+                handlePrepare(from, msg);
+                break;
+            case COMMIT:
+                handleCommit(from, msg);
+                break;
+            case ABORT:
+                abortPrepared(from.getClientId() + "/" + msg.version);
+                break;
+            case ROUTES:
+                handleRoutes(from, msg);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void handleReplenish(Connection from, Message msg) {
+        replenishCount.increment();
+        if (redirected(from, msg)) {
+            return;
+        }
+        String foreign = foreignItem(Collections.singletonList(msg.item));
+        if (foreign != null) {
+            from.send(routesMessage(ring));
+            from.send(deny(msg, "Denied: " + foreign + " is on shard " + ring.ownerOf(foreign) + ", try again"));
+            return;
+        }
+        if (duplicate(from, msg)) {
+            return;
+        }
+        inCriticalSection(Collections.singletonList(msg.item), () -> replenish(from, msg),
+                () -> abandon(from, msg, deny(msg, "Denied: Order failed")));
+    }
+
+    private void replenish(Connection from, Message msg) {
+        Inventory.Reservation reservation = inventory.reserve(msg.item, msg.quantity);
+        if (reservation != null && !logChanges(List.of(reservation))) {
+            inventory.cancel(reservation);
+            from.send(forget(msg, deny(msg, "Denied: Could not record order")));
+        } else if (reservation != null) {
+            inventory.commit(reservation);
+            approvedCount.increment();
+            publishUpdate(List.of(msg.item), msg.item, msg.quantity);
+            // Everyone sees the UPDATE; a branch tracking its orders also gets an answer of its own
+            Message approve = new Message(Message.Type.APPROVE, "Server", msg.item, msg.quantity, clock.tick());
+            approve.content = "Approved";
+            approve.correlationId = msg.correlationId;
+            remember(msg, approve);
+            if (msg.correlationId != 0) {
+                from.send(approve);
+            }
+        } else {
+            from.send(remember(msg, deny(msg, "Denied: Not enough stock")));
+        }
+    }
+
+    private Message deny(Message order, String reason) {
+        deniedCount.increment();
+        Message deny = new Message(Message.Type.DENY, "Server", reason, null, clock.tick());
+        deny.item = order.item;
+        deny.correlationId = order.correlationId;
+        return deny;
+    }
+
+    // True if an order with the same idempotency key was taken already, e.g.
+    // one a branch resends after losing its connection. The branch then gets
+    // that order's answer, once there is one, under the new correlation id.
+    private boolean duplicate(Connection from, Message msg) {
+        if (msg.orderKey == null) {
+            return false;
+        }
+        CompletableFuture<Message> earlier = orderOutcomes.putIfAbsent(msg.orderKey, new CompletableFuture<>());
+        if (earlier == null) {
+            return false;
+        }
+        duplicateCount.increment();
+        earlier.thenAccept(answer -> from.send(reanswer(answer, msg.correlationId)));
+        return true;
+    }
+
+    // Keeps the answer to a keyed order for copies of it sent later
+    private Message remember(Message order, Message answer) {
+        if (order.orderKey != null) {
+            CompletableFuture<Message> outcome = orderOutcomes.get(order.orderKey);
+            if (outcome != null) {
+                outcome.complete(answer);
+            }
+        }
+        return answer;
+    }
+
+    // For an order that did not change stock and may be tried again: copies
+    // already waiting get this answer, later ones run afresh
+    private Message forget(Message order, Message answer) {
+        if (order.orderKey != null) {
+            CompletableFuture<Message> outcome = orderOutcomes.remove(order.orderKey);
+            if (outcome != null) {
+                outcome.complete(answer);
+            }
+        }
+        return answer;
+    }
+
+    // For an order that threw: it may have changed stock before it did, so
+    // copies of it get this answer too instead of running again. The branch
+    // gets it as well unless it was answered already.
+    private void abandon(Connection from, Message order, Message answer) {
+        CompletableFuture<Message> outcome = order.orderKey == null ? null : orderOutcomes.get(order.orderKey);
+        if (outcome != null ? outcome.complete(answer) : order.correlationId != 0) {
+            from.send(answer);
+        }
+    }
+
+    private Message reanswer(Message answer, long correlationId) {
+        Message copy = new Message(answer.type, answer.sender, answer.content, answer.inventory, clock.tick());
+        copy.item = answer.item;
+        copy.quantity = answer.quantity;
+        copy.version = answer.version;
+        copy.lines = answer.lines;
+        copy.fillMode = answer.fillMode;
+        copy.correlationId = correlationId;
+        return copy;
+    }
+
+    // Every line is reserved first; depending on the fill mode the order is then
+    // committed in full, committed for the lines that could be reserved, or
+    // cancelled. The branch gets one BATCH_RESULT and everyone one UPDATE.
+    private void handleBatchReplenish(Connection from, Message msg) {
+        batchCount.increment();
+        if (redirected(from, msg)) {
+            return;
+        }
+        String foreign = foreignItem(msg.lines == null ? List.of() : msg.lines.keySet());
+        if (foreign != null) {
+            from.send(routesMessage(ring));
+            from.send(batchResult(msg, "Denied: " + foreign + " is on shard " + ring.ownerOf(foreign)
+                    + ", try again", Map.of()));
+            return;
+        }
+        if (duplicate(from, msg)) {
+            return;
+        }
+        inCriticalSection(msg.lines == null ? List.of() : msg.lines.keySet(), () -> batchReplenish(from, msg),
+                () -> abandon(from, msg, batchResult(msg, "Denied: Order failed", Map.of())));
+    }
+
+    private void batchReplenish(Connection from, Message msg) {
+        Map<String, Integer> granted = new HashMap<>();
+        List<Inventory.Reservation> reservations = new ArrayList<>();
+        boolean complete = true;
+        if (msg.lines != null) {
+            for (Map.Entry<String, Integer> line : msg.lines.entrySet()) {
+                Inventory.Reservation reservation = inventory.reserve(line.getKey(), line.getValue());
+                if (reservation != null) {
+                    reservations.add(reservation);
+                } else {
+                    complete = false;
+                    if (msg.fillMode == Message.FillMode.ALL_OR_NOTHING) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (!complete && msg.fillMode == Message.FillMode.ALL_OR_NOTHING) {
+            for (Inventory.Reservation reservation : reservations) {
+                inventory.cancel(reservation);
+            }
+            reservations.clear();
+        }
+        if (!reservations.isEmpty() && !logChanges(reservations)) {
+            for (Inventory.Reservation reservation : reservations) {
+                inventory.cancel(reservation);
+            }
+            from.send(forget(msg, batchResult(msg, "Denied: Could not record order", Map.of())));
+            return;
+        }
+        for (Inventory.Reservation reservation : reservations) {
+            inventory.commit(reservation);
+            granted.put(reservation.getItem(), reservation.getQuantity());
+        }
+        if (!granted.isEmpty()) {
+            publishUpdate(granted.keySet(), null, 0);
+        }
+
+        String summary;
+        if (complete) {
+            summary = "Approved";
+        } else if (granted.isEmpty()) {
+            summary = "Denied: Not enough stock";
+        } else {
+            summary = "Partially filled";
+        }
+        from.send(remember(msg, batchResult(msg, summary, granted)));
+    }
+
+    // Granted quantity per requested line, in the order the branch sent them.
+    // The version is echoed so a branch can match results of a split batch.
+    private Message batchResult(Message order, String summary, Map<String, Integer> granted) {
+        return batchResult(order, order.lines == null ? List.of() : order.lines.keySet(), summary, granted);
+    }
+
+    private Message batchResult(Message order, Collection<String> items, String summary,
+            Map<String, Integer> granted) {
+        Map<String, Integer> resultLines = new LinkedHashMap<>();
+        for (String item : items) {
+            resultLines.put(item, granted.getOrDefault(item, 0));
+        }
+        if ("Approved".equals(summary)) {
+            approvedCount.increment();
+        } else if ("Partially filled".equals(summary)) {
+            partialCount.increment();
+        } else {
+            deniedCount.increment();
+        }
+        Message result = new Message(Message.Type.BATCH_RESULT, "Server", summary, null, clock.tick());
+        result.lines = resultLines;
+        result.fillMode = order.fillMode;
+        result.version = order.version;
+        result.correlationId = order.correlationId;
+        return result;
+    }
+
+    // First phase of a batch spanning shards: reserves every line here, all or
+    // nothing, and holds the stock until the branch sends COMMIT or ABORT
+    private void handlePrepare(Connection from, Message msg) {
+        String key = from.getClientId() + "/" + msg.version;
+        Collection<String> items = msg.lines == null ? List.of() : msg.lines.keySet();
+        if (foreignItem(items) != null) {
+            from.send(routesMessage(ring));
+            from.send(vote(msg, false));
+            return;
+        }
+        inCriticalSection(items, () -> {
+            List<Inventory.Reservation> reservations = new ArrayList<>();
+            for (String item : items) {
+                Inventory.Reservation reservation = inventory.reserve(item, msg.lines.get(item));
+                if (reservation == null) {
+                    for (Inventory.Reservation done : reservations) {
+                        inventory.cancel(done);
+                    }
+                    from.send(vote(msg, false));
+                    return;
+                }
+                reservations.add(reservation);
+            }
+            PreparedOrder order = new PreparedOrder(reservations);
+            order.expiry = preparedExpiry.schedule(() -> abortPrepared(key), PREPARED_TIMEOUT_SECONDS,
+                    TimeUnit.SECONDS);
+            prepared.put(key, order);
+            from.send(vote(msg, true));
+        });
+    }
+
+    private Message vote(Message prepare, boolean yes) {
+        Message vote = new Message(Message.Type.PREPARED, "Server", null, yes ? 1 : 0, clock.tick());
+        vote.version = prepare.version;
+        return vote;
+    }
+
+    // Second phase: the branch got a yes from every shard. COMMIT carries no
+    // lines, so the result lists the prepared ones.
+    private void handleCommit(Connection from, Message msg) {
+        String key = from.getClientId() + "/" + msg.version;
+        PreparedOrder order = prepared.get(key);
+        if (order == null || !order.settling.compareAndSet(false, true)) {
+            orderExecutor.execute(() -> from.send(batchResult(msg, "Denied: Order expired", Map.of())));
+            return;
+        }
+        orderExecutor.execute(() -> {
+            try {
+                commitPrepared(from, msg, order);
+            } finally {
+                prepared.remove(key, order);
+            }
+        });
+    }
+
+    private void commitPrepared(Connection from, Message msg, PreparedOrder order) {
+        order.expiry.cancel(false);
+        List<String> items = new ArrayList<>();
+        for (Inventory.Reservation reservation : order.reservations) {
+            items.add(reservation.getItem());
+        }
+        Map<String, Integer> granted = new HashMap<>();
+        if (!logChanges(order.reservations)) {
+            for (Inventory.Reservation reservation : order.reservations) {
+                inventory.cancel(reservation);
+            }
+            from.send(batchResult(msg, items, "Denied: Could not record order", granted));
+            return;
+        }
+        for (Inventory.Reservation reservation : order.reservations) {
+            inventory.commit(reservation);
+            granted.put(reservation.getItem(), reservation.getQuantity());
+        }
+        publishUpdate(granted.keySet(), null, 0);
+        from.send(batchResult(msg, items, "Approved", granted));
+    }
+
+    private void abortPrepared(String key) {
+        PreparedOrder order = prepared.get(key);
+        if (order == null || !order.settling.compareAndSet(false, true)) {
+            return;
+        }
+        order.expiry.cancel(false);
+        for (Inventory.Reservation reservation : order.reservations) {
+            inventory.cancel(reservation);
+        }
+        prepared.remove(key, order);
+    }
+
+    // Waits until no prepared order holds any of the items; they all commit
+    // or expire within PREPARED_TIMEOUT_SECONDS. False if interrupted.
+    private boolean awaitPrepared(Set<String> items) {
+        boolean told = false;
+        while (true) {
+            int open = 0;
+            for (PreparedOrder order : prepared.values()) {
+                if (order.touches(items)) {
+                    open++;
+                }
+            }
+            if (open == 0) {
+                return true;
+            }
+            if (!told) {
+                System.out.println("Handoff waits for " + open + " prepared orders on moved items");
+                told = true;
+            }
+            try {
+                Thread.sleep(PREPARED_POLL_MS);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+    }
+
+    // First item not owned by this shard, or null
+    private String foreignItem(Collection<String> items) {
+        ShardRing current = ring;
+        if (current == null) {
+            return null;
+        }
+        for (String item : items) {
+            if (item != null && !current.owns(shardId, item)) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    private Message routesMessage(ShardRing ring) {
+        return new Message(Message.Type.ROUTES, shardId, ring.toSpec(), null, clock.tick());
+    }
+
+    // A new shard announces the bigger ring. From now on orders for the items
+    // that moved are turned away. The handoff then waits for orders already in
+    // the critical section for them, and for prepared cross-shard orders
+    // holding them to commit, abort or expire; cancelled after the items were
+    // dropped, their stock would come back on a shard that no longer owns it.
+    // Then the stock goes to the new shard as a HANDOFF on its connection and
+    // the items leave this shard's catalogue. Only then are branches told the
+    // new ring. If the handoff cannot be logged this shard keeps the old ring
+    // and its stock, rather than have the stock owned by nobody.
+    private void handleRoutes(Connection from, Message msg) {
+        ShardRing next = ShardRing.parse(msg.content);
+        ShardRing previous;
+        ringLock.lock();
+        try {
+            if (ring == null || !next.supersedes(ring)) {
+                from.send(new Message(Message.Type.HANDOFF, shardId, null, Map.of(), clock.tick()));
+                return;
+            }
+            previous = ring;
+            ring = next;
+        } finally {
+            ringLock.unlock();
+        }
+        System.out.println("Shard " + msg.sender + " joined, now " + next.size() + " shards");
+        List<String> moved = new ArrayList<>();
+        for (String item : inventory.snapshot().keySet()) {
+            if (!next.owns(shardId, item)) {
+                moved.add(item);
+            }
+        }
+        inCriticalSection(moved, () -> {
+            List<Inventory.Reservation> reservations = new ArrayList<>();
+            boolean settled = awaitPrepared(new HashSet<>(moved));
+            if (settled) {
+                for (String item : moved) {
+                    int quantity = inventory.getQuantity(item);
+                    Inventory.Reservation reservation = quantity > 0 ? inventory.reserve(item, quantity) : null;
+                    if (reservation != null) {
+                        reservations.add(reservation);
+                    }
+                }
+            }
+            if (!settled || !logHandoff(reservations)) {
+                for (Inventory.Reservation reservation : reservations) {
+                    inventory.cancel(reservation);
+                }
+                ringLock.lock();
+                try {
+                    if (ring == next) {
+                        ring = previous;
+                    }
+                } finally {
+                    ringLock.unlock();
+                }
+                from.send(new Message(Message.Type.HANDOFF, shardId, null, Map.of(), clock.tick()));
+                System.out.println("Could not log the handoff to " + msg.sender + ", keeping the old ring");
+                return;
+            }
+            // Items with nothing left go too, so the new shard has the whole catalogue
+            Map<String, Integer> handoff = new HashMap<>();
+            for (String item : moved) {
+                handoff.put(item, 0);
+            }
+            for (Inventory.Reservation reservation : reservations) {
+                inventory.commit(reservation);
+                handoff.put(reservation.getItem(), reservation.getQuantity());
+            }
+            dropItems(moved);
+            from.send(new Message(Message.Type.HANDOFF, shardId, null, handoff, clock.tick()));
+            System.out.println("Handed " + reservations.size() + " of " + moved.size() + " moved items to "
+                    + msg.sender);
+            broadcast(routesMessage(next));
+        });
+    }
+
+    // Logs the stock leaving in a handoff, trying again a few times if the log fails
+    private boolean logHandoff(List<Inventory.Reservation> reservations) {
+        long wait = HANDOFF_RETRY_MS;
+        for (int attempt = 1; !logChanges(reservations); attempt++) {
+            if (attempt == HANDOFF_ATTEMPTS) {
+                return false;
+            }
+            System.out.println("Could not log a handoff, retrying in " + wait + " ms");
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            wait *= 2;
+        }
+        return true;
+    }
+
+    // Takes items another shard now owns out of the inventory and the
+    // published snapshot. Branches are sent nothing: the owning shard tells them
+    // the stock, and they ignore what this one says about it.
+    private void dropItems(Collection<String> items) {
+        List<String> dropped = new ArrayList<>();
+        for (String item : items) {
+            if (inventory.drop(item)) {
+                dropped.add(item);
+            }
+        }
+        if (dropped.isEmpty()) {
+            return;
+        }
+        publishLock.lock();
+        try {
+            published = published.without(dropped);
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    // Stock taken over from another shard after this one joined the ring
+    public void receiveHandoff(Map<String, Integer> stock) {
+        if (stock.isEmpty()) {
+            return;
+        }
+        if (!logDeltas(stock)) {
+            System.out.println("Could not record handed over stock; it is kept in memory only");
+        }
+        for (Map.Entry<String, Integer> entry : stock.entrySet()) {
+            inventory.addStock(entry.getKey(), entry.getValue());
+        }
+        publishUpdate(stock.keySet(), null, 0);
+    }
+
+    // Sends an order back to the branch when another node has to take it. The
+    // REDIRECT echoes the order so the branch can resend it to the leader.
+    private boolean redirected(Connection from, Message msg) {
+        if (cluster == null || cluster.isReady()) {
+            return false;
+        }
+        String leader = cluster.isLeader() ? null : cluster.getLeaderAddress();
+        if (leader == null) {
+            from.send(deny(msg, "Denied: No leader available, try again"));
+            return true;
+        }
+        Message redirect = new Message(Message.Type.REDIRECT, "Server", leader, null, clock.tick());
+        redirect.item = msg.item;
+        redirect.quantity = msg.quantity;
+        redirect.lines = msg.lines;
+        redirect.fillMode = msg.fillMode;
+        redirect.correlationId = msg.correlationId;
+        // So the leader knows the order again if the branch has to resend it
+        redirect.orderKey = msg.orderKey;
+        from.send(redirect);
+        return true;
+    }
+
+    // A change committed through the cluster log that was not ordered on this
+    // node; orders taken here were applied when they were reserved
+    public void applyCommitted(Map<String, Integer> deltas) {
+        for (Map.Entry<String, Integer> delta : deltas.entrySet()) {
+            inventory.addStock(delta.getKey(), delta.getValue());
+        }
+        publishUpdate(deltas.keySet(), null, 0);
+    }
+
+    // Mutual exclusion for stock updates, per item, so orders
+    // for unrelated items go ahead concurrently. The order runs once every
+    // branch has replied for all of its items; the calling connection is not
+    // held up, since its own REPLY has to come in through it.
+    private void inCriticalSection(Collection<String> items, Runnable order) {
+        inCriticalSection(items, order, null);
+    }
+
+    // As above; failed, if given, runs when the order could not be run or threw
+    private void inCriticalSection(Collection<String> items, Runnable order, Runnable failed) {
+        List<String> resources = new ArrayList<>();
+        for (String item : items) {
+            if (item != null) {
+                resources.add(item);
+            }
+        }
+        long requested = System.nanoTime();
+        mutex.requestCS(resources).thenRunAsync(() -> {
+            long entered = System.nanoTime();
+            csWait.record(entered - requested);
+            try {
+                order.run();
+            } finally {
+                csHold.record(System.nanoTime() - entered);
+                mutex.releaseCS(resources);
+            }
+        }, orderExecutor).exceptionally(e -> {
+            errorCount.increment();
+            e.printStackTrace();
+            if (failed != null) {
+                failed.run();
+            }
+            return null;
+        });
+    }
+
+    // Makes reserved stock changes durable before they are committed and
+    // acknowledged; returns false if they could not be written
+    private boolean logChanges(List<Inventory.Reservation> reservations) {
+        if (log == null || reservations.isEmpty()) {
+            return true;
+        }
+        Map<String, Integer> deltas = new HashMap<>();
+        for (Inventory.Reservation reservation : reservations) {
+            deltas.merge(reservation.getItem(), -reservation.getQuantity(), Integer::sum);
+        }
+        return logDeltas(deltas);
+    }
+
+    private boolean logDeltas(Map<String, Integer> deltas) {
+        if (log == null) {
+            return true;
+        }
+        try {
+            log.append(deltas);
+            return true;
+        } catch (IOException e) {
+            errorCount.increment();
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Broadcasts only the changed items as one UPDATE, with quantities read at
+    // publish time so the last UPDATE a branch sees for an item is the newest value
+    private void publishUpdate(Collection<String> items, String item, int quantity) {
+        publishLock.lock();
+        try {
+            Message updateMsg = new Message(Message.Type.UPDATE, "Server", item, quantity, clock.tick());
+            updateMsg.version = ++inventoryVersion;
+            Map<String, Integer> changed = new HashMap<>(items.size() * 2);
+            for (String changedItem : items) {
+                changed.put(changedItem, inventory.getQuantity(changedItem));
+            }
+            updateMsg.inventory = changed;
+            published = published.with(inventoryVersion, changed);
+            publishEvent(updateMsg);
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    // Numbers the UPDATE and sends it to every branch subscribed to it, so all
+    // of them see updates in the same order and a resuming branch can be sent
+    // what it missed. It goes out whole to a branch that wants any of its items.
+    private void publishEvent(Message event) {
+        publishLock.lock();
+        try {
+            events.append(event);
+            long start = System.nanoTime();
+            subscriptions.forEachStockSubscriber(event.inventory.keySet(), c -> c.send(event));
+            broadcastTime.record(System.nanoTime() - start);
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    // Full inventory for a branch that is new or has missed an update, with
+    // the server's epoch. The sequence is read first: every UPDATE up to it is
+    // in the snapshot, and later ones the branch already has are skipped by version.
+    private void sendSnapshot(Connection to) {
+        long sequence = events.getLastSequence();
+        StockSnapshot current = published;
+        Message snapshot = new Message(Message.Type.SNAPSHOT, "Server", epoch, subscribedStock(to, current),
+                clock.tick());
+        snapshot.version = current.getVersion();
+        snapshot.sequence = sequence;
+        to.send(snapshot);
+    }
+
+    // The items of the snapshot the branch is subscribed to
+    private Map<String, Integer> subscribedStock(Connection to, StockSnapshot current) {
+        Topics topics = subscriptions.get(to);
+        if (topics == null || topics.isAllStock()) {
+            return current.toMap();
+        }
+        Map<String, Integer> stock = new HashMap<>(current.get(topics.getItems()));
+        for (String category : topics.getCategories()) {
+            stock.putAll(current.range(category));
+        }
+        return stock;
+    }
+
+    // The token is epoch/clientId/secret; the secret keeps other branches
+    // from resuming as this one, since the client id is easy to guess
+    private Message sessionMessage(Connection connection) {
+        byte[] secret = new byte[16];
+        secrets.nextBytes(secret);
+        String encoded = Base64.getUrlEncoder().withoutPadding().encodeToString(secret);
+        sessionSecrets.put(connection.getClientId(), encoded);
+        return new Message(Message.Type.SESSION, "Server", epoch + "/" + connection.getClientId() + "/" + encoded,
+                null, clock.tick());
+    }
+
+    // True if the secret is the one last issued to the client id
+    private boolean validSession(String clientId, String secret) {
+        String issued = sessionSecrets.get(clientId);
+        return issued != null && MessageDigest.isEqual(issued.getBytes(StandardCharsets.UTF_8),
+                secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // A branch back after losing its connection takes its old client id
+    // again, from a connection the server may not yet have noticed is dead,
+    // and gets the updates and chat it missed. A token from another run of
+    // the server, or one whose secret does not match, is worth nothing, so
+    // that branch gets a snapshot and keeps the id it has.
+    private void handleResume(Connection from, Message msg) {
+        String prefix = epoch + "/";
+        int slash = msg.content == null ? -1 : msg.content.lastIndexOf('/');
+        if (slash < prefix.length() || !msg.content.startsWith(prefix)
+                || !validSession(msg.content.substring(prefix.length(), slash), msg.content.substring(slash + 1))) {
+            resumeSnapshotCount.increment();
+            sendSnapshot(from);
+            return;
+        }
+        String previousId = msg.content.substring(prefix.length(), slash);
+        if (!previousId.equals(from.getClientId())) {
+            // The id this connection was given is not coming back
+            sessionSecrets.remove(from.getClientId());
+            for (Connection other : clients) {
+                if (other != from && previousId.equals(other.getClientId())) {
+                    unregister(other);
+                    other.close();
+                }
+            }
+            mutex.removeNode(from.getClientId());
+            from.setClientId(previousId);
+            mutex.addNode(previousId, from);
+            from.send(sessionMessage(from));
+        }
+        chat.resume(from, msg.version);
+        sendMissedEvents(from, msg.sequence);
+    }
+
+    // Resends the events after since as they went out, then a CATCH_UP to
+    // say the branch is up to date. A branch that missed too many for that
+    // gets only the CATCH_UP, with every item the missed UPDATEs changed.
+    // Under publishLock, so events broadcast
+    // after these come after them on the connection too.
+    private void sendMissedEvents(Connection to, long since) {
+        publishLock.lock();
+        try {
+            List<Message> missed = events.since(since);
+            if (missed == null) {
+                resumeSnapshotCount.increment();
+                sendSnapshot(to);
+                return;
+            }
+            resumedCount.increment();
+            StockSnapshot current = published;
+            Map<String, Integer> changed;
+            if (missed.size() <= MAX_REPLAYED_EVENTS) {
+                for (Message event : missed) {
+                    if (subscriptions.wants(to, event)) {
+                        to.send(event);
+                    }
+                }
+                changed = Map.of();
+            } else {
+                Topics topics = subscriptions.get(to);
+                Set<String> items = new HashSet<>();
+                for (Message event : missed) {
+                    if (event.type == Message.Type.UPDATE && event.inventory != null) {
+                        for (String item : event.inventory.keySet()) {
+                            if (topics == null || topics.wantsItem(item)) {
+                                items.add(item);
+                            }
+                        }
+                    }
+                }
+                changed = current.get(items);
+            }
+            Message catchUp = new Message(Message.Type.CATCH_UP, "Server", epoch, changed, clock.tick());
+            catchUp.version = current.getVersion();
+            catchUp.sequence = events.getLastSequence();
+            to.send(catchUp);
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    // Answered from the published snapshot, so reads never wait for orders.
+    // Followers answer too, from their replicated stock; a shard only knows
+    // its own items and the branch asks every shard it needs.
+    private void handleQuery(Connection from, Message msg) {
+        queryCount.increment();
+        StockSnapshot current = published;
+        Map<String, Integer> found;
+        if (msg.item != null) {
+            int quantity = current.get(msg.item);
+            found = quantity < 0 ? Map.of() : Map.of(msg.item, quantity);
+        } else if (msg.lines != null) {
+            found = current.get(msg.lines.keySet());
+        } else {
+            found = current.range(msg.content == null ? "" : msg.content);
+        }
+        Message result = new Message(Message.Type.QUERY_RESULT, "Server", null, found, clock.tick());
+        result.version = current.getVersion();
+        result.correlationId = msg.correlationId;
+        from.send(result);
+    }
+
+    public void broadcast(Message msg) {
+        long start = System.nanoTime();
+        for (Connection c : clients) {
+            c.send(msg);
+        }
+        broadcastTime.record(System.nanoTime() - start);
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    public List<Connection> getClients() {
+        return Collections.unmodifiableList(clients);
+    }
+}
@@ -1,179 +1,141 @@
 package server;
 
 import common.Message;
-import java.io.ObjectOutputStream;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
-public class RicartAgrawala {
+import java.util.concurrent.CompletableFuture;
+
+// Ricart-Agrawala mutual exclusion, kept separately for every resource (an
+// item name), so orders for different items never wait for each other. Each
+// resource has its own request timestamp, outstanding replies and deferred
+// replies; REQUEST and REPLY messages name the resource in their item field.
+//
+// requestCS() sends an addressed REQUEST to every node and completes when the
+// last REPLY arrives, so entry takes one round trip and 2(N-1) messages.
+// Requests made on this node while the resource is already requested or held
+// queue up and are started by releaseCS() in arrival order.
+public class RicartAgrawala extends AbstractMutualExclusion {
     // States for the algorithm
     private enum State {
         IDLE, REQUESTING, IN_CS
     }
 
-    private State currentState = State.IDLE;
-    private int lamportClock = 0;
-    private int myRequestTimestamp = 0;
-    private String nodeId;
-    private Set<String> nodesInSystem = new HashSet<>();
-    private Set<String> repliesReceived = new HashSet<>();
-    private Queue<String> deferredReplies = new ConcurrentLinkedQueue<>();
-    private static List<ObjectOutputStream> clientOutputs = new ArrayList<>();
-
-    public RicartAgrawala() {
-        this.nodeId = "SERVER_" + System.currentTimeMillis();
+    private static class Resource {
+        private State currentState = State.IDLE;
+        private long myRequestTimestamp;
+        private Set<String> awaitingReplies = new HashSet<>();
+        private Queue<String> deferredReplies = new ArrayDeque<>();
+        // The request being worked on, then the local ones queued behind it
+        private CompletableFuture<Void> currentRequest;
+        private Queue<CompletableFuture<Void>> waitingRequests = new ArrayDeque<>();
     }
 
-    public RicartAgrawala(String nodeId) {
-        this.nodeId = nodeId;
-    }
-
-    public synchronized void addNode(String nodeId) {
-        nodesInSystem.add(nodeId);
-    }
-
-    public synchronized void removeNode(String nodeId) {
-        nodesInSystem.remove(nodeId);
-        repliesReceived.remove(nodeId);
-    }
-
-    public synchronized void updateLamportClock(int receivedTimestamp) {
-        lamportClock = Math.max(lamportClock, receivedTimestamp) + 1;
-    }
+    // Only resources that are requested or held; idle ones are dropped
+    private Map<String, Resource> resources = new HashMap<>();
 
-    public synchronized int getLamportClock() {
-        return ++lamportClock;
+    public RicartAgrawala(String nodeId) {
+        super(nodeId);
     }
 
-    public synchronized void requestCS() {
-        if (currentState != State.IDLE) {
-            return; // Already requesting or in CS
+    @Override
+    protected void request(String name, CompletableFuture<Void> request) {
+        Resource resource = resources.computeIfAbsent(name, n -> new Resource());
+        if (resource.currentState == State.IDLE) {
+            startRequest(name, resource, request);
+        } else {
+            resource.waitingRequests.add(request);
         }
+    }
 
-        currentState = State.REQUESTING;
-        myRequestTimestamp = getLamportClock();
-        repliesReceived.clear();
-
-        // Send REQUEST messages to all other nodes
-        for (String node : nodesInSystem) {
-            sendRequestMessage(node, myRequestTimestamp);
+    private void startRequest(String name, Resource resource, CompletableFuture<Void> request) {
+        resource.currentRequest = request;
+        resource.currentState = State.REQUESTING;
+        resource.myRequestTimestamp = clock.tick();
+        resource.awaitingReplies.clear();
+        resource.awaitingReplies.addAll(nodes.keySet());
+        for (String node : nodes.keySet()) {
+            send(node, Message.Type.REQUEST, name, 0, resource.myRequestTimestamp);
         }
+        enterIfAllReplied(resource);
+    }
 
-        // Wait for replies from all nodes
-        while (repliesReceived.size() < nodesInSystem.size()) {
-            try {
-                wait(100); // Wait with timeout
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                return;
-            }
+    private void enterIfAllReplied(Resource resource) {
+        if (resource.currentState == State.REQUESTING && resource.awaitingReplies.isEmpty()) {
+            resource.currentState = State.IN_CS;
+            enter(resource.currentRequest);
         }
-
-        // All replies received, enter critical section
-        currentState = State.IN_CS;
     }
 
-    public synchronized void releaseCS() {
-        if (currentState != State.IN_CS) {
+    @Override
+    protected void release(String name) {
+        Resource resource = resources.get(name);
+        if (resource == null || resource.currentState != State.IN_CS) {
             return; // Not in critical section
         }
 
-        currentState = State.IDLE;
+        resource.currentState = State.IDLE;
+        resource.currentRequest = null;
 
         // Send deferred replies
-        while (!deferredReplies.isEmpty()) {
-            String nodeId = deferredReplies.poll();
-            sendReplyMessage(nodeId);
+        while (!resource.deferredReplies.isEmpty()) {
+            send(resource.deferredReplies.poll(), Message.Type.REPLY, name, 0, clock.tick());
         }
 
-        notifyAll(); // Notify any waiting threads
-    }
-
-    public synchronized void handleRequestMessage(String senderId, int timestamp) {
-        updateLamportClock(timestamp);
-
-        boolean shouldReply = false;
-
-        if (currentState == State.IDLE) {
-            shouldReply = true;
-        } else if (currentState == State.REQUESTING) {
-            // Compare timestamps to break ties
-            if (timestamp < myRequestTimestamp ||
-                    (timestamp == myRequestTimestamp && senderId.compareTo(nodeId) < 0)) {
-                shouldReply = true;
-            } else {
-                // Defer the reply
-                deferredReplies.offer(senderId);
-            }
-        }
-        // If in CS, defer the reply (already handled by adding to deferredReplies)
-
-        if (shouldReply) {
-            sendReplyMessage(senderId);
-        } else if (currentState == State.IN_CS) {
-            deferredReplies.offer(senderId);
+        if (!resource.waitingRequests.isEmpty()) {
+            startRequest(name, resource, resource.waitingRequests.poll());
+        } else {
+            resources.remove(name);
         }
     }
 
-    public synchronized void handleReplyMessage(String senderId) {
-        if (currentState == State.REQUESTING) {
-            repliesReceived.add(senderId);
-            notifyAll(); // Notify waiting requestCS thread
+    @Override
+    protected void receive(String senderId, Message msg) {
+        switch (msg.type) {
+            case REQUEST:
+                handleRequestMessage(senderId, msg.item, msg.lamportTimestamp);
+                break;
+            case REPLY:
+                handleReplyMessage(senderId, msg.item);
+                break;
+            default:
+                break;
         }
     }
 
-    private void sendRequestMessage(String nodeId, int timestamp) {
-        try {
-            Message requestMsg = new Message(Message.Type.REQUEST, this.nodeId,
-                    "CS_REQUEST", null, timestamp);
-            // In a real distributed system, this would send to the specific node
-            // For this implementation, we'll use a simplified approach
-            broadcastToNode(requestMsg, nodeId);
-        } catch (Exception e) {
-            e.printStackTrace();
+    private void handleRequestMessage(String senderId, String name, long timestamp) {
+        Resource resource = resources.get(name);
+        boolean shouldReply;
+        if (resource == null || resource.currentState == State.IDLE) {
+            shouldReply = true;
+        } else if (resource.currentState == State.REQUESTING) {
+            // The older request goes first, node id breaks ties
+            shouldReply = timestamp < resource.myRequestTimestamp
+                    || (timestamp == resource.myRequestTimestamp && senderId.compareTo(nodeId) < 0);
+        } else {
+            shouldReply = false;
         }
-    }
 
-    private void sendReplyMessage(String nodeId) {
-        try {
-            Message replyMsg = new Message(Message.Type.REPLY, this.nodeId,
-                    "CS_REPLY", null, getLamportClock());
-            broadcastToNode(replyMsg, nodeId);
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (shouldReply) {
+            send(senderId, Message.Type.REPLY, name, 0, clock.tick());
+        } else {
+            resource.deferredReplies.offer(senderId);
         }
     }
 
-    private void broadcastToNode(Message msg, String targetNodeId) {
-        // In a distributed system, this would send to a specific node
-        // For this server implementation, we simulate the communication
-        synchronized (clientOutputs) {
-            for (ObjectOutputStream out : clientOutputs) {
-                try {
-                    out.writeObject(msg);
-                    out.flush();
-                } catch (Exception ignored) {
-                }
-            }
+    private void handleReplyMessage(String senderId, String name) {
+        Resource resource = resources.get(name);
+        if (resource != null && resource.currentState == State.REQUESTING
+                && resource.awaitingReplies.remove(senderId)) {
+            enterIfAllReplied(resource);
         }
     }
 
-    public static void setClientOutputs(List<ObjectOutputStream> outputs) {
-        synchronized (clientOutputs) {
-            clientOutputs.clear();
-            clientOutputs.addAll(outputs);
+    @Override
+    protected void nodeRemoved(String nodeId) {
+        for (Resource resource : resources.values()) {
+            resource.deferredReplies.remove(nodeId);
+            if (resource.awaitingReplies.remove(nodeId)) {
+                enterIfAllReplied(resource);
+            }
         }
     }
-
-    public synchronized boolean isInCriticalSection() {
-        return currentState == State.IN_CS;
-    }
-
-    public synchronized State getCurrentState() {
-        return currentState;
-    }
-
-    public synchronized String getNodeId() {
-        return nodeId;
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,388 @@
+package server;
+
+import common.MessageCodec;
+import common.ShardRing;
+import java.util.List;
+
+// Startup options, parsed from "--name=value" command line arguments.
+public class ServerConfig {
+    public enum Mode {
+        BLOCKING, VIRTUAL, NIO
+    }
+
+    // Where server stock lives; MAPPED needs a data directory
+    public enum Store {
+        HEAP, MAPPED
+    }
+
+    private int port = WarehouseServer.PORT;
+    private Mode mode = Mode.BLOCKING;
+    private int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int workerThreads = Runtime.getRuntime().availableProcessors() * 2;
+    // Wire codecs a client may negotiate, in order of server preference
+    private byte[] codecs = { MessageCodec.BINARY, MessageCodec.JAVA };
+    private int outboundCapacity = 4096;
+    private OutboundQueue.Policy slowConsumerPolicy = OutboundQueue.Policy.DROP_OLDEST;
+    // Seconds between connection/queue statistics lines, 0 to disable
+    private int statsInterval = 0;
+    // Local HTTP port serving the metrics report at /metrics, 0 for none
+    private int metricsPort;
+    // File the metrics report is rewritten to every stats interval (10 s if none is set)
+    private String metricsFile;
+    // Where the write-ahead log and snapshots live; null keeps stock in memory only
+    private String dataDir;
+    private WriteAheadLog.SyncMode walSync = WriteAheadLog.SyncMode.GROUP;
+    private int snapshotEvery = 10000;
+    private Store store = Store.HEAP;
+    // Item slots in a new mapped catalogue, rounded up to a power of two
+    private int catalogueCapacity = 1 << 20;
+    private MutualExclusion.Algorithm mutex = MutualExclusion.Algorithm.RICART_AGRAWALA;
+    // Replicated cluster: this node's id and every member as id@host:clientPort:raftPort
+    private String nodeId;
+    private String cluster;
+    // Partitioned catalogue: every shard as id@host:port, and which one this is
+    private String shards;
+    private String shardId;
+    // Start empty and take over stock from the existing shards
+    private boolean join;
+    // Extra items Item000000.. seeded with seedQuantity each, for load tests
+    private int seedItems;
+    private int seedQuantity = 1000000;
+
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        boolean portGiven = false;
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "port":
+                    config.port = Integer.parseInt(value);
+                    portGiven = true;
+                    break;
+                case "mode":
+                    config.mode = Mode.valueOf(value.toUpperCase());
+                    break;
+                case "io-threads":
+                    config.ioThreads = Integer.parseInt(value);
+                    break;
+                case "worker-threads":
+                    config.workerThreads = Integer.parseInt(value);
+                    break;
+                case "codecs":
+                    config.codecs = parseCodecs(value);
+                    break;
+                case "outbound-capacity":
+                    config.outboundCapacity = Integer.parseInt(value);
+                    break;
+                case "slow-consumer":
+                    config.slowConsumerPolicy = OutboundQueue.Policy.valueOf(value.toUpperCase().replace('-', '_'));
+                    break;
+                case "stats-interval":
+                    config.statsInterval = Integer.parseInt(value);
+                    break;
+                case "metrics-port":
+                    config.metricsPort = Integer.parseInt(value);
+                    break;
+                case "metrics-file":
+                    config.metricsFile = value;
+                    break;
+                case "data-dir":
+                    config.dataDir = value;
+                    break;
+                case "wal-sync":
+                    config.walSync = WriteAheadLog.SyncMode.valueOf(value.toUpperCase());
+                    break;
+                case "snapshot-every":
+                    config.snapshotEvery = Integer.parseInt(value);
+                    break;
+                case "store":
+                    config.store = Store.valueOf(value.toUpperCase());
+                    break;
+                case "catalogue-capacity":
+                    config.catalogueCapacity = Integer.parseInt(value);
+                    break;
+                case "mutex":
+                    config.mutex = MutualExclusion.Algorithm.valueOf(value.toUpperCase().replace('-', '_'));
+                    break;
+                case "node-id":
+                    config.nodeId = value;
+                    break;
+                case "cluster":
+                    config.cluster = value;
+                    break;
+                case "shards":
+                    config.shards = value;
+                    break;
+                case "shard-id":
+                    config.shardId = value;
+                    break;
+                case "join":
+                    config.join = Boolean.parseBoolean(value);
+                    break;
+                case "seed-items":
+                    config.seedItems = Integer.parseInt(value);
+                    break;
+                case "seed-quantity":
+                    config.seedQuantity = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+        if (config.store == Store.MAPPED && config.dataDir == null) {
+            throw new IllegalArgumentException("--store=mapped needs --data-dir");
+        }
+        if (config.cluster != null) {
+            if (config.nodeId == null) {
+                throw new IllegalArgumentException("--cluster needs --node-id");
+            }
+            if (config.store == Store.MAPPED) {
+                throw new IllegalArgumentException("--cluster keeps stock on the heap; drop --store=mapped");
+            }
+            ClusterMember self = null;
+            for (ClusterMember member : config.getClusterMembers()) {
+                if (member.getId().equals(config.nodeId)) {
+                    self = member;
+                }
+            }
+            if (self == null) {
+                throw new IllegalArgumentException("--node-id=" + config.nodeId + " is not in --cluster");
+            }
+            if (!portGiven) {
+                config.port = self.getClientPort();
+            }
+        }
+        if (config.shards != null) {
+            if (config.shardId == null) {
+                throw new IllegalArgumentException("--shards needs --shard-id");
+            }
+            if (config.cluster != null) {
+                throw new IllegalArgumentException("--shards and --cluster cannot be combined");
+            }
+            String address = config.getShardRing().getAddress(config.shardId);
+            if (address == null) {
+                throw new IllegalArgumentException("--shard-id=" + config.shardId + " is not in --shards");
+            }
+            if (!portGiven) {
+                config.port = Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+            }
+        } else if (config.join) {
+            throw new IllegalArgumentException("--join needs --shards");
+        }
+        return config;
+    }
+
+    private static byte[] parseCodecs(String value) {
+        String[] names = value.split(",");
+        byte[] ids = new byte[names.length];
+        for (int i = 0; i < names.length; i++) {
+            switch (names[i].trim().toLowerCase()) {
+                case "binary":
+                    ids[i] = MessageCodec.BINARY;
+                    break;
+                case "java":
+                    ids[i] = MessageCodec.JAVA;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown codec: " + names[i]);
+            }
+        }
+        return ids;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public byte[] getCodecs() {
+        return codecs;
+    }
+
+    public void setCodecs(byte[] codecs) {
+        this.codecs = codecs;
+    }
+
+    public int getOutboundCapacity() {
+        return outboundCapacity;
+    }
+
+    public void setOutboundCapacity(int outboundCapacity) {
+        this.outboundCapacity = outboundCapacity;
+    }
+
+    public OutboundQueue.Policy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    public void setSlowConsumerPolicy(OutboundQueue.Policy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    public int getStatsInterval() {
+        return statsInterval;
+    }
+
+    public void setStatsInterval(int statsInterval) {
+        this.statsInterval = statsInterval;
+    }
+
+    public String getDataDir() {
+        return dataDir;
+    }
+
+    public void setDataDir(String dataDir) {
+        this.dataDir = dataDir;
+    }
+
+    public WriteAheadLog.SyncMode getWalSync() {
+        return walSync;
+    }
+
+    public void setWalSync(WriteAheadLog.SyncMode walSync) {
+        this.walSync = walSync;
+    }
+
+    public int getSnapshotEvery() {
+        return snapshotEvery;
+    }
+
+    public void setSnapshotEvery(int snapshotEvery) {
+        this.snapshotEvery = snapshotEvery;
+    }
+
+    public Store getStore() {
+        return store;
+    }
+
+    public void setStore(Store store) {
+        this.store = store;
+    }
+
+    public int getCatalogueCapacity() {
+        return catalogueCapacity;
+    }
+
+    public void setCatalogueCapacity(int catalogueCapacity) {
+        this.catalogueCapacity = catalogueCapacity;
+    }
+
+    public MutualExclusion.Algorithm getMutex() {
+        return mutex;
+    }
+
+    public void setMutex(MutualExclusion.Algorithm mutex) {
+        this.mutex = mutex;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public String getCluster() {
+        return cluster;
+    }
+
+    public void setCluster(String cluster) {
+        this.cluster = cluster;
+    }
+
+    public List<ClusterMember> getClusterMembers() {
+        return cluster == null ? List.of() : ClusterMember.parseAll(cluster);
+    }
+
+    public String getShards() {
+        return shards;
+    }
+
+    public void setShards(String shards) {
+        this.shards = shards;
+    }
+
+    public ShardRing getShardRing() {
+        return shards == null ? null : ShardRing.parse(shards);
+    }
+
+    public String getShardId() {
+        return shardId;
+    }
+
+    public void setShardId(String shardId) {
+        this.shardId = shardId;
+    }
+
+    public boolean isJoin() {
+        return join;
+    }
+
+    public void setJoin(boolean join) {
+        this.join = join;
+    }
+
+    public int getSeedItems() {
+        return seedItems;
+    }
+
+    public void setSeedItems(int seedItems) {
+        this.seedItems = seedItems;
+    }
+
+    public int getSeedQuantity() {
+        return seedQuantity;
+    }
+
+    public void setSeedQuantity(int seedQuantity) {
+        this.seedQuantity = seedQuantity;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    public String getMetricsFile() {
+        return metricsFile;
+    }
+
+    public void setMetricsFile(String metricsFile) {
+        this.metricsFile = metricsFile;
+    }
+}
@@ -2,6 +2,6 @@ package server;
 
 public class ServerMain {
     public static void main(String[] args) {
-        new WarehouseServer().start();
+        new WarehouseServer(ServerConfig.fromArgs(args)).start();
     }
 }
\ No newline at end of file
@@ -0,0 +1,72 @@
+package server;
+
+import common.FrameCodec;
+import common.Handshake;
+import common.Message;
+import common.MessageCodec;
+import common.ShardRing;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+// Adds this shard to a running partitioned warehouse. Every existing shard is
+// sent the new ring as ROUTES over an ordinary branch connection and answers
+// with a HANDOFF of the stock of the items that now hash here. Until then the
+// connection answers mutual exclusion REQUESTs the way a branch does.
+public class ShardJoin {
+    private ShardRing ring;
+    private String shardId;
+    private RequestDispatcher dispatcher;
+
+    public ShardJoin(ShardRing ring, String shardId, RequestDispatcher dispatcher) {
+        this.ring = ring;
+        this.shardId = shardId;
+        this.dispatcher = dispatcher;
+    }
+
+    public void run() {
+        for (String shard : ring.getShardIds()) {
+            if (shard.equals(shardId)) {
+                continue;
+            }
+            try {
+                takeOver(shard);
+            } catch (IOException e) {
+                System.out.println("Could not take over stock from shard " + shard);
+                e.printStackTrace();
+            }
+        }
+        System.out.println("Shard " + shardId + " has joined " + ring.size() + " shards");
+    }
+
+    private void takeOver(String shard) throws IOException {
+        String address = ring.getAddress(shard);
+        int colon = address.lastIndexOf(':');
+        try (Socket socket = new Socket(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)))) {
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            FrameCodec.writeFrame(out, Handshake.hello(MessageCodec.BINARY));
+            MessageCodec codec = MessageCodec.create(Handshake.codecIds(FrameCodec.readPayload(in))[0]);
+
+            FrameCodec.writeFrame(out, codec, new Message(Message.Type.ROUTES, shardId, ring.toSpec(), null,
+                    dispatcher.getClock().tick()));
+            while (true) {
+                Message msg = FrameCodec.readFrame(in, codec);
+                dispatcher.getClock().update(msg.lamportTimestamp);
+                if (msg.type == Message.Type.HANDOFF) {
+                    dispatcher.receiveHandoff(msg.inventory);
+                    System.out.println("Took over " + msg.inventory.size() + " items from shard " + shard);
+                    return;
+                }
+                if (msg.type == Message.Type.REQUEST) {
+                    FrameCodec.writeFrame(out, codec, new Message(Message.Type.REPLY, shardId, msg.item, 0,
+                            dispatcher.getClock().tick()));
+                }
+            }
+        }
+    }
+}
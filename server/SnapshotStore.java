@@ -0,0 +1,156 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// On-heap DurableStore: a map of the durable stock, checkpointed by writing it
+// out as snapshot-<seq>.snap. The copy is taken on the caller's thread and
+// written in the background so the log flusher is not held up.
+public class SnapshotStore implements DurableStore {
+    private static final int SNAPSHOT_MAGIC = 0x57534E50;
+
+    private Path dir;
+    private Map<String, Integer> stock;
+    private volatile long checkpointSeq;
+    private ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "snapshot-writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private SnapshotStore(Path dir) {
+        this.dir = dir;
+    }
+
+    // Loads the newest snapshot in dir, or writes initialStock as snapshot 0 if there is none
+    public static SnapshotStore open(Path dir, Map<String, Integer> initialStock) throws IOException {
+        Files.createDirectories(dir);
+        SnapshotStore store = new SnapshotStore(dir);
+        List<Path> snapshots = list(dir);
+        if (snapshots.isEmpty()) {
+            store.stock = new HashMap<>(initialStock);
+            store.write(0, store.stock);
+        } else {
+            store.read(snapshots.get(snapshots.size() - 1));
+        }
+        return store;
+    }
+
+    // Current durable stock; only call before the log starts feeding the store
+    public Map<String, Integer> getStock() {
+        return new HashMap<>(stock);
+    }
+
+    @Override
+    public long getCheckpointSeq() {
+        return checkpointSeq;
+    }
+
+    @Override
+    public void apply(long seq, Map<String, Integer> deltas) {
+        for (Map.Entry<String, Integer> entry : deltas.entrySet()) {
+            stock.merge(entry.getKey(), entry.getValue(), Integer::sum);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> checkpoint(long seq) {
+        Map<String, Integer> copy = new HashMap<>(stock);
+        return CompletableFuture.runAsync(() -> {
+            try {
+                write(seq, copy);
+                checkpointSeq = seq;
+                for (Path path : list(dir)) {
+                    if (seqOf(path) < seq) {
+                        Files.deleteIfExists(path);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, writer);
+    }
+
+    private void write(long seq, Map<String, Integer> snapshot) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(snapshot.size() * 16 + 32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeLong(seq);
+        out.writeInt(snapshot.size());
+        for (Map.Entry<String, Integer> entry : snapshot.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+
+        Path tmp = dir.resolve("snapshot-" + seq + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, dir.resolve("snapshot-" + seq + ".snap"), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void read(Path path) throws IOException {
+        byte[] data = Files.readAllBytes(path);
+        if (data.length < 8) {
+            throw new IOException("Truncated snapshot " + path);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 8);
+        if (ByteBuffer.wrap(data, data.length - 8, 8).getLong() != crc.getValue()) {
+            throw new IOException("Corrupt snapshot " + path);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 8));
+        if (in.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Not a snapshot " + path);
+        }
+        checkpointSeq = in.readLong();
+        int count = in.readInt();
+        stock = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            stock.put(in.readUTF(), in.readInt());
+        }
+    }
+
+    // Snapshot files, oldest first
+    private static List<Path> list(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            List<Path> snapshots = new ArrayList<>();
+            files.filter(p -> p.getFileName().toString().startsWith("snapshot-")
+                    && p.getFileName().toString().endsWith(".snap")).forEach(snapshots::add);
+            snapshots.sort((a, b) -> Long.compare(seqOf(a), seqOf(b)));
+            return snapshots;
+        }
+    }
+
+    private static long seqOf(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring("snapshot-".length(), name.length() - ".snap".length()));
+    }
+}
@@ -0,0 +1,116 @@
+package server;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Immutable copy of the stock as of one inventory version, for reads that
+// must not wait for or hold up orders. Items are kept sorted so a prefix
+// range is one binary search and a scan.
+//
+// Quantities sit in fixed-size chunks, and a new version copies only the
+// chunks holding changed items and shares the rest with the old one, so
+// publishing after every commit costs about CHUNK ints per changed item
+// rather than a copy of the catalogue. Adding an item rebuilds the arrays.
+public class StockSnapshot {
+    private static final int CHUNK = 64;
+
+    private final long version;
+    // Sorted; shared by every version until an item is added
+    private final String[] items;
+    private final int[][] chunks;
+
+    private StockSnapshot(long version, String[] items, int[][] chunks) {
+        this.version = version;
+        this.items = items;
+        this.chunks = chunks;
+    }
+
+    public static StockSnapshot of(long version, Map<String, Integer> stock) {
+        String[] items = stock.keySet().toArray(new String[0]);
+        Arrays.sort(items);
+        int[][] chunks = new int[(items.length + CHUNK - 1) / CHUNK][];
+        for (int c = 0; c < chunks.length; c++) {
+            chunks[c] = new int[Math.min(CHUNK, items.length - c * CHUNK)];
+        }
+        for (int i = 0; i < items.length; i++) {
+            chunks[i / CHUNK][i % CHUNK] = stock.get(items[i]);
+        }
+        return new StockSnapshot(version, items, chunks);
+    }
+
+    // This snapshot with the given items set to new quantities
+    public StockSnapshot with(long version, Map<String, Integer> changed) {
+        int[][] next = chunks.clone();
+        boolean[] copied = new boolean[chunks.length];
+        for (Map.Entry<String, Integer> entry : changed.entrySet()) {
+            int index = Arrays.binarySearch(items, entry.getKey());
+            if (index < 0) {
+                Map<String, Integer> stock = toMap();
+                stock.putAll(changed);
+                return of(version, stock);
+            }
+            int c = index / CHUNK;
+            if (!copied[c]) {
+                next[c] = next[c].clone();
+                copied[c] = true;
+            }
+            next[c][index % CHUNK] = entry.getValue();
+        }
+        return new StockSnapshot(version, items, next);
+    }
+
+    // This snapshot without the given items, at the same version: they have
+    // left the catalogue, which is not a change of stock branches are sent
+    public StockSnapshot without(Collection<String> dropped) {
+        Map<String, Integer> stock = toMap();
+        stock.keySet().removeAll(dropped);
+        return of(version, stock);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    // -1 for an item not in the catalogue
+    public int get(String item) {
+        int index = Arrays.binarySearch(items, item);
+        return index < 0 ? -1 : quantity(index);
+    }
+
+    // The listed items that are in the catalogue, in the order asked
+    public Map<String, Integer> get(Collection<String> wanted) {
+        Map<String, Integer> found = new LinkedHashMap<>();
+        for (String item : wanted) {
+            int index = Arrays.binarySearch(items, item);
+            if (index >= 0) {
+                found.put(item, quantity(index));
+            }
+        }
+        return found;
+    }
+
+    // Every item whose name starts with prefix, in name order
+    public Map<String, Integer> range(String prefix) {
+        Map<String, Integer> found = new TreeMap<>();
+        int index = Arrays.binarySearch(items, prefix);
+        for (int i = index < 0 ? -index - 1 : index; i < items.length && items[i].startsWith(prefix); i++) {
+            found.put(items[i], quantity(i));
+        }
+        return found;
+    }
+
+    public Map<String, Integer> toMap() {
+        Map<String, Integer> stock = new LinkedHashMap<>(items.length * 2);
+        for (int i = 0; i < items.length; i++) {
+            stock.put(items[i], quantity(i));
+        }
+        return stock;
+    }
+
+    private int quantity(int index) {
+        return chunks[index / CHUNK][index % CHUNK];
+    }
+}
@@ -0,0 +1,24 @@
+package server;
+
+// Storage behind server.Inventory. Items are given dense ids on first use so
+// the hot path works on int slots rather than map entries.
+public interface StockStore {
+    int NO_ID = -1;
+
+    // Returns NO_ID if the item has never been stored
+    int lookup(String item);
+
+    // Returns the item's id, adding it with quantity 0 if needed
+    int idFor(String item);
+
+    String name(int id);
+
+    // Number of ids handed out; valid ids are 0 .. size() - 1
+    int size();
+
+    int get(int id);
+
+    boolean compareAndSet(int id, int expected, int value);
+
+    int addAndGet(int id, int delta);
+}
@@ -0,0 +1,152 @@
+package server;
+
+import common.Message;
+import common.Topics;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+// Which branches want which stock updates and chat, indexed by topic so an
+// event is handed only to the branches interested in it: the cost of a
+// fan-out grows with its subscribers, not with everyone connected.
+//
+// A branch starts out with everything. Once it subscribes to items or
+// categories it leaves allStock and is found through byItem and byCategory
+// instead, and likewise for chat channels. Categories are looked up by the
+// prefixes of an item's name, only at the lengths some category has.
+//
+// Lookups take no lock; subscribe() and remove() are serialized. An event
+// published while a branch changes its subscription may miss it, which is
+// why a branch asks for a snapshot after subscribing.
+public class SubscriptionIndex {
+    private Map<Connection, Topics> subscriptions = new ConcurrentHashMap<>();
+    private Set<Connection> allStock = ConcurrentHashMap.newKeySet();
+    private Set<Connection> allChat = ConcurrentHashMap.newKeySet();
+    private Map<String, Set<Connection>> byItem = new ConcurrentHashMap<>();
+    private Map<String, Set<Connection>> byCategory = new ConcurrentHashMap<>();
+    private Map<String, Set<Connection>> byChannel = new ConcurrentHashMap<>();
+    // Distinct lengths of the categories in byCategory, ascending
+    private volatile int[] categoryLengths = new int[0];
+
+    public void add(Connection connection) {
+        allStock.add(connection);
+        allChat.add(connection);
+    }
+
+    // Replaces whatever the branch subscribed to before
+    public synchronized void subscribe(Connection connection, Topics topics) {
+        unindex(connection);
+        subscriptions.put(connection, topics);
+        if (topics.isAllStock()) {
+            allStock.add(connection);
+        }
+        for (String item : topics.getItems()) {
+            byItem.computeIfAbsent(item, k -> ConcurrentHashMap.newKeySet()).add(connection);
+        }
+        for (String category : topics.getCategories()) {
+            byCategory.computeIfAbsent(category, k -> ConcurrentHashMap.newKeySet()).add(connection);
+        }
+        if (topics.isAllChat()) {
+            allChat.add(connection);
+        }
+        for (String channel : topics.getChannels()) {
+            byChannel.computeIfAbsent(channel, k -> ConcurrentHashMap.newKeySet()).add(connection);
+        }
+        updateCategoryLengths();
+    }
+
+    public synchronized void remove(Connection connection) {
+        unindex(connection);
+        updateCategoryLengths();
+    }
+
+    private void unindex(Connection connection) {
+        allStock.remove(connection);
+        allChat.remove(connection);
+        Topics old = subscriptions.remove(connection);
+        if (old == null) {
+            return;
+        }
+        unindex(byItem, old.getItems(), connection);
+        unindex(byCategory, old.getCategories(), connection);
+        unindex(byChannel, old.getChannels(), connection);
+    }
+
+    private static void unindex(Map<String, Set<Connection>> index, Collection<String> keys, Connection connection) {
+        for (String key : keys) {
+            Set<Connection> subscribers = index.get(key);
+            if (subscribers != null) {
+                subscribers.remove(connection);
+                if (subscribers.isEmpty()) {
+                    index.remove(key);
+                }
+            }
+        }
+    }
+
+    private void updateCategoryLengths() {
+        categoryLengths = byCategory.keySet().stream().mapToInt(String::length).distinct().sorted().toArray();
+    }
+
+    // Null for a branch that takes everything
+    public Topics get(Connection connection) {
+        return subscriptions.get(connection);
+    }
+
+    // Every branch that wants an UPDATE changing these items, once each
+    public void forEachStockSubscriber(Collection<String> items, Consumer<Connection> action) {
+        allStock.forEach(action);
+        if (byItem.isEmpty() && byCategory.isEmpty()) {
+            return;
+        }
+        // Subscribers outside allStock; one may match several items or categories
+        int[] lengths = categoryLengths;
+        Set<Connection> seen = items.size() > 1 || lengths.length > 0 ? new HashSet<>() : null;
+        for (String item : items) {
+            visit(byItem.get(item), seen, action);
+            for (int length : lengths) {
+                if (length > item.length()) {
+                    break;
+                }
+                visit(byCategory.get(item.substring(0, length)), seen, action);
+            }
+        }
+    }
+
+    // channel may be null for the general channel
+    public void forEachChatSubscriber(String channel, Consumer<Connection> action) {
+        allChat.forEach(action);
+        visit(byChannel.get(channel == null ? Topics.GENERAL : channel), null, action);
+    }
+
+    private static void visit(Set<Connection> subscribers, Set<Connection> seen, Consumer<Connection> action) {
+        if (subscribers == null) {
+            return;
+        }
+        for (Connection connection : subscribers) {
+            if (seen == null || seen.add(connection)) {
+                action.accept(connection);
+            }
+        }
+    }
+
+    // Whether a broadcast UPDATE would have gone to the branch
+    public boolean wants(Connection connection, Message event) {
+        Topics topics = subscriptions.get(connection);
+        if (topics == null) {
+            return true;
+        }
+        if (event.inventory == null) {
+            return topics.isAllStock();
+        }
+        for (String item : event.inventory.keySet()) {
+            if (topics.wantsItem(item)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
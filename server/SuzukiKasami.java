@@ -0,0 +1,159 @@
+package server;
+
+import common.Message;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+// Suzuki-Kasami token passing, per resource. Whoever holds a resource's token
+// may enter; a node without it broadcasts a numbered REQUEST and the holder
+// passes the token on when it is done. While the holder keeps entering nobody
+// else asked for, entry costs no messages at all, which is the common case on
+// the server since branches do not request.
+//
+// A TOKEN message carries the last request number served for every node in
+// its inventory map and the queue of nodes waiting for it, in order, in its
+// lines map. A node that leaves while holding a token takes it with it.
+public class SuzukiKasami extends AbstractMutualExclusion {
+    private static class Resource {
+        private boolean hasToken;
+        private boolean inCs;
+        private boolean requesting;
+        // Highest request number seen from each node
+        private Map<String, Integer> requested = new HashMap<>();
+        // Token state, valid while hasToken: last request served per node, waiting nodes
+        private Map<String, Integer> served = new HashMap<>();
+        private ArrayDeque<String> queue = new ArrayDeque<>();
+        private CompletableFuture<Void> currentRequest;
+        private Queue<CompletableFuture<Void>> waitingRequests = new ArrayDeque<>();
+
+        Resource(boolean hasToken) {
+            this.hasToken = hasToken;
+        }
+    }
+
+    // Whether this node starts out owning every resource's token
+    private boolean startsWithTokens;
+    // Resources whose state differs from a fresh one; the rest are dropped
+    private Map<String, Resource> resources = new HashMap<>();
+
+    public SuzukiKasami(String nodeId, boolean startsWithTokens) {
+        super(nodeId);
+        this.startsWithTokens = startsWithTokens;
+    }
+
+    private Resource resource(String name) {
+        return resources.computeIfAbsent(name, n -> new Resource(startsWithTokens));
+    }
+
+    @Override
+    protected void request(String name, CompletableFuture<Void> request) {
+        Resource resource = resource(name);
+        if (resource.inCs || resource.requesting) {
+            resource.waitingRequests.add(request);
+        } else {
+            startRequest(name, resource, request);
+        }
+    }
+
+    private void startRequest(String name, Resource resource, CompletableFuture<Void> request) {
+        resource.currentRequest = request;
+        if (resource.hasToken) {
+            resource.inCs = true;
+            enter(request);
+            return;
+        }
+        resource.requesting = true;
+        int number = resource.requested.merge(nodeId, 1, Integer::sum);
+        for (String node : nodes.keySet()) {
+            send(node, Message.Type.REQUEST, name, number, clock.tick());
+        }
+    }
+
+    @Override
+    protected void release(String name) {
+        Resource resource = resources.get(name);
+        if (resource == null || !resource.inCs) {
+            return; // Not in critical section
+        }
+        resource.inCs = false;
+        resource.currentRequest = null;
+        Integer mine = resource.requested.get(nodeId);
+        if (mine != null) {
+            resource.served.put(nodeId, mine);
+        }
+        for (Map.Entry<String, Integer> entry : resource.requested.entrySet()) {
+            String node = entry.getKey();
+            if (entry.getValue() == resource.served.getOrDefault(node, 0) + 1 && !resource.queue.contains(node)) {
+                resource.queue.add(node);
+            }
+        }
+        if (!resource.queue.isEmpty()) {
+            passToken(name, resource, resource.queue.poll());
+        }
+        if (!resource.waitingRequests.isEmpty()) {
+            startRequest(name, resource, resource.waitingRequests.poll());
+        }
+        dropIfFresh(name, resource);
+    }
+
+    @Override
+    protected void receive(String senderId, Message msg) {
+        String name = msg.item;
+        Resource resource = resource(name);
+        switch (msg.type) {
+            case REQUEST:
+                resource.requested.merge(senderId, msg.quantity, Math::max);
+                if (resource.hasToken && !resource.inCs
+                        && msg.quantity == resource.served.getOrDefault(senderId, 0) + 1) {
+                    passToken(name, resource, senderId);
+                }
+                break;
+            case TOKEN:
+                resource.hasToken = true;
+                resource.served = new HashMap<>(msg.inventory);
+                resource.queue = new ArrayDeque<>(msg.lines.keySet());
+                if (resource.requesting) {
+                    resource.requesting = false;
+                    resource.inCs = true;
+                    enter(resource.currentRequest);
+                }
+                break;
+            default:
+                break;
+        }
+        dropIfFresh(name, resource);
+    }
+
+    private void passToken(String name, Resource resource, String node) {
+        Message token = new Message(Message.Type.TOKEN, nodeId, name, 0, clock.tick());
+        token.inventory = new HashMap<>(resource.served);
+        Map<String, Integer> queue = new LinkedHashMap<>();
+        for (String waiting : resource.queue) {
+            queue.put(waiting, resource.requested.getOrDefault(waiting, 0));
+        }
+        token.lines = queue;
+        resource.hasToken = false;
+        resource.served = new HashMap<>();
+        resource.queue = new ArrayDeque<>();
+        send(node, token);
+    }
+
+    // Drops state that a fresh Resource would recreate, so a holder that keeps
+    // every token does not remember every item it has ever locked
+    private void dropIfFresh(String name, Resource resource) {
+        if (resource.hasToken == startsWithTokens && !resource.inCs && !resource.requesting
+                && resource.waitingRequests.isEmpty() && resource.requested.isEmpty() && resource.served.isEmpty()
+                && resource.queue.isEmpty()) {
+            resources.remove(name);
+        }
+    }
+
+    @Override
+    protected void nodeRemoved(String nodeId) {
+        for (Resource resource : resources.values()) {
+            resource.requested.remove(nodeId);
+            resource.served.remove(nodeId);
+            resource.queue.remove(nodeId);
+        }
+    }
+}
@@ -1,34 +1,239 @@
 package server;
 
+import com.sun.net.httpserver.HttpServer;
+import common.ShardRing;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class WarehouseServer {
     public static final int PORT = 5000;
-    private ConcurrentHashMap<String, Integer> inventory = new ConcurrentHashMap<>();
+    private static final String CHAT_FILE = "chat.log";
+    private Inventory inventory;
+    private WriteAheadLog wal;
+    private ServerConfig config;
+    private RequestDispatcher dispatcher;
+    private ExecutorService connectionExecutor;
 
     public WarehouseServer() {
-        // Initialize inventory with some products
-        inventory.put("Apples", 100);
-        inventory.put("Bananas", 80);
-        inventory.put("Oranges", 60);
+        this(new ServerConfig());
+    }
+
+    public WarehouseServer(ServerConfig config) {
+        this.config = config;
+    }
+
+    // Runs every ClientHandler on the given executor instead of the one chosen by the mode
+    public void setConnectionExecutor(ExecutorService connectionExecutor) {
+        this.connectionExecutor = connectionExecutor;
     }
 
     public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Warehouse Server started on port " + PORT);
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                new Thread(new ClientHandler(clientSocket, inventory)).start();
+        try {
+            openStorage();
+            ShardRing ring = config.getShardRing();
+            if (ring != null) {
+                dispatcher.setSharding(ring, config.getShardId());
+                if (config.isJoin()) {
+                    ShardJoin join = new ShardJoin(ring, config.getShardId(), dispatcher);
+                    new Thread(join::run, "shard-join").start();
+                }
+            }
+            startStatsReporter();
+            startMetricsEndpoint();
+            switch (config.getMode()) {
+                case NIO:
+                    new NioServer(config, dispatcher).start();
+                    break;
+                case VIRTUAL:
+                    startBlocking(connectionExecutor != null ? connectionExecutor
+                            : Executors.newVirtualThreadPerTaskExecutor());
+                    break;
+                default:
+                    startBlocking(connectionExecutor);
+                    break;
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    private void startBlocking(ExecutorService executor) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(config.getPort())) {
+            System.out.println("Warehouse Server (" + config.getMode() + ") started on port " + config.getPort());
+            while (true) {
+                Socket clientSocket = serverSocket.accept();
+                ClientHandler handler = new ClientHandler(clientSocket, dispatcher, config);
+                if (executor != null) {
+                    executor.execute(handler);
+                } else {
+                    new Thread(handler).start();
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    // Recovers stock from the data directory when one is configured
+    private void openStorage() throws IOException {
+        MutualExclusion mutex = MutualExclusion.create(config.getMutex(), "SERVER_" + System.currentTimeMillis());
+        if (config.getCluster() != null) {
+            openCluster(mutex);
+            return;
+        }
+        if (config.getDataDir() == null) {
+            inventory = new Inventory(initialStock());
+        } else {
+            Path dir = Paths.get(config.getDataDir());
+            if (config.getStore() == ServerConfig.Store.MAPPED) {
+                MappedStockStore store = MappedStockStore.open(dir, config.getCatalogueCapacity(),
+                        initialStock());
+                wal = WriteAheadLog.open(dir, config.getWalSync(), config.getSnapshotEvery(), store);
+                store.resetLiveFromDurable();
+                inventory = new Inventory(store);
+            } else {
+                SnapshotStore store = SnapshotStore.open(dir, initialStock());
+                wal = WriteAheadLog.open(dir, config.getWalSync(), config.getSnapshotEvery(), store);
+                inventory = new Inventory(store.getStock());
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    wal.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+        }
+        dispatcher = new RequestDispatcher(inventory, wal, mutex);
+        if (config.getDataDir() != null) {
+            dispatcher.setChatHistory(ChatHistory.open(Paths.get(config.getDataDir()).resolve(CHAT_FILE)));
+        }
+    }
+
+    // Every node starts from the default stock and replays the cluster log,
+    // which is kept in full under the data directory
+    private void openCluster(MutualExclusion mutex) throws IOException {
+        inventory = new Inventory(initialStock());
+        Path dir = config.getDataDir() == null ? null : Paths.get(config.getDataDir());
+        RaftNode raft = RaftNode.open(config.getNodeId(), config.getClusterMembers(), dir);
+        dispatcher = new RequestDispatcher(inventory, raft, mutex);
+        if (dir != null) {
+            // Each node keeps the chat its own branches had
+            dispatcher.setChatHistory(ChatHistory.open(dir.resolve(CHAT_FILE)));
+        }
+        dispatcher.setCluster(raft);
+        raft.setStateMachine(dispatcher::applyCommitted);
+        raft.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(raft::close));
+    }
+
+    // Stock a server starts with when it has none on disk: the default items plus
+    // any seeded ones. A shard keeps only the items it owns, and one joining a
+    // running ring starts empty and is handed its stock.
+    private Map<String, Integer> initialStock() {
+        Map<String, Integer> stock = Inventory.defaultStock();
+        for (int i = 0; i < config.getSeedItems(); i++) {
+            stock.put(String.format("Item%06d", i), config.getSeedQuantity());
+        }
+        ShardRing ring = config.getShardRing();
+        if (ring != null) {
+            if (config.isJoin()) {
+                return new LinkedHashMap<>();
+            }
+            stock.keySet().removeIf(item -> !ring.owns(config.getShardId(), item));
+        }
+        return stock;
+    }
+
+    private void startStatsReporter() {
+        if (config.getStatsInterval() <= 0 && config.getMetricsFile() == null) {
+            return;
+        }
+        int interval = config.getStatsInterval() > 0 ? config.getStatsInterval() : 10;
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stats-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            if (config.getStatsInterval() > 0) {
+                printStats();
+            }
+            if (config.getMetricsFile() != null) {
+                try {
+                    Metrics.writeReport(Paths.get(config.getMetricsFile()), metricsReport());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    // Only reachable from this machine; GET /metrics returns the report
+    private void startMetricsEndpoint() throws IOException {
+        if (config.getMetricsPort() <= 0) {
+            return;
+        }
+        HttpServer http = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), config.getMetricsPort()), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = metricsReport().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.start();
+        System.out.println("Metrics at http://localhost:" + config.getMetricsPort() + "/metrics");
+    }
+
+    // The dispatcher's metrics followed by every branch's outbound queue
+    private String metricsReport() {
+        StringBuilder report = new StringBuilder(dispatcher.getMetrics().report());
+        for (Connection c : dispatcher.getClients()) {
+            OutboundQueue q = c.getOutboundQueue();
+            report.append("outbound.").append(c.getClientId()).append(" depth=").append(q.getDepth())
+                    .append(" chatDepth=").append(q.getChatDepth())
+                    .append(" maxDepth=").append(q.getMaxDepth()).append(" enqueued=").append(q.getEnqueuedCount())
+                    .append(" dropped=").append(q.getDroppedCount()).append('\n');
+        }
+        return report.toString();
+    }
+
+    private void printStats() {
+        int clients = 0;
+        long queued = 0;
+        int deepest = 0;
+        long dropped = 0;
+        for (Connection c : dispatcher.getClients()) {
+            OutboundQueue q = c.getOutboundQueue();
+            int depth = q.getDepth();
+            clients++;
+            queued += depth;
+            deepest = Math.max(deepest, depth);
+            dropped += q.getDroppedCount();
+        }
+        System.out.println("clients=" + clients + " queued=" + queued + " deepestQueue=" + deepest
+                + " dropped=" + dropped);
+    }
+
     public static void main(String[] args) {
-        new WarehouseServer().start();
+        new WarehouseServer(ServerConfig.fromArgs(args)).start();
     }
 }
\ No newline at end of file
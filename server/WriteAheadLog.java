@@ -0,0 +1,348 @@
+package server;
+
+import common.Protocol;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Durable record of approved stock changes.
+//
+// Log segments are named wal-<firstSeq>.log and each record is
+// [int length][int crc][seq, count, (item, delta)*].
+//
+// append() blocks until its record is on disk. A single flusher thread writes
+// whatever has queued up since its last write and, in GROUP mode, forces it
+// with one fsync, so concurrent orders share the cost of the sync.
+//
+// Records hold deltas, not absolute quantities, so concurrent commits may be
+// logged in any order. Every durable record is passed on to a DurableStore;
+// every checkpointEvery records the log starts a new segment and asks the
+// store to checkpoint, and once that is done the older segments are deleted.
+// Recovery replays only the records after the store's checkpoint.
+public class WriteAheadLog implements ChangeLog, Closeable {
+    public enum SyncMode {
+        GROUP, EACH
+    }
+
+    private static final int MAX_BATCH = 4096;
+
+    private Path dir;
+    private SyncMode syncMode;
+    private int checkpointEvery;
+    private DurableStore durable;
+
+    // Flusher thread only
+    private FileChannel segment;
+    private long lastSeq;
+    private int recordsSinceCheckpoint;
+
+    private BlockingQueue<PendingRecord> queue = new LinkedBlockingQueue<>();
+    private Thread flusher;
+    private volatile boolean closed;
+    // Set when a write fails; the log cannot be trusted after that
+    private volatile IOException failure;
+
+    // Queued by close() so the flusher writes everything before it and stops
+    private static final PendingRecord CLOSE = new PendingRecord(Map.of());
+
+    private static class PendingRecord {
+        private Map<String, Integer> deltas;
+        private CompletableFuture<Long> durable = new CompletableFuture<>();
+
+        PendingRecord(Map<String, Integer> deltas) {
+            this.deltas = deltas;
+        }
+    }
+
+    private WriteAheadLog(Path dir, SyncMode syncMode, int checkpointEvery, DurableStore durable) {
+        this.dir = dir;
+        this.syncMode = syncMode;
+        this.checkpointEvery = checkpointEvery;
+        this.durable = durable;
+    }
+
+    // Brings durable up to date with the log in dir before returning
+    public static WriteAheadLog open(Path dir, SyncMode syncMode, int checkpointEvery, DurableStore durable)
+            throws IOException {
+        Files.createDirectories(dir);
+        WriteAheadLog wal = new WriteAheadLog(dir, syncMode, checkpointEvery, durable);
+        wal.recover();
+        wal.segment = wal.openSegment(wal.lastSeq + 1);
+        wal.flusher = new Thread(wal::flushLoop, "wal-flusher");
+        wal.flusher.setDaemon(true);
+        wal.flusher.start();
+        return wal;
+    }
+
+    // Blocks until the change is durable and returns its sequence number
+    @Override
+    public long append(Map<String, Integer> deltas) throws IOException {
+        if (closed) {
+            throw new IOException("Write-ahead log is closed");
+        }
+        if (failure != null) {
+            throw new IOException("Write-ahead log failed earlier", failure);
+        }
+        PendingRecord record = new PendingRecord(deltas);
+        queue.add(record);
+        try {
+            return record.durable.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the write-ahead log", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Write-ahead log append failed", e.getCause());
+        }
+    }
+
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
+    private void flushLoop() {
+        List<PendingRecord> batch = new ArrayList<>();
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            stopping = batch.remove(CLOSE);
+            try {
+                if (failure != null) {
+                    throw failure;
+                }
+                writeBatch(batch);
+            } catch (IOException e) {
+                failure = e;
+                for (PendingRecord record : batch) {
+                    record.durable.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+        // Anything that raced with close() is refused rather than left waiting
+        queue.drainTo(batch);
+        for (PendingRecord record : batch) {
+            record.durable.completeExceptionally(new IOException("Write-ahead log is closed"));
+        }
+    }
+
+    private void writeBatch(List<PendingRecord> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(batch.size() * 64);
+        long seq = lastSeq;
+        for (PendingRecord record : batch) {
+            byte[] encoded = encodeRecord(++seq, record.deltas);
+            if (syncMode == SyncMode.EACH) {
+                writeFully(ByteBuffer.wrap(encoded));
+                segment.force(false);
+            } else {
+                bytes.write(encoded);
+            }
+        }
+        if (syncMode == SyncMode.GROUP) {
+            writeFully(ByteBuffer.wrap(bytes.toByteArray()));
+            segment.force(false);
+        }
+
+        for (PendingRecord record : batch) {
+            lastSeq++;
+            durable.apply(lastSeq, record.deltas);
+            record.durable.complete(lastSeq);
+        }
+        recordsSinceCheckpoint += batch.size();
+        if (recordsSinceCheckpoint >= checkpointEvery) {
+            startCheckpoint();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            segment.write(buffer);
+        }
+    }
+
+    // Rolls to a new segment and lets the store checkpoint in the background;
+    // the old segments are deleted once the checkpoint is safely on disk
+    private CompletableFuture<Void> startCheckpoint() throws IOException {
+        recordsSinceCheckpoint = 0;
+        long seq = lastSeq;
+        segment.close();
+        segment = openSegment(seq + 1);
+        return durable.checkpoint(seq).thenRun(() -> {
+            try {
+                deleteSegmentsUpTo(seq);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }).exceptionally(e -> {
+            e.printStackTrace();
+            return null;
+        });
+    }
+
+    // Removes every segment that only holds records up to seq
+    private void deleteSegmentsUpTo(long seq) throws IOException {
+        for (Path path : listSegments()) {
+            if (seqOf(path) <= seq) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        lastSeq = durable.getCheckpointSeq();
+        List<Path> segments = listSegments();
+        if (!segments.isEmpty() && seqOf(segments.get(0)) > lastSeq + 1) {
+            throw new IOException("Log starts at record " + seqOf(segments.get(0))
+                    + " but the store is only checkpointed to " + lastSeq);
+        }
+        int replayed = 0;
+        for (Path path : segments) {
+            replayed += replaySegment(path);
+        }
+        if (!segments.isEmpty()) {
+            System.out.println("Recovered inventory at log position " + lastSeq + " (" + replayed
+                    + " records replayed)");
+        }
+    }
+
+    // Applies the records after lastSeq; a torn record at the end of the log
+    // (crash during write) is cut off
+    private int replaySegment(Path path) throws IOException {
+        int replayed = 0;
+        long validLength = 0;
+        try (InputStream file = Files.newInputStream(path);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(file))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int expectedCrc = in.readInt();
+                if (length < 12 || length > Protocol.MAX_FRAME_SIZE) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                if ((int) crc.getValue() != expectedCrc) {
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                long seq = record.readLong();
+                int count = record.readInt();
+                Map<String, Integer> deltas = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    deltas.merge(record.readUTF(), record.readInt(), Integer::sum);
+                }
+                if (seq > lastSeq) {
+                    durable.apply(seq, deltas);
+                    lastSeq = seq;
+                    replayed++;
+                }
+                validLength += 8 + length;
+            }
+        } catch (EOFException e) {
+            // Torn write, handled below
+        }
+        if (validLength < Files.size(path)) {
+            System.out.println("Truncating torn tail of " + path.getFileName() + " at " + validLength);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+                channel.force(true);
+            }
+        }
+        return replayed;
+    }
+
+    private static byte[] encodeRecord(long seq, Map<String, Integer> deltas) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(16 + deltas.size() * 24);
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeLong(seq);
+        out.writeInt(deltas.size());
+        for (Map.Entry<String, Integer> entry : deltas.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+        byte[] bodyBytes = body.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bodyBytes);
+
+        ByteBuffer record = ByteBuffer.allocate(8 + bodyBytes.length);
+        record.putInt(bodyBytes.length).putInt((int) crc.getValue()).put(bodyBytes);
+        return record.array();
+    }
+
+    private FileChannel openSegment(long firstSeq) throws IOException {
+        return FileChannel.open(dir.resolve("wal-" + firstSeq + ".log"), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // Log segments, oldest first
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            List<Path> segments = new ArrayList<>();
+            files.filter(p -> p.getFileName().toString().startsWith("wal-")
+                    && p.getFileName().toString().endsWith(".log")).forEach(segments::add);
+            segments.sort((a, b) -> Long.compare(seqOf(a), seqOf(b)));
+            return segments;
+        }
+    }
+
+    private static long seqOf(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring("wal-".length(), name.length() - ".log".length()));
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        queue.add(CLOSE);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // A final checkpoint means a clean restart has nothing to replay
+        if (failure == null && recordsSinceCheckpoint > 0) {
+            try {
+                startCheckpoint().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        segment.close();
+    }
+}